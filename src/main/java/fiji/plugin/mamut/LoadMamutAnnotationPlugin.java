@@ -26,7 +26,11 @@ import java.io.File;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
 
+import fiji.plugin.mamut.io.MamutBinaryFormat;
+import fiji.plugin.mamut.io.MamutBinaryReader;
+import fiji.plugin.mamut.io.MamutEditJournal;
 import fiji.plugin.mamut.io.MamutXmlReader;
+import fiji.plugin.mamut.io.MamutXmlStreamReader;
 import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.gui.displaysettings.DisplaySettings;
@@ -34,6 +38,7 @@ import fiji.plugin.trackmate.io.IOUtils;
 import fiji.plugin.trackmate.providers.ViewProvider;
 import ij.IJ;
 import ij.ImageJ;
+import ij.gui.GenericDialog;
 import ij.plugin.PlugIn;
 
 public class LoadMamutAnnotationPlugin implements PlugIn
@@ -88,13 +93,54 @@ public class LoadMamutAnnotationPlugin implements PlugIn
 	protected void load( final File mamutFile )
 	{
 
-		final MamutXmlReader reader = new MamutXmlReader( mamutFile );
+		/*
+		 * Edits made after the last save, if any. They are left by a crash,
+		 * but also by closing without saving, so we ask.
+		 */
+
+		final boolean recover;
+		if ( MamutEditJournal.hasJournal( mamutFile ) )
+		{
+			final GenericDialog dialog = new GenericDialog( MaMuT.PLUGIN_NAME + " v" + MaMuT.PLUGIN_VERSION );
+			dialog.addMessage( "Edits made after the last save of " + mamutFile.getName() + " were found.\n"
+					+ "They are left by a crash, or by closing MaMuT without saving.\n"
+					+ "Recover them, or discard them?" );
+			dialog.enableYesNoCancel( "Recover", "Discard" );
+			dialog.showDialog();
+			if ( dialog.wasCanceled() )
+				return;
+			recover = dialog.wasOKed();
+			if ( !recover )
+				MamutEditJournal.discard( mamutFile, Logger.IJ_LOGGER );
+		}
+		else
+		{
+			recover = false;
+		}
+
+		final MamutXmlReader reader = MamutBinaryFormat.isBinaryFile( mamutFile )
+				? new MamutBinaryReader( mamutFile )
+				: new MamutXmlStreamReader( mamutFile );
 
 		/*
 		 * Read model
 		 */
 
 		final Model model = reader.getModel();
+		if ( null == model )
+		{
+			// Fatal: the file could not be read. Other errors are reported below.
+			Logger.IJ_LOGGER.error( "Could not read the MaMuT file " + mamutFile + ":\n" );
+			Logger.IJ_LOGGER.error( reader.getErrorMessage() );
+			return;
+		}
+
+		/*
+		 * Recover edits made after the last save.
+		 */
+
+		if ( recover )
+			MamutEditJournal.replay( mamutFile, model, Logger.IJ_LOGGER );
 
 		/*
 		 * Read settings
@@ -113,6 +159,7 @@ public class LoadMamutAnnotationPlugin implements PlugIn
 		 */
 
 		final MaMuT mamut = new MaMuT( model, settings, ds );
+		mamut.setMamutFile( mamutFile );
 
 		/*
 		 * Update setup assignments.
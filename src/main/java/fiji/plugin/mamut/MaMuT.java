@@ -38,6 +38,9 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.AbstractAction;
 import javax.swing.ActionMap;
@@ -65,14 +68,22 @@ import bdv.viewer.SourceAndConverter;
 import bdv.viewer.ViewerOptions;
 import bdv.viewer.ViewerState;
 import fiji.plugin.mamut.detection.SourceSemiAutoTracker;
+import fiji.plugin.mamut.detection.StagedDetections;
+import fiji.plugin.mamut.detection.TrackingJobService;
 import fiji.plugin.mamut.feature.MamutModelFeatureUpdater;
 import fiji.plugin.mamut.feature.spot.SpotSourceIdAnalyzerFactory;
 import fiji.plugin.mamut.gui.AnnotationPanel;
 import fiji.plugin.mamut.gui.MamutGUI;
 import fiji.plugin.mamut.gui.MamutGUIModel;
 import fiji.plugin.mamut.gui.MamutKeyboardHandler;
+import fiji.plugin.mamut.io.MamutBinaryFormat;
+import fiji.plugin.mamut.io.MamutBinaryWriter;
+import fiji.plugin.mamut.io.MamutEditJournal;
+import fiji.plugin.mamut.io.MamutXmlStreamWriter;
 import fiji.plugin.mamut.io.MamutXmlWriter;
+import fiji.plugin.mamut.util.EdgeEnds;
 import fiji.plugin.mamut.util.SourceSpotImageUpdater;
+import fiji.plugin.mamut.viewer.MamutStagingOverlay;
 import fiji.plugin.mamut.viewer.MamutViewer;
 import fiji.plugin.mamut.viewer.MamutViewerPanel;
 import fiji.plugin.trackmate.Logger;
@@ -173,7 +184,33 @@ public class MaMuT implements ModelChangeListener
 
 	private final MamutGUI gui;
 
-	private static File mamutFile;
+	/** Keeps the model features up to date with model changes. */
+	private final MamutModelFeatureUpdater featureUpdater;
+
+	/** Records model edits between two saves, for crash recovery. */
+	private final MamutEditJournal journal;
+
+	/** Sources and targets of the model edges, including removed ones. */
+	private final EdgeEnds edgeEnds;
+
+	/**
+	 * Runs the background computations of this session: semi-automated
+	 * tracking detections and spot feature computations.
+	 */
+	private final ExecutorService backgroundExecutor;
+
+	/** Queues and runs the semi-automated tracking jobs. */
+	private final TrackingJobService trackingJobService;
+
+	/**
+	 * The detections of the running semi-automated tracking job, previewed in
+	 * the viewers until they are added to the model.
+	 */
+	private final StagedDetections stagedDetections;
+
+	private File mamutFile;
+
+	private boolean closed = false;
 
 	public MaMuT( final Model model, final SourceSettings settings, final DisplaySettings ds )
 	{
@@ -203,7 +240,21 @@ public class MaMuT implements ModelChangeListener
 		/*
 		 * Auto-update features & declare them
 		 */
-		new MamutModelFeatureUpdater( model, settings );
+		edgeEnds = new EdgeEnds( model );
+		featureUpdater = new MamutModelFeatureUpdater( model, settings, edgeEnds );
+		final AtomicInteger workerIndex = new AtomicInteger();
+		backgroundExecutor = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(), r -> {
+			final Thread thread = new Thread( r, "MaMuT background worker-" + workerIndex.getAndIncrement() );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		featureUpdater.getSpotFeatureCalculator().setExecutorService( backgroundExecutor );
+
+		/*
+		 * Edit journal. It is only bound to a file once this session is
+		 * loaded from or saved to one.
+		 */
+		journal = new MamutEditJournal( model, settings, edgeEnds, Logger.IJ_LOGGER );
 
 		/*
 		 * Selection model
@@ -245,6 +296,13 @@ public class MaMuT implements ModelChangeListener
 		final AnnotationPanel annotationPanel = gui.getAnnotationPanel();
 		logger = annotationPanel.getLogger();
 
+		/*
+		 * Semi-automated tracking jobs.
+		 */
+		trackingJobService = new TrackingJobService( backgroundExecutor, featureUpdater, logger );
+		stagedDetections = new StagedDetections();
+		stagedDetections.listeners().add( () -> requestRepaintAllViewers() );
+
 		/*
 		 * Help
 		 */
@@ -257,6 +315,15 @@ public class MaMuT implements ModelChangeListener
 
 		gui.setSize( 340, 580 );
 		gui.setVisible( true );
+		gui.addWindowListener( new WindowAdapter()
+		{
+			@Override
+			public void windowClosing( final WindowEvent e )
+			{
+				if ( guimodel.views.isEmpty() )
+					close();
+			}
+		} );
 	}
 
 	/*
@@ -269,6 +336,23 @@ public class MaMuT implements ModelChangeListener
 		refresh();
 	}
 
+	/**
+	 * Ends this MaMuT session: stops the background feature computations and
+	 * closes the edit journal. This is called automatically when the last
+	 * MaMuT window is closed.
+	 */
+	public void close()
+	{
+		if ( closed )
+			return;
+		closed = true;
+		model.removeModelChangeListener( this );
+		trackingJobService.shutdown();
+		featureUpdater.quit();
+		backgroundExecutor.shutdownNow();
+		journal.close();
+	}
+
 	public void toggleBrightnessDialog()
 	{
 		brightnessDialog.setVisible( !brightnessDialog.isVisible() );
@@ -290,28 +374,45 @@ public class MaMuT implements ModelChangeListener
 	}
 
 	/**
-	 * Performs the semi-automatic detection of subsequent spots. For this to
-	 * work, exactly one spot must be in the selection.
+	 * Queues the semi-automatic detection of subsequent spots for the spots
+	 * currently selected. The selection is captured now, so it can be changed
+	 * while the job waits or runs.
 	 */
-	@SuppressWarnings( { "rawtypes", "unchecked" } )
 	public void semiAutoDetectSpot()
+	{
+		semiAutoDetectSpot( false );
+	}
+
+	/**
+	 * Queues the semi-automatic detection of subsequent or preceding spots for
+	 * the spots currently selected.
+	 *
+	 * @param backward
+	 *            if <code>true</code>, tracks backward in time.
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	public void semiAutoDetectSpot( final boolean backward )
 	{
 		final SourceSemiAutoTracker autotracker = new SourceSemiAutoTracker( model, selectionModel, settings.getSources(), logger );
-		autotracker.setNumThreads( 4 );
 		autotracker.setParameters( guimodel.qualityThreshold, guimodel.distanceTolerance, guimodel.maxNFrames );
+		autotracker.setBackward( backward );
+		// Jobs run one at a time, so they can share the preview.
+		autotracker.setStagedDetections( stagedDetections );
+		autotracker.setInitialSpots( new ArrayList<>( selectionModel.getSpotSelection() ) );
+		trackingJobService.submit( autotracker );
+	}
 
-		new Thread( "MaMuT semi-automated tracking thread" )
-		{
-			@Override
-			public void run()
-			{
-				final boolean ok = autotracker.checkInput() && autotracker.process();
-				if ( !ok )
-				{
-					logger.error( autotracker.getErrorMessage() );
-				}
-			}
-		}.start();
+	/**
+	 * Cancels all the semi-automated tracking jobs queued or running.
+	 */
+	public void cancelSemiAutoTracking()
+	{
+		trackingJobService.cancelAll();
+	}
+
+	public TrackingJobService getTrackingJobService()
+	{
+		return trackingJobService;
 	}
 
 	/**
@@ -649,6 +750,7 @@ public class MaMuT implements ModelChangeListener
 
 		installKeyBindings( viewer );
 		installMouseListeners( viewer );
+		viewer.getViewerPanel().setStagingOverlay( new MamutStagingOverlay( stagedDetections, ds ) );
 
 		viewer.addWindowListener( new DeregisterWindowListener( viewer ) );
 
@@ -753,15 +855,21 @@ public class MaMuT implements ModelChangeListener
 		mamutFile = proposed;
 
 		MamutXmlWriter writer = null;
+		boolean saved = false;
+		// Edits made while the model is written go to a new journal segment.
+		journal.beginSnapshot( mamutFile );
 		try
 		{
 			lLogger.log( "Saving to " + mamutFile + '\n' );
-			writer = new MamutXmlWriter( mamutFile, lLogger );
+			writer = MamutBinaryFormat.hasBinaryExtension( mamutFile )
+					? new MamutBinaryWriter( mamutFile, lLogger )
+					: new MamutXmlStreamWriter( mamutFile, lLogger );
 			writer.appendModel( model );
 			writer.appendSettings( settings );
 			writer.appendMamutState( guimodel, setupAssignments, bookmarks );
 			writer.appendDisplaySettings( ds );
 			writer.writeToFile();
+			saved = true;
 			lLogger.log( "Done.\n" );
 		}
 		catch ( final FileNotFoundException e )
@@ -782,6 +890,10 @@ public class MaMuT implements ModelChangeListener
 			somethingWrongHappenedWhileSaving( writer );
 			e.printStackTrace();
 		}
+		finally
+		{
+			journal.endSnapshot( saved );
+		}
 	}
 
 	private void somethingWrongHappenedWhileSaving( final MamutXmlWriter writer )
@@ -992,6 +1104,19 @@ public class MaMuT implements ModelChangeListener
 	 * GETTERS
 	 */
 
+	/**
+	 * Sets the MaMuT file this session is saved to by default, and binds the
+	 * edit journal to it.
+	 *
+	 * @param file
+	 *            the MaMuT XML file.
+	 */
+	public void setMamutFile( final File file )
+	{
+		mamutFile = file;
+		journal.open( file );
+	}
+
 	/**
 	 * Exposes the GUI model that stores this GUI states.
 	 *
@@ -1045,6 +1170,18 @@ public class MaMuT implements ModelChangeListener
 		return setupAssignments;
 	}
 
+	/**
+	 * Exposes the feature updater of this MaMuT session. Batches of model
+	 * changes can be declared to it, so that features are updated only once
+	 * at the end of the batch.
+	 *
+	 * @return the {@link MamutModelFeatureUpdater}.
+	 */
+	public MamutModelFeatureUpdater getFeatureUpdater()
+	{
+		return featureUpdater;
+	}
+
 	/**
 	 * Exposes the {@link Bookmarks} of this MaMuT session.
 	 *
@@ -1073,6 +1210,8 @@ public class MaMuT implements ModelChangeListener
 		public void windowClosing( final WindowEvent arg0 )
 		{
 			guimodel.views.remove( view );
+			if ( guimodel.views.isEmpty() && !gui.isVisible() )
+				close();
 		}
 	}
 
@@ -23,6 +23,7 @@ package fiji.plugin.mamut;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import bdv.BigDataViewer;
@@ -33,10 +34,13 @@ import bdv.spimdata.WrapBasicImgLoader;
 import bdv.spimdata.XmlIoSpimDataMinimal;
 import bdv.tools.brightness.ConverterSetup;
 import bdv.viewer.SourceAndConverter;
+import fiji.plugin.mamut.feature.spot.SpotIntensityStatisticsAnalyzerFactory;
 import fiji.plugin.mamut.providers.MamutSpotAnalyzerProvider;
 import fiji.plugin.mamut.util.DummySpimData;
 import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.features.spot.SpotAnalyzerFactoryBase;
+import fiji.plugin.trackmate.features.spot.SpotContrastAndSNRAnalyzerFactory;
+import fiji.plugin.trackmate.features.spot.SpotIntensityMultiCAnalyzerFactory;
 import fiji.plugin.trackmate.providers.EdgeAnalyzerProvider;
 import fiji.plugin.trackmate.providers.SpotAnalyzerProvider;
 import fiji.plugin.trackmate.providers.TrackAnalyzerProvider;
@@ -48,6 +52,14 @@ import net.imglib2.RandomAccessibleInterval;
 public class SourceSettings extends Settings
 {
 
+	/**
+	 * Keys of the TrackMate spot analyzers whose features are computed by
+	 * {@link SpotIntensityStatisticsAnalyzerFactory} in a single pass.
+	 */
+	private static final List< String > SUPERSEDED_SPOT_ANALYZERS = Arrays.asList(
+			SpotIntensityMultiCAnalyzerFactory.KEY,
+			SpotContrastAndSNRAnalyzerFactory.KEY );
+
 	private final List< SourceAndConverter< ? > > sources;
 
 	private final CacheControl cache;
@@ -134,11 +146,12 @@ public class SourceSettings extends Settings
 		for ( final String key : mamutSpotAnalyzerKeys )
 			addSpotAnalyzerFactory( mamutSpotAnalyzerProvider.getFactory( key ) );
 
-		// TrackMate analyzers.
+		// TrackMate analyzers, minus the ones MaMuT supersedes.
 		final SpotAnalyzerProvider spotAnalyzerProvider = new SpotAnalyzerProvider( sources.size() );
 		final List< String > spotAnalyzerKeys = spotAnalyzerProvider.getKeys();
 		for ( final String key : spotAnalyzerKeys )
-			addSpotAnalyzerFactory( spotAnalyzerProvider.getFactory( key ) );
+			if ( !SUPERSEDED_SPOT_ANALYZERS.contains( key ) )
+				addSpotAnalyzerFactory( spotAnalyzerProvider.getFactory( key ) );
 
 		clearEdgeAnalyzers();
 		final EdgeAnalyzerProvider edgeAnalyzerProvider = new EdgeAnalyzerProvider();
@@ -153,6 +166,20 @@ public class SourceSettings extends Settings
 			addTrackAnalyzer( trackAnalyzerProvider.getFactory( key ) );
 	}
 
+	/**
+	 * Returns <code>true</code> if the specified TrackMate spot analyzer is
+	 * superseded in MaMuT by {@link SpotIntensityStatisticsAnalyzerFactory},
+	 * which computes the same features.
+	 *
+	 * @param key
+	 *            the key of the spot analyzer factory.
+	 * @return whether the analyzer is superseded.
+	 */
+	public static boolean isSupersededSpotAnalyzer( final String key )
+	{
+		return SUPERSEDED_SPOT_ANALYZERS.contains( key );
+	}
+
 	public List< SourceAndConverter< ? > > getSources()
 	{
 		return sources;
@@ -0,0 +1,206 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.action;
+
+import java.awt.Frame;
+
+import javax.swing.ImageIcon;
+
+import org.scijava.plugin.Plugin;
+
+import fiji.plugin.mamut.MaMuT;
+import fiji.plugin.mamut.SourceSettings;
+import fiji.plugin.mamut.detection.SourceSpotDetector;
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.SelectionModel;
+import fiji.plugin.trackmate.TrackMate;
+import fiji.plugin.trackmate.action.TrackMateAction;
+import fiji.plugin.trackmate.gui.Icons;
+import fiji.plugin.trackmate.gui.displaysettings.DisplaySettings;
+import ij.gui.GenericDialog;
+
+@Plugin( type = MamutActionFactory.class )
+public class MamutDetectSpotsActionFactory implements MamutActionFactory
+{
+
+	public static final String NAME = "Detect spots in whole frames";
+
+	public static final String KEY = "DETECT_SPOTS";
+
+	public static final String INFO_TEXT = "<html>"
+			+ "Detects spots over whole frames of a source, with the LoG or "
+			+ "DoG detector of TrackMate, and adds them to the model frame by "
+			+ "frame. "
+			+ "<p>"
+			+ "Frames are tiled in blocks processed in parallel. The mipmap "
+			+ "level is picked from the spot radius, unless specified."
+			+ "</html>";
+
+	private static final String[] DETECTORS = new String[] { "LoG", "DoG" };
+
+	private static int sourceIndex = 0;
+
+	private static double radius = 5.;
+
+	private static double threshold = 0.;
+
+	private static int detectorChoice = 0;
+
+	private static boolean doSubPixelLocalization = true;
+
+	private static boolean doMedianFilter = false;
+
+	private static int level = -1;
+
+	@Override
+	public String getInfoText()
+	{
+		return INFO_TEXT;
+	}
+
+	@Override
+	public ImageIcon getIcon()
+	{
+		return Icons.MAGNIFIER_ICON;
+	}
+
+	@Override
+	public String getKey()
+	{
+		return KEY;
+	}
+
+	@Override
+	public String getName()
+	{
+		return NAME;
+	}
+
+	@Override
+	public TrackMateAction create( final MaMuT mamut )
+	{
+		final SourceSettings settings = ( SourceSettings ) mamut.getTrackMate().getSettings();
+		final int nSources = settings.getSources().size();
+		final String[] sourceNames = new String[ nSources ];
+		for ( int i = 0; i < sourceNames.length; i++ )
+			sourceNames[ i ] = settings.getSources().get( i ).getSpimSource().getName();
+		sourceIndex = Math.min( sourceIndex, nSources - 1 );
+
+		final GenericDialog dialog = new GenericDialog( NAME, mamut.getGUI() );
+		dialog.addChoice( "Source:", sourceNames, sourceNames[ sourceIndex ] );
+		dialog.addChoice( "Detector:", DETECTORS, DETECTORS[ detectorChoice ] );
+		dialog.addNumericField( "Spot radius:", radius, 2, 6, mamut.getTrackMate().getModel().getSpaceUnits() );
+		dialog.addNumericField( "Quality threshold:", threshold, 2 );
+		dialog.addCheckbox( "Sub-pixel localization", doSubPixelLocalization );
+		dialog.addCheckbox( "Median filter", doMedianFilter );
+		dialog.addNumericField( "Mipmap level (-1 for auto):", level, 0 );
+		dialog.addNumericField( "First frame:", 0, 0 );
+		dialog.addNumericField( "Last frame:", settings.nframes - 1, 0 );
+		dialog.showDialog();
+		if ( dialog.wasCanceled() )
+		{
+			// Return dummy action.
+			return new TrackMateAction()
+			{
+
+				@Override
+				public void execute( final TrackMate trackmate, final SelectionModel selectionModel, final DisplaySettings displaySettings, final Frame parent )
+				{}
+
+				@Override
+				public void setLogger( final Logger logger )
+				{}
+			};
+		}
+
+		sourceIndex = dialog.getNextChoiceIndex();
+		detectorChoice = dialog.getNextChoiceIndex();
+		radius = dialog.getNextNumber();
+		threshold = dialog.getNextNumber();
+		doSubPixelLocalization = dialog.getNextBoolean();
+		doMedianFilter = dialog.getNextBoolean();
+		level = ( int ) dialog.getNextNumber();
+		final int firstFrame = ( int ) dialog.getNextNumber();
+		final int lastFrame = ( int ) dialog.getNextNumber();
+		final DetectSpotsAction action = new DetectSpotsAction( settings );
+		action.source = sourceIndex;
+		action.radius = radius;
+		action.threshold = threshold;
+		action.useDoG = detectorChoice == 1;
+		action.doSubPixelLocalization = doSubPixelLocalization;
+		action.doMedianFilter = doMedianFilter;
+		action.level = level;
+		action.firstFrame = firstFrame;
+		action.lastFrame = lastFrame;
+		return action;
+	}
+
+	private static final class DetectSpotsAction implements TrackMateAction
+	{
+
+		private final SourceSettings settings;
+
+		private int source;
+
+		private double radius;
+
+		private double threshold;
+
+		private boolean useDoG;
+
+		private boolean doSubPixelLocalization;
+
+		private boolean doMedianFilter;
+
+		private int level;
+
+		private int firstFrame;
+
+		private int lastFrame;
+
+		private Logger logger = Logger.IJ_LOGGER;
+
+		private DetectSpotsAction( final SourceSettings settings )
+		{
+			this.settings = settings;
+		}
+
+		@SuppressWarnings( { "rawtypes", "unchecked" } )
+		@Override
+		public void execute( final TrackMate trackmate, final SelectionModel selectionModel, final DisplaySettings displaySettings, final Frame parent )
+		{
+			final SourceSpotDetector detector = new SourceSpotDetector( trackmate.getModel(), settings.getSources(), settings.nframes, logger );
+			detector.setSource( source );
+			detector.setDetectorParameters( radius, threshold, useDoG, doSubPixelLocalization, doMedianFilter );
+			detector.setLevel( level );
+			detector.setFrameRange( firstFrame, lastFrame );
+			if ( !detector.checkInput() || !detector.process() )
+				logger.error( detector.getErrorMessage() );
+		}
+
+		@Override
+		public void setLogger( final Logger logger )
+		{
+			this.logger = logger;
+		}
+	}
+}
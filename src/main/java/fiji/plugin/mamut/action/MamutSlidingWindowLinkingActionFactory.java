@@ -0,0 +1,165 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.action;
+
+import java.awt.Frame;
+
+import javax.swing.ImageIcon;
+
+import org.scijava.plugin.Plugin;
+
+import fiji.plugin.mamut.MaMuT;
+import fiji.plugin.mamut.feature.MamutModelFeatureUpdater;
+import fiji.plugin.mamut.tracking.SlidingWindowLinker;
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.SelectionModel;
+import fiji.plugin.trackmate.TrackMate;
+import fiji.plugin.trackmate.action.TrackMateAction;
+import fiji.plugin.trackmate.gui.Icons;
+import fiji.plugin.trackmate.gui.displaysettings.DisplaySettings;
+import ij.gui.GenericDialog;
+
+@Plugin( type = MamutActionFactory.class )
+public class MamutSlidingWindowLinkingActionFactory implements MamutActionFactory
+{
+
+	public static final String NAME = "Link spots in a sliding window";
+
+	public static final String KEY = "SLIDING_WINDOW_LINKING";
+
+	public static final String INFO_TEXT = "<html>"
+			+ "Links the spots of the model frame by frame, with the LAP "
+			+ "linker of TrackMate, keeping only a few frames in memory. "
+			+ "<p>"
+			+ "Spots that already have a successor are not linked further, "
+			+ "and spots that already have a predecessor do not receive a "
+			+ "new one. Splitting and merging events are not detected."
+			+ "</html>";
+
+	private static double linkingMaxDistance = 15.;
+
+	private static double gapClosingMaxDistance = 15.;
+
+	private static int maxFrameGap = 2;
+
+	@Override
+	public String getInfoText()
+	{
+		return INFO_TEXT;
+	}
+
+	@Override
+	public ImageIcon getIcon()
+	{
+		return Icons.TRACK_SCHEME_ICON_16x16;
+	}
+
+	@Override
+	public String getKey()
+	{
+		return KEY;
+	}
+
+	@Override
+	public String getName()
+	{
+		return NAME;
+	}
+
+	@Override
+	public TrackMateAction create( final MaMuT mamut )
+	{
+		final GenericDialog dialog = new GenericDialog( NAME, mamut.getGUI() );
+		final String units = mamut.getTrackMate().getModel().getSpaceUnits();
+		dialog.addNumericField( "Max linking distance:", linkingMaxDistance, 1, 6, units );
+		dialog.addNumericField( "Max gap-closing distance:", gapClosingMaxDistance, 1, 6, units );
+		dialog.addNumericField( "Max frame gap:", maxFrameGap, 0, 6, "frames" );
+		dialog.showDialog();
+		if ( dialog.wasCanceled() )
+		{
+			// Return dummy action.
+			return new TrackMateAction()
+			{
+
+				@Override
+				public void execute( final TrackMate trackmate, final SelectionModel selectionModel, final DisplaySettings displaySettings, final Frame parent )
+				{}
+
+				@Override
+				public void setLogger( final Logger logger )
+				{}
+			};
+		}
+
+		linkingMaxDistance = dialog.getNextNumber();
+		gapClosingMaxDistance = dialog.getNextNumber();
+		maxFrameGap = ( int ) dialog.getNextNumber();
+		return new SlidingWindowLinkingAction( mamut.getFeatureUpdater(), linkingMaxDistance, gapClosingMaxDistance, maxFrameGap );
+	}
+
+	private static final class SlidingWindowLinkingAction implements TrackMateAction
+	{
+
+		private final MamutModelFeatureUpdater featureUpdater;
+
+		private final double linkingMaxDistance;
+
+		private final double gapClosingMaxDistance;
+
+		private final int maxFrameGap;
+
+		private Logger logger = Logger.IJ_LOGGER;
+
+		private SlidingWindowLinkingAction( final MamutModelFeatureUpdater featureUpdater, final double linkingMaxDistance, final double gapClosingMaxDistance, final int maxFrameGap )
+		{
+			this.featureUpdater = featureUpdater;
+			this.linkingMaxDistance = linkingMaxDistance;
+			this.gapClosingMaxDistance = gapClosingMaxDistance;
+			this.maxFrameGap = maxFrameGap;
+		}
+
+		@Override
+		public void execute( final TrackMate trackmate, final SelectionModel selectionModel, final DisplaySettings displaySettings, final Frame parent )
+		{
+			final SlidingWindowLinker linker = new SlidingWindowLinker( trackmate.getModel(), logger );
+			linker.setParameters( linkingMaxDistance, gapClosingMaxDistance, maxFrameGap );
+
+			// Update the features of the new links once, at the end.
+			featureUpdater.beginBatch();
+			try
+			{
+				if ( !linker.checkInput() || !linker.process() )
+					logger.error( linker.getErrorMessage() );
+			}
+			finally
+			{
+				featureUpdater.endBatch();
+			}
+		}
+
+		@Override
+		public void setLogger( final Logger logger )
+		{
+			this.logger = logger;
+		}
+	}
+}
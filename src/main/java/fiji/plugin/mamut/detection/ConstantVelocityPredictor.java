@@ -0,0 +1,151 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.detection;
+
+/**
+ * Predicts the position of a moving spot, assuming it moves at a constant
+ * velocity perturbed by random accelerations.
+ * <p>
+ * This is a Kalman filter on the position and velocity of the spot, run
+ * independently along each axis, with a time step of one frame. Besides the
+ * predicted position, it gives the uncertainty of the prediction, which is
+ * used to size the region where the spot is searched.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class ConstantVelocityPredictor
+{
+
+	private final double[] position;
+
+	private final double[] velocity;
+
+	/** Variance of the position, per axis. */
+	private final double[] pp;
+
+	/** Covariance of the position and the velocity, per axis. */
+	private final double[] pv;
+
+	/** Variance of the velocity, per axis. */
+	private final double[] vv;
+
+	private final double processVariance;
+
+	private final double measurementVariance;
+
+	/**
+	 * Creates a predictor.
+	 *
+	 * @param position
+	 *            the current position of the spot, measured.
+	 * @param velocity
+	 *            the initial guess of the velocity of the spot, in distance
+	 *            units per frame.
+	 * @param velocityStd
+	 *            the standard deviation of the initial velocity guess.
+	 * @param accelerationStd
+	 *            the standard deviation of the velocity changes from one frame
+	 *            to the next.
+	 * @param measurementStd
+	 *            the standard deviation of the measured positions.
+	 */
+	public ConstantVelocityPredictor( final double[] position, final double[] velocity, final double velocityStd, final double accelerationStd, final double measurementStd )
+	{
+		final int n = position.length;
+		this.position = position.clone();
+		this.velocity = velocity.clone();
+		this.pp = new double[ n ];
+		this.pv = new double[ n ];
+		this.vv = new double[ n ];
+		this.processVariance = accelerationStd * accelerationStd;
+		this.measurementVariance = measurementStd * measurementStd;
+		for ( int d = 0; d < n; d++ )
+		{
+			pp[ d ] = measurementVariance;
+			vv[ d ] = velocityStd * velocityStd;
+		}
+	}
+
+	/**
+	 * Moves the state one frame ahead.
+	 *
+	 * @return the predicted position.
+	 */
+	public double[] predict()
+	{
+		for ( int d = 0; d < position.length; d++ )
+		{
+			position[ d ] += velocity[ d ];
+			pp[ d ] += 2 * pv[ d ] + vv[ d ];
+			pv[ d ] += vv[ d ];
+			vv[ d ] += processVariance;
+		}
+		return position.clone();
+	}
+
+	/**
+	 * Corrects the state with the position measured at the current frame.
+	 *
+	 * @param measurement
+	 *            the measured position.
+	 */
+	public void update( final double[] measurement )
+	{
+		for ( int d = 0; d < position.length; d++ )
+		{
+			final double s = pp[ d ] + measurementVariance;
+			final double kp = pp[ d ] / s;
+			final double kv = pv[ d ] / s;
+			final double innovation = measurement[ d ] - position[ d ];
+			position[ d ] += kp * innovation;
+			velocity[ d ] += kv * innovation;
+			vv[ d ] -= kv * pv[ d ];
+			pv[ d ] *= 1 - kp;
+			pp[ d ] *= 1 - kp;
+		}
+	}
+
+	/**
+	 * Returns the position predicted the specified number of frames after the
+	 * current one, without changing the state.
+	 */
+	public double[] peek( final int frames )
+	{
+		final double[] p = new double[ position.length ];
+		for ( int d = 0; d < p.length; d++ )
+			p[ d ] = position[ d ] + frames * velocity[ d ];
+		return p;
+	}
+
+	/**
+	 * Returns the standard deviation of the distance between the current
+	 * predicted position and the position that will be measured, along the
+	 * most uncertain axis.
+	 */
+	public double getUncertainty()
+	{
+		double max = 0.;
+		for ( int d = 0; d < position.length; d++ )
+			max = Math.max( max, pp[ d ] + measurementVariance );
+		return Math.sqrt( max );
+	}
+}
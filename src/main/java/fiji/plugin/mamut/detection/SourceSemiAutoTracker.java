@@ -21,32 +21,56 @@
  */
 package fiji.plugin.mamut.detection;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.scijava.Cancelable;
 
 import bdv.util.Affine3DHelpers;
 import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
+import fiji.plugin.mamut.feature.MamutModelFeatureUpdater;
+import fiji.plugin.mamut.feature.SpotRoiPlanner;
 import fiji.plugin.mamut.feature.spot.SpotSourceIdAnalyzerFactory;
 import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.SelectionModel;
 import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.TrackModel;
+import fiji.plugin.trackmate.detection.LogDetector;
 import fiji.plugin.trackmate.detection.semiauto.AbstractSemiAutoTracker;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.Point;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPoint;
+import net.imglib2.algorithm.Benchmark;
 import net.imglib2.position.transform.Round;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 
 /**
  * A class made to perform semi-automated tracking of spots in MaMuT.
  * <p>
- * The user has to select one spot, one a meaningful location of a source. The
+ * The user has to select one or several spots, on a meaningful location of a
+ * source. For each of them, the
  * spot location and its radius are then used to extract a small rectangular
  * neighborhood in the next frame around the spot. The neighborhood is then
  * passed to a {@link fiji.plugin.trackmate.detection.SpotDetector} that returns
@@ -55,13 +79,45 @@ import net.imglib2.view.Views;
  * linked with the first spot.
  * <p>
  * The process is then repeated, taking the newly found spot as a source for the
- * next neighborhood. The model is updated live for every spot found.
+ * next neighborhood.
+ * <p>
+ * Tracking can also run backward in time (see {@link #setBackward(boolean)}),
+ * to reconstruct the past of a spot. The same pipeline then walks the previous
+ * frames, and the spots found are linked as predecessors.
+ * <p>
+ * The motion of each track is followed with a constant-velocity Kalman filter
+ * ({@link ConstantVelocityPredictor}). The neighborhood is centered on the
+ * predicted location, its size shrinks with the prediction uncertainty, and
+ * the distance tolerance applies to the distance to the prediction. Fast but
+ * steadily moving spots can therefore be tracked with a low tolerance and
+ * small neighborhoods.
+ * <p>
+ * With several views of the same sample, the tracker can also pick, at each
+ * frame, the source in which the spot is best resolved at its predicted
+ * location, instead of always detecting in the source the spot was created
+ * in (see {@link #setViewSelection(boolean, int[], boolean)}).
+ * <p>
+ * While the neighborhood of a frame is searched, the neighborhood of the next
+ * frame is loaded in the background, around the location predicted for it.
+ * This way, loading image data overlaps with detection.
+ * <p>
+ * All the selected spots are tracked concurrently, one frame at a time, on a
+ * worker pool that can be shared with other tasks. At each frame, the
+ * detections of all the tracks are checked against each other: when two
+ * tracks claim the same detection, only the track for which the displacement
+ * is the smallest, relative to the spot radius, keeps it, and the other one
+ * halts. A track also halts when its detection overlaps a spot already in the
+ * model. The spots and links found are staged in a {@link StagedDetections}
+ * buffer, which views can paint as a preview, and are added to the model in a
+ * single update every few frames, or at the end of the run (see
+ * {@link #setCommitInterval(int)}).
  * <p>
  * The process halts when:
  * <ul>
  * <li>no spots of quality high enough are found;
  * <li>spots of high quality are found, but too far from the initial spot;
- * <li>the source has no time-point left.
+ * <li>the source has no time-point left;
+ * <li>another track claimed the same spot.
  * </ul>
  *
  * @param <T>
@@ -71,14 +127,94 @@ import net.imglib2.view.Views;
  *
  * @author Jean-Yves Tinevez - 2013
  */
-public class SourceSemiAutoTracker< T extends RealType< T > & NativeType< T >> extends AbstractSemiAutoTracker< T >
+public class SourceSemiAutoTracker< T extends RealType< T > & NativeType< T >> extends AbstractSemiAutoTracker< T > implements Benchmark, Cancelable
 {
 
 	/** The minimal diameter size, in pixel, under which we stop down-sampling. */
 	private static final double MIN_SPOT_PIXEL_SIZE = 5d;
 
+	/**
+	 * The smallest neighborhood size, in units of the spot radius, used with
+	 * motion prediction.
+	 */
+	private static final double MIN_NEIGHBORHOOD_FACTOR = 2d;
+
+	/**
+	 * How many standard deviations of the prediction uncertainty the
+	 * neighborhood extends beyond its smallest size.
+	 */
+	private static final double PREDICTION_GATE = 3d;
+
+	/**
+	 * How much better than the current source another source must score for
+	 * the tracker to switch to it. Prevents a track from oscillating between
+	 * views of similar quality.
+	 */
+	private static final double VIEW_SWITCH_MARGIN = 1.2;
+
 	private final List< SourceAndConverter< T >> sources;
 
+	/** The pool to run detections on. If <code>null</code>, a pool is created per run. */
+	private ExecutorService executor;
+
+	private double qualityRatio = 0.5;
+
+	private int maxFrames = 10;
+
+	/** 1 to track forward in time, -1 to track backward. */
+	private int direction = 1;
+
+	/** If <code>true</code>, the next search region is loaded ahead. */
+	private boolean lookAhead = true;
+
+	/**
+	 * If <code>true</code>, search regions are centered and sized from the
+	 * predicted motion of the spots.
+	 */
+	private boolean motionPrediction = true;
+
+	/** Loads the search regions of the next frame ahead. */
+	private ExecutorService prefetcher;
+
+	/** If <code>true</code>, the best source is picked at each frame. */
+	private boolean viewSelection = false;
+
+	/**
+	 * The indices of the sources view selection can pick. If
+	 * <code>null</code>, all the sources can be picked.
+	 */
+	private int[] candidateSources;
+
+	/** If <code>true</code>, view selection also weights the local contrast. */
+	private boolean contrastWeighting = false;
+
+	/** The detections found and not yet added to the model. */
+	private StagedDetections staging = new StagedDetections();
+
+	/**
+	 * The number of frames between two commits of the staged detections to
+	 * the model. If 0 or less, they are committed at the end of the run.
+	 */
+	private int commitInterval = 0;
+
+	/** The spots to start from. If <code>null</code>, the selection is used. */
+	private Collection< Spot > initialSpots;
+
+	/** The feature updater to batch each commit with. Can be null. */
+	private MamutModelFeatureUpdater featureUpdater;
+
+	private volatile String cancelReason;
+
+	private volatile int framesProcessed;
+
+	private volatile long processingTime;
+
+	/** When the current run started, in milliseconds, or -1 between runs. */
+	private volatile long runStart = -1l;
+
+	/** Time spent loading image data, in nanoseconds. */
+	private final AtomicLong ioTime = new AtomicLong();
+
 	/*
 	 * CONSTRUCTOR
 	 */
@@ -106,66 +242,681 @@ public class SourceSemiAutoTracker< T extends RealType< T > & NativeType< T >> e
 	}
 
 	@Override
-	protected SearchRegion< T > getNeighborhood( final Spot spot, final int frame )
+	public void setParameters( final double qualityThreshold, final double distanceTolerance, final int nFrames )
 	{
+		super.setParameters( qualityThreshold, distanceTolerance, nFrames );
+		this.qualityRatio = qualityThreshold;
+		this.maxFrames = nFrames;
+	}
 
-		final double radius = spot.getFeature( Spot.RADIUS );
+	/**
+	 * Sets the pool to run detections on. It is not shut down by this
+	 * tracker.
+	 *
+	 * @param executor
+	 *            the pool. If <code>null</code>, a pool with
+	 *            {@link #getNumThreads()} threads is created for each run.
+	 */
+	public void setExecutorService( final ExecutorService executor )
+	{
+		this.executor = executor;
+	}
 
-		/*
-		 * Source, rai and transform
-		 */
+	/**
+	 * Sets whether tracking runs backward in time. If so, the tracker looks
+	 * for the spots preceding the selected ones, in the previous frames, and
+	 * links them as their predecessors.
+	 *
+	 * @param backward
+	 *            if <code>true</code>, tracking runs backward in time.
+	 */
+	public void setBackward( final boolean backward )
+	{
+		this.direction = backward ? -1 : 1;
+	}
 
-		final Double so = spot.getFeature( SpotSourceIdAnalyzerFactory.SOURCE_ID );
-		if ( null == so )
+	public boolean isBackward()
+	{
+		return direction < 0;
+	}
+
+	/**
+	 * Sets whether the search region of the next frame is loaded in the
+	 * background while detecting in the current frame.
+	 *
+	 * @param lookAhead
+	 *            if <code>true</code>, search regions are loaded ahead.
+	 */
+	public void setLookAhead( final boolean lookAhead )
+	{
+		this.lookAhead = lookAhead;
+	}
+
+	/**
+	 * Sets whether search regions are centered on the location predicted
+	 * from the past motion of each track and sized after the prediction
+	 * uncertainty. If not, they are centered on the last spot of the track
+	 * and sized after the distance tolerance.
+	 *
+	 * @param motionPrediction
+	 *            if <code>true</code>, the motion of the spots is predicted.
+	 */
+	public void setMotionPrediction( final boolean motionPrediction )
+	{
+		this.motionPrediction = motionPrediction;
+	}
+
+	/**
+	 * Sets whether the source to detect in is picked again at each frame.
+	 * <p>
+	 * Candidate sources are the ones that have data at the frame and contain
+	 * the predicted location of the spot. They are scored by their resolution
+	 * along their worst axis, optionally weighted by the local contrast of
+	 * the image at the predicted location. The track only switches to another
+	 * source if it scores significantly better than the current one.
+	 *
+	 * @param viewSelection
+	 *            if <code>true</code>, the best source is picked at each
+	 *            frame. Otherwise, the source of the spot to track is used.
+	 * @param candidateSources
+	 *            the indices of the sources that can be picked. Sources
+	 *            imaging different channels should not be mixed. If
+	 *            <code>null</code>, all the sources can be picked.
+	 * @param contrastWeighting
+	 *            if <code>true</code>, the score of a source is also weighted
+	 *            by its local contrast, which requires reading a small region
+	 *            of each candidate source.
+	 */
+	public void setViewSelection( final boolean viewSelection, final int[] candidateSources, final boolean contrastWeighting )
+	{
+		this.viewSelection = viewSelection;
+		this.candidateSources = candidateSources;
+		this.contrastWeighting = contrastWeighting;
+	}
+
+	/**
+	 * Sets how often the detections are added to the model. Each commit
+	 * triggers a model update, hence feature computations and a repaint of
+	 * all the views, so committing seldom is faster.
+	 *
+	 * @param commitInterval
+	 *            the number of frames between two commits. If 0 or less, the
+	 *            detections are committed once, at the end of the run.
+	 */
+	public void setCommitInterval( final int commitInterval )
+	{
+		this.commitInterval = commitInterval;
+	}
+
+	/**
+	 * Sets the buffer the detections are staged in before being added to the
+	 * model.
+	 *
+	 * @param staging
+	 *            the buffer. Should not be shared by concurrent runs.
+	 */
+	public void setStagedDetections( final StagedDetections staging )
+	{
+		this.staging = staging;
+	}
+
+	/**
+	 * Sets the feature updater of the model. Each commit is wrapped in a
+	 * batch of this updater, so that the features of the spots and links
+	 * committed are updated as soon as the commit is done.
+	 *
+	 * @param featureUpdater
+	 *            the feature updater. Can be <code>null</code>.
+	 */
+	public void setFeatureUpdater( final MamutModelFeatureUpdater featureUpdater )
+	{
+		this.featureUpdater = featureUpdater;
+	}
+
+	public StagedDetections getStagedDetections()
+	{
+		return staging;
+	}
+
+	/**
+	 * Sets the spots to start tracking from, instead of the spots selected
+	 * when {@link #process()} is called.
+	 *
+	 * @param initialSpots
+	 *            the spots, or <code>null</code> to use the selection.
+	 */
+	public void setInitialSpots( final Collection< Spot > initialSpots )
+	{
+		this.initialSpots = initialSpots;
+	}
+
+	@Override
+	public boolean process()
+	{
+		final long start = System.currentTimeMillis();
+		runStart = start;
+		framesProcessed = 0;
+		ioTime.set( 0l );
+
+		final List< Spot > initialSpots = new ArrayList<>( null != this.initialSpots
+				? this.initialSpots
+				: selectionModel.getSpotSelection() );
+		if ( initialSpots.isEmpty() )
 		{
-			logger.log( "Spot: " + spot + ": The source index of given spot is not set." );
+			errorMessage = BASE_ERROR_MESSAGE + "No spots in selection.";
+			return false;
+		}
+		selectionModel.clearSelection();
+		ok = true;
+
+		final ExecutorService lExecutor = ( null != executor )
+				? executor
+				: Executors.newFixedThreadPool( Math.max( 1, Math.min( getNumThreads(), initialSpots.size() ) ) );
+		if ( lookAhead )
+			prefetcher = Executors.newFixedThreadPool( Math.max( 1, Math.min( getNumThreads(), initialSpots.size() ) ), r -> {
+				final Thread thread = new Thread( r, "MaMuT semi-automated tracking prefetcher" );
+				thread.setDaemon( true );
+				return thread;
+			} );
+
+		// The motion of each track, indexed by its head.
+		final Map< Spot, ConstantVelocityPredictor > predictors = new HashMap<>( initialSpots.size() );
+		for ( final Spot spot : initialSpots )
+			predictors.put( spot, createPredictor( spot ) );
+
+		final List< Spot > lastSpots = new ArrayList<>( initialSpots.size() );
+		// The searches of the current frame, to cancel them if the run aborts.
+		final Map< Spot, Future< Spot > > futures = new LinkedHashMap<>( initialSpots.size() );
+		try
+		{
+			List< Spot > heads = initialSpots;
+			for ( int i = 0; i < maxFrames && !heads.isEmpty(); i++ )
+			{
+				if ( isCanceled() )
+				{
+					logger.log( "Semi-automated tracking canceled: " + cancelReason + "\n" );
+					break;
+				}
+
+				// Detect the next spot of all the tracks concurrently.
+				futures.clear();
+				for ( final Spot head : heads )
+				{
+					final Prediction prediction = predict( head, predictors.get( head ) );
+					futures.put( head, lExecutor.submit( () -> findNext( head, prediction ) ) );
+				}
+
+				final Map< Spot, Spot > candidates = new LinkedHashMap<>( heads.size() );
+				for ( final Map.Entry< Spot, Future< Spot > > entry : futures.entrySet() )
+				{
+					final Spot candidate = entry.getValue().get();
+					if ( null == candidate )
+						lastSpots.add( entry.getKey() );
+					else
+						candidates.put( entry.getKey(), candidate );
+				}
+
+				lastSpots.addAll( resolveConflicts( candidates ) );
+				staging.stage( candidates );
+				for ( final Map.Entry< Spot, Spot > entry : candidates.entrySet() )
+				{
+					final ConstantVelocityPredictor predictor = predictors.remove( entry.getKey() );
+					predictor.update( position( entry.getValue() ) );
+					predictors.put( entry.getValue(), predictor );
+				}
+				for ( final Spot halted : lastSpots )
+					predictors.remove( halted );
+				heads = new ArrayList<>( candidates.values() );
+				framesProcessed++;
+				logger.setProgress( ( double ) framesProcessed / maxFrames );
+				if ( commitInterval > 0 && framesProcessed % commitInterval == 0 )
+					commit( staging.drain() );
+			}
+			lastSpots.addAll( heads );
+		}
+		catch ( final InterruptedException e )
+		{
+			cancelAll( futures );
+			Thread.currentThread().interrupt();
+			errorMessage = BASE_ERROR_MESSAGE + "Interrupted.";
+			return false;
+		}
+		catch ( final ExecutionException e )
+		{
+			cancelAll( futures );
+			errorMessage = BASE_ERROR_MESSAGE + "Problem while detecting spots: " + e.getCause().getMessage();
+			e.printStackTrace();
+			return false;
+		}
+		finally
+		{
+			// Keep what was found, even if the run was interrupted.
+			commit( staging.drain() );
+			if ( lExecutor != executor )
+				lExecutor.shutdown();
+			if ( null != prefetcher )
+			{
+				// Pending loads are now useless.
+				prefetcher.shutdownNow();
+				prefetcher = null;
+			}
+			logger.setProgress( 0. );
+			processingTime = System.currentTimeMillis() - start;
+			runStart = -1l;
+		}
+
+		// Select the last spot of each track, so that tracking can be resumed.
+		selectionModel.addSpotToSelection( lastSpots );
+		return ok;
+	}
+
+	/**
+	 * Returns the number of frames processed by the current or last run.
+	 */
+	public int getFramesProcessed()
+	{
+		return framesProcessed;
+	}
+
+	/**
+	 * Returns the maximal number of frames a run processes.
+	 */
+	public int getMaxFrames()
+	{
+		return maxFrames;
+	}
+
+	/**
+	 * Returns the time spent loading image data in the last run, in
+	 * milliseconds. Loads run concurrently, so this can exceed the processing
+	 * time.
+	 */
+	public long getIOTime()
+	{
+		return ioTime.get() / 1000000l;
+	}
+
+	/**
+	 * Returns the time spent so far by the current run, or the processing
+	 * time of the last run if none is running, in milliseconds.
+	 */
+	@Override
+	public long getProcessingTime()
+	{
+		final long start = runStart;
+		if ( start >= 0 )
+			return System.currentTimeMillis() - start;
+		return processingTime;
+	}
+
+	@Override
+	public boolean isCanceled()
+	{
+		return null != cancelReason;
+	}
+
+	@Override
+	public void cancel( final String reason )
+	{
+		this.cancelReason = reason;
+	}
+
+	@Override
+	public String getCancelReason()
+	{
+		return cancelReason;
+	}
+
+	/**
+	 * Finds the spot following the specified one, in the next frame, or
+	 * preceding it in the previous frame if tracking backward.
+	 *
+	 * @param spot
+	 *            the spot to find the follower of.
+	 * @param prediction
+	 *            where to search for the follower, and where to load image
+	 *            data ahead.
+	 * @return a new spot, not yet added to the model, or <code>null</code> if
+	 *         no suitable spot could be found.
+	 */
+	private Spot findNext( final Spot spot, final Prediction prediction )
+	{
+		final int frame = spot.getFeature( Spot.FRAME ).intValue();
+		final MamutSearchRegion< T > sn = getNeighborhood( spot, prediction.center, prediction.searchRadius, frame + direction );
+		if ( null == sn )
+			return null;
+
+		if ( null != prefetcher )
+			prefetchNext( spot, prediction, frame + 2 * direction );
+
+		// Load the search region before detection, to time I/O separately.
+		final long ioStart = System.nanoTime();
+		SpotRoiPlanner.prefetch( sn.image, sn.interval );
+		ioTime.addAndGet( System.nanoTime() - ioStart );
+
+		final double radius = spot.getFeature( Spot.RADIUS ).doubleValue();
+		final LogDetector< T > detector = new LogDetector<>( sn.source, sn.interval, sn.calibration, radius, sn.quality * qualityRatio, true, false );
+		detector.setNumThreads( 1 );
+		if ( !detector.checkInput() || !detector.process() )
+		{
+			logger.error( "Spot: " + spot + ": Detection problem: " + detector.getErrorMessage() );
 			return null;
 		}
-		final int sourceIndex = so.intValue();
-		final Source< T > source = sources.get( sourceIndex ).getSpimSource();
 
-		if ( !source.isPresent( frame ) )
+		// The closest detection, within tolerance.
+		final double maxDist2 = distanceTolerance * radius * distanceTolerance * radius;
+		final double[] source = new double[ 3 ];
+		final double[] target = new double[ 3 ];
+		final double[] bestPos = new double[ 3 ];
+		Spot best = null;
+		double bestDist2 = Double.POSITIVE_INFINITY;
+		for ( final Spot detection : detector.getResult() )
 		{
-			logger.log( "Spot: " + spot + ": Target source has exhausted its time points." );
+			detection.localize( source );
+			sn.transform.apply( source, target );
+			double dist2 = 0.;
+			for ( int d = 0; d < 3; d++ )
+			{
+				final double dx = target[ d ] - prediction.center.getDoublePosition( d );
+				dist2 += dx * dx;
+			}
+			if ( dist2 < bestDist2 )
+			{
+				bestDist2 = dist2;
+				best = detection;
+				System.arraycopy( target, 0, bestPos, 0, 3 );
+			}
+		}
+		if ( null == best )
+		{
+			logger.log( "Spot: " + spot + ": No suitable spot found.\n" );
+			return null;
+		}
+		if ( bestDist2 > maxDist2 )
+		{
+			logger.log( "Spot: " + spot + ": Suitable spot found, but outside the tolerance radius.\n" );
 			return null;
 		}
 
-		/*
-		 * Determine optimal level to operate on. We want to exploit the
-		 * possible multi-levels that exist in the source, to go faster. For
-		 * instance, we do not want to detect spot that are larger than 10
-		 * pixels (then we move up by one level), but we do not want to detect
-		 * spots that are smaller than 5 pixels in diameter
-		 */
+		final Spot next = new Spot( bestPos[ 0 ], bestPos[ 1 ], bestPos[ 2 ], radius, best.getFeature( Spot.QUALITY ).doubleValue() );
+		next.putFeature( Spot.FRAME, Double.valueOf( frame + direction ) );
+		exposeSpot( next, spot );
+		next.putFeature( SpotSourceIdAnalyzerFactory.SOURCE_ID, Double.valueOf( sn.sourceIndex ) );
+		return next;
+	}
 
-		int level = 0;
-		while ( level < source.getNumMipmapLevels() - 1 )
+	/**
+	 * Stops the searches that are still pending or running, so that they do
+	 * not keep the shared executor busy after the run ended.
+	 */
+	private static void cancelAll( final Map< Spot, Future< Spot > > futures )
+	{
+		for ( final Future< Spot > future : futures.values() )
+			future.cancel( true );
+	}
+
+	/**
+	 * Loads in the background the search region the follower of the
+	 * specified spot will have at the specified frame.
+	 */
+	private void prefetchNext( final Spot spot, final Prediction prediction, final int frame )
+	{
+		final int sourceIndex = selectSource( spot, prediction.lookAhead, frame );
+		if ( sourceIndex < 0 )
+			return;
+
+		final MamutSearchRegion< T > next = getNeighborhood( spot, sourceIndex, prediction.lookAhead, prediction.searchRadius, frame );
+		if ( null == next )
+			return;
+		try
 		{
+			prefetcher.execute( () -> SpotRoiPlanner.prefetch( next.image, next.interval ) );
+		}
+		catch ( final RejectedExecutionException e )
+		{
+			// The run ended in the meantime.
+		}
+	}
 
-			/*
-			 * Scan all axes. The "worst" one is the one with the largest scale.
-			 * If at this scale the spot is too small, then we stop.
-			 */
+	/**
+	 * Predicts where to search for the follower of the specified track head.
+	 */
+	private Prediction predict( final Spot head, final ConstantVelocityPredictor predictor )
+	{
+		final double radius = head.getFeature( Spot.RADIUS ).doubleValue();
+		final double maxSearchRadius = Math.max( NEIGHBORHOOD_FACTOR, distanceTolerance + 1 ) * radius;
+		final double[] predicted = predictor.predict();
+		final Prediction prediction = new Prediction();
+		prediction.lookAhead = new RealPoint( predictor.peek( 1 ) );
+		if ( motionPrediction )
+		{
+			prediction.center = new RealPoint( predicted );
+			prediction.searchRadius = Math.min( maxSearchRadius,
+					MIN_NEIGHBORHOOD_FACTOR * radius + PREDICTION_GATE * predictor.getUncertainty() );
+		}
+		else
+		{
+			prediction.center = new RealPoint( head );
+			prediction.searchRadius = maxSearchRadius;
+		}
+		return prediction;
+	}
 
-			final AffineTransform3D sourceToGlobal = new AffineTransform3D();
-			source.getSourceTransform( frame, level, sourceToGlobal );
-			double scale = Affine3DHelpers.extractScale( sourceToGlobal, 0 );
-			for ( int axis = 1; axis < sourceToGlobal.numDimensions(); axis++ )
+	/**
+	 * Creates the motion model of the track ending with the specified spot.
+	 * The initial velocity is the last displacement of the spot, if it has a
+	 * predecessor in the model. Otherwise it is unknown, and the first search
+	 * region is as large as the distance tolerance requires.
+	 */
+	private ConstantVelocityPredictor createPredictor( final Spot spot )
+	{
+		final double radius = spot.getFeature( Spot.RADIUS ).doubleValue();
+		final double[] velocity = lastDisplacement( spot );
+		final double velocityStd = ( null == velocity ) ? distanceTolerance * radius : radius;
+		return new ConstantVelocityPredictor( position( spot ), null == velocity ? new double[ 3 ] : velocity,
+				velocityStd, 0.5 * radius, 0.25 * radius );
+	}
+
+	/**
+	 * Returns the displacement of the specified spot since its predecessor
+	 * in the model, or <code>null</code> if it has none. When tracking
+	 * backward, the successor is used instead, so that the displacement is
+	 * along the tracking direction.
+	 */
+	private double[] lastDisplacement( final Spot spot )
+	{
+		final int frame = spot.getFeature( Spot.FRAME ).intValue();
+		final TrackModel trackModel = model.getTrackModel();
+		if ( trackModel.vertexSet().contains( spot ) )
+		{
+			for ( final DefaultWeightedEdge edge : trackModel.edgesOf( spot ) )
 			{
-				final double sc = Affine3DHelpers.extractScale( sourceToGlobal, axis );
-				if ( sc > scale )
+				Spot other = trackModel.getEdgeSource( edge );
+				if ( other == spot )
+					other = trackModel.getEdgeTarget( edge );
+				if ( other.getFeature( Spot.FRAME ).intValue() == frame - direction )
 				{
-					scale = sc;
+					final double[] d = position( spot );
+					for ( int i = 0; i < 3; i++ )
+						d[ i ] -= other.getDoublePosition( i );
+					return d;
 				}
 			}
+		}
+		return null;
+	}
 
-			final double diameterInPix = 2 * radius / scale;
-			if ( diameterInPix < MIN_SPOT_PIXEL_SIZE )
+	private static double[] position( final Spot spot )
+	{
+		final double[] pos = new double[ 3 ];
+		spot.localize( pos );
+		return pos;
+	}
+
+	/**
+	 * Removes from the specified candidates the ones that are claimed by
+	 * several tracks, or that overlap a spot already in the model.
+	 *
+	 * @param candidates
+	 *            the candidate of each track, indexed by the track head.
+	 *            Modified by this method.
+	 * @return the heads of the tracks that halted.
+	 */
+	private List< Spot > resolveConflicts( final Map< Spot, Spot > candidates )
+	{
+		final List< Spot > halted = new ArrayList<>();
+
+		// Tracks claiming the same spot: keep the smallest displacement.
+		final List< Map.Entry< Spot, Spot > > entries = new ArrayList<>( candidates.entrySet() );
+		entries.sort( ( e1, e2 ) -> Double.compare( relativeDisplacement( e1 ), relativeDisplacement( e2 ) ) );
+		final List< Spot > claimed = new ArrayList<>( entries.size() );
+		for ( final Map.Entry< Spot, Spot > entry : entries )
+		{
+			final Spot candidate = entry.getValue();
+			Spot owner = null;
+			for ( final Spot other : claimed )
 			{
-				break;
+				if ( overlap( candidate, other ) )
+				{
+					owner = other;
+					break;
+				}
 			}
-			level++;
+			if ( null == owner )
+			{
+				claimed.add( candidate );
+				continue;
+			}
+			logger.log( "Spot: " + entry.getKey() + ": Spot found is claimed by another track.\n" );
+			candidates.remove( entry.getKey() );
+			halted.add( entry.getKey() );
+		}
+
+		// Spots already in the model, or staged.
+		for ( final Iterator< Map.Entry< Spot, Spot > > it = candidates.entrySet().iterator(); it.hasNext(); )
+		{
+			final Map.Entry< Spot, Spot > entry = it.next();
+			final Spot candidate = entry.getValue();
+			final int frame = candidate.getFeature( Spot.FRAME ).intValue();
+			Spot existing = model.getSpots().getClosestSpot( candidate, frame, false );
+			if ( null == existing || !overlap( candidate, existing ) )
+			{
+				existing = null;
+				for ( final Spot staged : staging.getSpots( frame ) )
+				{
+					if ( overlap( candidate, staged ) )
+					{
+						existing = staged;
+						break;
+					}
+				}
+			}
+			if ( null != existing )
+			{
+				logger.log( "Spot: " + entry.getKey() + ": Spot found overlaps existing spot " + existing + ".\n" );
+				it.remove();
+				halted.add( entry.getKey() );
+			}
+		}
+		return halted;
+	}
+
+	private static double relativeDisplacement( final Map.Entry< Spot, Spot > entry )
+	{
+		final Spot head = entry.getKey();
+		return Math.sqrt( head.squareDistanceTo( entry.getValue() ) ) / head.getFeature( Spot.RADIUS ).doubleValue();
+	}
+
+	/**
+	 * Returns <code>true</code> if the center of one spot lies inside the
+	 * other.
+	 */
+	private static boolean overlap( final Spot s1, final Spot s2 )
+	{
+		final double r = Math.max( s1.getFeature( Spot.RADIUS ).doubleValue(), s2.getFeature( Spot.RADIUS ).doubleValue() );
+		return s1.squareDistanceTo( s2 ) < r * r;
+	}
+
+	/**
+	 * Adds the specified candidates to the model and links them to their
+	 * track heads, in a single model update. Links always go forward in time.
+	 */
+	private void commit( final Map< Spot, Spot > candidates )
+	{
+		if ( candidates.isEmpty() )
+			return;
+
+		if ( null != featureUpdater )
+			featureUpdater.beginBatch();
+		model.beginUpdate();
+		try
+		{
+			for ( final Map.Entry< Spot, Spot > entry : candidates.entrySet() )
+			{
+				final Spot head = entry.getKey();
+				final Spot candidate = entry.getValue();
+				model.addSpotTo( candidate, Integer.valueOf( candidate.getFeature( Spot.FRAME ).intValue() ) );
+				if ( direction > 0 )
+					model.addEdge( head, candidate, head.squareDistanceTo( candidate ) );
+				else
+					model.addEdge( candidate, head, head.squareDistanceTo( candidate ) );
+			}
+		}
+		finally
+		{
+			model.endUpdate();
+			if ( null != featureUpdater )
+				featureUpdater.endBatch();
+		}
+	}
+
+	@Override
+	protected MamutSearchRegion< T > getNeighborhood( final Spot spot, final int frame )
+	{
+		final double radius = spot.getFeature( Spot.RADIUS );
+		return getNeighborhood( spot, spot, Math.max( NEIGHBORHOOD_FACTOR, distanceTolerance + 1 ) * radius, frame );
+	}
+
+	/**
+	 * Returns the search region for the follower of the specified spot,
+	 * centered on the specified location and extending the specified distance
+	 * around it.
+	 */
+	private MamutSearchRegion< T > getNeighborhood( final Spot spot, final RealLocalizable center, final double searchRadius, final int frame )
+	{
+		final Double so = spot.getFeature( SpotSourceIdAnalyzerFactory.SOURCE_ID );
+		if ( null == so )
+		{
+			logger.log( "Spot: " + spot + ": The source index of given spot is not set." );
+			return null;
+		}
+		final int sourceIndex = selectSource( spot, center, frame );
+		if ( sourceIndex < 0 )
+		{
+			logger.log( "Spot: " + spot + ": Target source has exhausted its time points." );
+			return null;
 		}
+		return getNeighborhood( spot, sourceIndex, center, searchRadius, frame );
+	}
+
+	/**
+	 * Returns the search region for the follower of the specified spot in the
+	 * specified source, already selected by
+	 * {@link #selectSource(Spot, RealLocalizable, int)}, centered on the
+	 * specified location.
+	 */
+	private MamutSearchRegion< T > getNeighborhood( final Spot spot, final int sourceIndex, final RealLocalizable center, final double searchRadius, final int frame )
+	{
+
+		final double radius = spot.getFeature( Spot.RADIUS );
+
+		/*
+		 * Source, rai and transform
+		 */
+
+		final Source< T > source = sources.get( sourceIndex ).getSpimSource();
+
+		final int level = selectLevel( source, frame, radius );
 
 		final AffineTransform3D sourceToGlobal = new AffineTransform3D();
 		source.getSourceTransform( frame, level, sourceToGlobal );
@@ -191,15 +942,13 @@ public class SourceSemiAutoTracker< T extends RealType< T > & NativeType< T >> e
 		 * Extract source coords
 		 */
 
-		final double neighborhoodFactor = Math.max( NEIGHBORHOOD_FACTOR, distanceTolerance + 1 );
-
 		final Point roundedSourcePos = new Point( 3 );
-		sourceToGlobal.applyInverse( new Round<>( roundedSourcePos ), spot );
+		sourceToGlobal.applyInverse( new Round<>( roundedSourcePos ), center );
 		final long x = roundedSourcePos.getLongPosition( 0 );
 		final long y = roundedSourcePos.getLongPosition( 1 );
 		final long z = roundedSourcePos.getLongPosition( 2 );
-		final long r = ( long ) Math.ceil( neighborhoodFactor * radius / dx );
-		final long rz = ( long ) Math.ceil( neighborhoodFactor * radius / dz );
+		final long r = ( long ) Math.ceil( searchRadius / dx );
+		final long rz = ( long ) Math.ceil( searchRadius / dz );
 
 		/*
 		 * Ensure quality
@@ -212,8 +961,9 @@ public class SourceSemiAutoTracker< T extends RealType< T > & NativeType< T >> e
 			logger.error( "Spot: " + spot + " Bad spot: has a null QUALITY feature." );
 			return null;
 		}
-		double quality = qf.doubleValue();
-		if ( quality < 0 )
+		// The quality of a spot found in another source is not comparable.
+		double quality = ( sourceIndex == so.intValue() ) ? qf.doubleValue() : -1.;
+		if ( quality < 0 && Intervals.contains( rai, roundedSourcePos ) )
 		{
 			final RandomAccess< T > ra = rai.randomAccess();
 			ra.setPosition( roundedSourcePos );
@@ -239,6 +989,8 @@ public class SourceSemiAutoTracker< T extends RealType< T > & NativeType< T >> e
 		final long[] min = new long[] { x0, y0, z0 };
 		final long[] max = new long[] { x1, y1, z1 };
 
+		if ( x0 > x1 || y0 > y1 || z0 > z1 )
+			return null;
 		final Interval interval = new FinalInterval( min, max );
 
 		final double[] cal = new double[] { dx, dy, dz };
@@ -260,14 +1012,158 @@ public class SourceSemiAutoTracker< T extends RealType< T > & NativeType< T >> e
 		}
 		final AffineTransform3D transform = sourceToGlobal.copy().concatenate( scale );
 
-		final SearchRegion< T > sn = new SearchRegion<>();
+		final MamutSearchRegion< T > sn = new MamutSearchRegion<>();
 		sn.source = Views.dropSingletonDimensions( rai );
 		sn.interval = interval;
 		sn.transform = transform;
 		sn.calibration = calibration;
+		sn.quality = quality;
+		sn.image = rai;
+		sn.sourceIndex = sourceIndex;
 		return sn;
 	}
 
+	/**
+	 * Returns the index of the source to search the follower of the specified
+	 * spot in, or -1 if no source has data at the specified frame.
+	 */
+	private int selectSource( final Spot spot, final RealLocalizable center, final int frame )
+	{
+		if ( frame < 0 )
+			return -1;
+		final int current = spot.getFeature( SpotSourceIdAnalyzerFactory.SOURCE_ID ).intValue();
+		if ( !viewSelection )
+			return sources.get( current ).getSpimSource().isPresent( frame ) ? current : -1;
+
+		final double radius = spot.getFeature( Spot.RADIUS ).doubleValue();
+		int best = -1;
+		double bestScore = 0.;
+		double currentScore = 0.;
+		final int nCandidates = ( null == candidateSources ) ? sources.size() : candidateSources.length;
+		for ( int i = 0; i < nCandidates; i++ )
+		{
+			final int index = ( null == candidateSources ) ? i : candidateSources[ i ];
+			final double score = scoreSource( sources.get( index ).getSpimSource(), center, radius, frame );
+			if ( index == current )
+				currentScore = score;
+			if ( score > bestScore )
+			{
+				bestScore = score;
+				best = index;
+			}
+		}
+		if ( currentScore > 0 && bestScore < VIEW_SWITCH_MARGIN * currentScore )
+			return current;
+		return best;
+	}
+
+	/**
+	 * Scores how well the specified source images the specified location. The
+	 * score is 0 if the source has no data there, otherwise it is the inverse
+	 * of the pixel size along the worst axis, optionally weighted by the local
+	 * contrast.
+	 */
+	private double scoreSource( final Source< T > source, final RealLocalizable center, final double radius, final int frame )
+	{
+		if ( !source.isPresent( frame ) )
+			return 0.;
+
+		final AffineTransform3D sourceToGlobal = new AffineTransform3D();
+		source.getSourceTransform( frame, 0, sourceToGlobal );
+		final RealPoint pos = new RealPoint( 3 );
+		sourceToGlobal.applyInverse( pos, center );
+		final RandomAccessibleInterval< T > rai = source.getSource( frame, 0 );
+		for ( int d = 0; d < 3; d++ )
+			if ( pos.getDoublePosition( d ) < rai.min( d ) || pos.getDoublePosition( d ) > rai.max( d ) )
+				return 0.;
+
+		final double score = 1. / worstScale( sourceToGlobal );
+		if ( !contrastWeighting )
+			return score;
+		return score * ( 1. + localContrast( source, center, radius, frame ) );
+	}
+
+	/**
+	 * Returns the coefficient of variation of the pixel values around the
+	 * specified location, read on the coarsest level that resolves the spot.
+	 */
+	private double localContrast( final Source< T > source, final RealLocalizable center, final double radius, final int frame )
+	{
+		final int level = selectLevel( source, frame, radius );
+		final AffineTransform3D sourceToGlobal = new AffineTransform3D();
+		source.getSourceTransform( frame, level, sourceToGlobal );
+		final RandomAccessibleInterval< T > rai = source.getSource( frame, level );
+
+		final Point pos = new Point( 3 );
+		sourceToGlobal.applyInverse( new Round<>( pos ), center );
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+		for ( int d = 0; d < 3; d++ )
+		{
+			final long r = ( long ) Math.ceil( radius / Affine3DHelpers.extractScale( sourceToGlobal, d ) );
+			min[ d ] = Math.max( rai.min( d ), pos.getLongPosition( d ) - r );
+			max[ d ] = Math.min( rai.max( d ), pos.getLongPosition( d ) + r );
+			if ( min[ d ] > max[ d ] )
+				return 0.;
+		}
+
+		double sum = 0.;
+		double sum2 = 0.;
+		long n = 0;
+		for ( final T t : Views.interval( rai, min, max ) )
+		{
+			final double val = t.getRealDouble();
+			sum += val;
+			sum2 += val * val;
+			n++;
+		}
+		final double mean = sum / n;
+		if ( mean <= 0. )
+			return 0.;
+		final double variance = Math.max( 0., sum2 / n - mean * mean );
+		return Math.sqrt( variance ) / mean;
+	}
+
+	/**
+	 * Determines the optimal level to operate on. We want to exploit the
+	 * possible multi-levels that exist in the source, to go faster. For
+	 * instance, we do not want to detect spot that are larger than 10 pixels
+	 * (then we move up by one level), but we do not want to detect spots that
+	 * are smaller than 5 pixels in diameter.
+	 */
+	static int selectLevel( final Source< ? > source, final int frame, final double radius )
+	{
+		int level = 0;
+		while ( level < source.getNumMipmapLevels() - 1 )
+		{
+			/*
+			 * Scan all axes. The "worst" one is the one with the largest scale.
+			 * If at this scale the spot is too small, then we stop.
+			 */
+
+			final AffineTransform3D sourceToGlobal = new AffineTransform3D();
+			source.getSourceTransform( frame, level, sourceToGlobal );
+			final double diameterInPix = 2 * radius / worstScale( sourceToGlobal );
+			if ( diameterInPix < MIN_SPOT_PIXEL_SIZE )
+			{
+				break;
+			}
+			level++;
+		}
+		return level;
+	}
+
+	/**
+	 * Returns the largest pixel size of the specified source transform.
+	 */
+	private static double worstScale( final AffineTransform3D sourceToGlobal )
+	{
+		double scale = Affine3DHelpers.extractScale( sourceToGlobal, 0 );
+		for ( int axis = 1; axis < sourceToGlobal.numDimensions(); axis++ )
+			scale = Math.max( scale, Affine3DHelpers.extractScale( sourceToGlobal, axis ) );
+		return scale;
+	}
+
 	@Override
 	protected void exposeSpot( final Spot newSpot, final Spot previousSpot )
 	{
@@ -276,4 +1172,34 @@ public class SourceSemiAutoTracker< T extends RealType< T > & NativeType< T >> e
 		final Double sourceIndex = previousSpot.getFeature( SpotSourceIdAnalyzerFactory.SOURCE_ID );
 		newSpot.putFeature( SpotSourceIdAnalyzerFactory.SOURCE_ID, sourceIndex );
 	}
+
+	/**
+	 * Where to search for the follower of a track head.
+	 */
+	private static final class Prediction
+	{
+		/** The predicted location of the follower. */
+		private RealLocalizable center;
+
+		/** How far around the center to search. */
+		private double searchRadius;
+
+		/** The predicted location of the follower of the follower. */
+		private RealLocalizable lookAhead;
+	}
+
+	/**
+	 * A search region that also stores the quality of the spot it was built
+	 * for, to derive the detection threshold from.
+	 */
+	protected static class MamutSearchRegion< R > extends SearchRegion< R >
+	{
+		public double quality;
+
+		/** The source image the search region lies in. */
+		public RandomAccessibleInterval< R > image;
+
+		/** The index of the source the search region lies in. */
+		public int sourceIndex;
+	}
 }
@@ -0,0 +1,490 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.detection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.scijava.Cancelable;
+
+import bdv.util.Affine3DHelpers;
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import fiji.plugin.mamut.feature.spot.SpotSourceIdAnalyzerFactory;
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.detection.DogDetector;
+import fiji.plugin.trackmate.detection.LogDetector;
+import fiji.plugin.trackmate.detection.SpotDetector;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.Algorithm;
+import net.imglib2.algorithm.Benchmark;
+import net.imglib2.algorithm.MultiThreaded;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Detects spots over whole frames of a MaMuT source, with a TrackMate LoG or
+ * DoG detector, and adds them to the model.
+ * <p>
+ * Each frame is read at a single mipmap level, picked from the spot radius
+ * like for semi-automated tracking unless specified. It is tiled in cubic
+ * blocks, processed in parallel. Each block is extended by a halo larger
+ * than the detector support, so that the detections in the block core are
+ * the same as on the whole volume. A detection is kept only by the block
+ * whose core contains it, which removes the duplicates found in the halos.
+ * <p>
+ * Frames are processed one after the other, and the spots of each frame are
+ * added to the model in a single update when the frame is done, so the
+ * detections can be inspected while the next frames are processed. A frame
+ * interrupted by a cancel request is discarded.
+ *
+ * @param <T>
+ *            the pixel type of the sources.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class SourceSpotDetector< T extends RealType< T > & NativeType< T > > implements Algorithm, Benchmark, MultiThreaded, Cancelable
+{
+
+	private static final String BASE_ERROR_MSG = "[SourceSpotDetector] ";
+
+	public static final int DEFAULT_BLOCK_SIZE = 128;
+
+	/**
+	 * Size of the halo around each block, in units of the spot radius. The
+	 * LoG and DoG kernels extend about 1.7 radius.
+	 */
+	private static final double HALO_FACTOR = 2.;
+
+	private final Model model;
+
+	private final List< SourceAndConverter< T > > sources;
+
+	private final int nFrames;
+
+	private final Logger logger;
+
+	private int sourceIndex = 0;
+
+	private double radius = 5.;
+
+	private double threshold = 0.;
+
+	private boolean useDoG = false;
+
+	private boolean doSubPixelLocalization = true;
+
+	private boolean doMedianFilter = false;
+
+	/** The mipmap level to detect on, or -1 to pick it from the radius. */
+	private int level = -1;
+
+	private int blockSize = DEFAULT_BLOCK_SIZE;
+
+	private int firstFrame = 0;
+
+	private int lastFrame = Integer.MAX_VALUE;
+
+	private ExecutorService executor;
+
+	private int numThreads;
+
+	private String errorMessage;
+
+	private long processingTime;
+
+	private volatile String cancelReason;
+
+	private int nSpotsFound;
+
+	/**
+	 * Creates a detector.
+	 *
+	 * @param model
+	 *            the model to add the spots to.
+	 * @param sources
+	 *            the MaMuT sources.
+	 * @param nFrames
+	 *            the number of frames of the sources.
+	 * @param logger
+	 *            the logger to report progress to.
+	 */
+	public SourceSpotDetector( final Model model, final List< SourceAndConverter< T > > sources, final int nFrames, final Logger logger )
+	{
+		this.model = model;
+		this.sources = sources;
+		this.nFrames = nFrames;
+		this.logger = logger;
+		setNumThreads();
+	}
+
+	/**
+	 * Sets the index of the source to detect in.
+	 */
+	public void setSource( final int sourceIndex )
+	{
+		this.sourceIndex = sourceIndex;
+	}
+
+	/**
+	 * Sets the detector parameters.
+	 *
+	 * @param radius
+	 *            the expected spot radius, in physical units.
+	 * @param threshold
+	 *            the quality threshold under which detections are discarded.
+	 * @param useDoG
+	 *            if <code>true</code>, the DoG detector is used instead of the
+	 *            LoG detector.
+	 * @param doSubPixelLocalization
+	 *            whether to refine spot positions to sub-pixel accuracy.
+	 * @param doMedianFilter
+	 *            whether to median-filter the image before detection.
+	 */
+	public void setDetectorParameters( final double radius, final double threshold, final boolean useDoG, final boolean doSubPixelLocalization, final boolean doMedianFilter )
+	{
+		this.radius = radius;
+		this.threshold = threshold;
+		this.useDoG = useDoG;
+		this.doSubPixelLocalization = doSubPixelLocalization;
+		this.doMedianFilter = doMedianFilter;
+	}
+
+	/**
+	 * Sets the mipmap level to detect on.
+	 *
+	 * @param level
+	 *            the level, or -1 to pick the coarsest level on which the
+	 *            spots are still well resolved.
+	 */
+	public void setLevel( final int level )
+	{
+		this.level = level;
+	}
+
+	/**
+	 * Sets the size of the blocks the frames are tiled in, in pixels, halo
+	 * excluded.
+	 */
+	public void setBlockSize( final int blockSize )
+	{
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Sets the range of frames to detect in, inclusive.
+	 */
+	public void setFrameRange( final int firstFrame, final int lastFrame )
+	{
+		this.firstFrame = firstFrame;
+		this.lastFrame = lastFrame;
+	}
+
+	/**
+	 * Sets the pool to process the blocks on. It is not shut down by this
+	 * detector.
+	 *
+	 * @param executor
+	 *            the pool. If <code>null</code>, a pool with
+	 *            {@link #getNumThreads()} threads is created for each run.
+	 */
+	public void setExecutorService( final ExecutorService executor )
+	{
+		this.executor = executor;
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( null == model )
+		{
+			errorMessage = BASE_ERROR_MSG + "The model is null.\n";
+			return false;
+		}
+		if ( null == sources || sourceIndex < 0 || sourceIndex >= sources.size() )
+		{
+			errorMessage = BASE_ERROR_MSG + "Invalid source index: " + sourceIndex + ".\n";
+			return false;
+		}
+		if ( radius <= 0 )
+		{
+			errorMessage = BASE_ERROR_MSG + "The spot radius must be strictly positive.\n";
+			return false;
+		}
+		if ( blockSize < 1 )
+		{
+			errorMessage = BASE_ERROR_MSG + "The block size must be strictly positive.\n";
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean process()
+	{
+		final long start = System.currentTimeMillis();
+		cancelReason = null;
+		nSpotsFound = 0;
+		final Source< T > source = sources.get( sourceIndex ).getSpimSource();
+		final ExecutorService lExecutor = ( null != executor ) ? executor : Executors.newFixedThreadPool( numThreads );
+		final int tmin = Math.max( 0, firstFrame );
+		final int tmax = Math.min( nFrames - 1, lastFrame );
+		try
+		{
+			logger.setStatus( "Detecting spots" );
+			for ( int frame = tmin; frame <= tmax; frame++ )
+			{
+				if ( isCanceled() )
+				{
+					logger.log( "Canceled before frame " + frame + ": " + cancelReason + "\n" );
+					break;
+				}
+				if ( !source.isPresent( frame ) )
+					continue;
+
+				final long frameStart = System.currentTimeMillis();
+				final List< Spot > spots = detect( source, frame, lExecutor );
+
+				// Blocks skipped after a cancel leave the frame incomplete.
+				if ( isCanceled() )
+				{
+					logger.log( "Canceled during frame " + frame + ", its detections are discarded: " + cancelReason + "\n" );
+					break;
+				}
+
+				model.beginUpdate();
+				try
+				{
+					for ( final Spot spot : spots )
+						model.addSpotTo( spot, Integer.valueOf( frame ) );
+				}
+				finally
+				{
+					model.endUpdate();
+				}
+				nSpotsFound += spots.size();
+				logger.log( String.format( "Frame %d: %d spots in %.1f s.\n", frame, spots.size(), ( System.currentTimeMillis() - frameStart ) / 1000. ) );
+				logger.setProgress( ( double ) ( frame - tmin + 1 ) / ( tmax - tmin + 1 ) );
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			errorMessage = BASE_ERROR_MSG + "Interrupted.\n";
+			return false;
+		}
+		catch ( final ExecutionException e )
+		{
+			errorMessage = BASE_ERROR_MSG + "Problem while detecting spots: " + e.getCause().getMessage() + "\n";
+			e.printStackTrace();
+			return false;
+		}
+		finally
+		{
+			if ( lExecutor != executor )
+				lExecutor.shutdownNow();
+			logger.setProgress( 0. );
+			logger.setStatus( "" );
+			processingTime = System.currentTimeMillis() - start;
+		}
+		logger.log( String.format( "Found %d spots in %.1f s.\n", nSpotsFound, processingTime / 1000. ) );
+		return true;
+	}
+
+	/**
+	 * Detects the spots of one frame, block by block.
+	 */
+	private List< Spot > detect( final Source< T > source, final int frame, final ExecutorService lExecutor ) throws InterruptedException, ExecutionException
+	{
+		final int l = ( level < 0 )
+				? SourceSemiAutoTracker.selectLevel( source, frame, radius )
+				: Math.min( level, source.getNumMipmapLevels() - 1 );
+		final RandomAccessibleInterval< T > rai = source.getSource( frame, l );
+		final AffineTransform3D sourceToGlobal = new AffineTransform3D();
+		source.getSourceTransform( frame, l, sourceToGlobal );
+
+		final double[] calibration = new double[ 3 ];
+		final long[] halo = new long[ 3 ];
+		final long[] nBlocks = new long[ 3 ];
+		for ( int d = 0; d < 3; d++ )
+		{
+			calibration[ d ] = Affine3DHelpers.extractScale( sourceToGlobal, d );
+			halo[ d ] = ( long ) Math.ceil( HALO_FACTOR * radius / calibration[ d ] ) + 1;
+			nBlocks[ d ] = ( rai.dimension( d ) + blockSize - 1 ) / blockSize;
+		}
+
+		// From detector coordinates (calibrated source pixels) to global.
+		final AffineTransform3D toGlobal = sourceToGlobal.copy();
+		final AffineTransform3D scale = new AffineTransform3D();
+		for ( int d = 0; d < 3; d++ )
+			scale.set( 1. / calibration[ d ], d, d );
+		toGlobal.concatenate( scale );
+
+		final List< Future< List< Spot > > > futures = new ArrayList<>();
+		final long[] coreMin = new long[ 3 ];
+		final long[] coreMax = new long[ 3 ];
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+		for ( long bz = 0; bz < nBlocks[ 2 ]; bz++ )
+		{
+			for ( long by = 0; by < nBlocks[ 1 ]; by++ )
+			{
+				for ( long bx = 0; bx < nBlocks[ 0 ]; bx++ )
+				{
+					final long[] b = new long[] { bx, by, bz };
+					for ( int d = 0; d < 3; d++ )
+					{
+						coreMin[ d ] = rai.min( d ) + b[ d ] * blockSize;
+						coreMax[ d ] = Math.min( rai.max( d ), coreMin[ d ] + blockSize - 1 );
+						min[ d ] = Math.max( rai.min( d ), coreMin[ d ] - halo[ d ] );
+						max[ d ] = Math.min( rai.max( d ), coreMax[ d ] + halo[ d ] );
+					}
+					final Interval core = new FinalInterval( coreMin, coreMax );
+					final Interval block = new FinalInterval( min, max );
+					futures.add( lExecutor.submit( () -> detectBlock( rai, block, core, calibration, toGlobal, frame ) ) );
+				}
+			}
+		}
+
+		final List< Spot > spots = new ArrayList<>();
+		try
+		{
+			for ( final Future< List< Spot > > future : futures )
+				spots.addAll( future.get() );
+		}
+		finally
+		{
+			for ( final Future< List< Spot > > future : futures )
+				future.cancel( true );
+		}
+		return spots;
+	}
+
+	/**
+	 * Detects the spots of one block, and returns the ones in its core.
+	 */
+	private List< Spot > detectBlock( final RandomAccessibleInterval< T > rai, final Interval block, final Interval core, final double[] calibration, final AffineTransform3D toGlobal, final int frame )
+	{
+		if ( isCanceled() )
+			return new ArrayList<>();
+
+		final SpotDetector< T > detector = useDoG
+				? new DogDetector<>( rai, block, calibration, radius, threshold, doSubPixelLocalization, doMedianFilter )
+				: new LogDetector<>( rai, block, calibration, radius, threshold, doSubPixelLocalization, doMedianFilter );
+		if ( detector instanceof MultiThreaded )
+			( ( MultiThreaded ) detector ).setNumThreads( 1 );
+		if ( !detector.checkInput() || !detector.process() )
+			throw new RuntimeException( detector.getErrorMessage() );
+
+		final double[] pos = new double[ 3 ];
+		final double[] global = new double[ 3 ];
+		final List< Spot > spots = new ArrayList<>();
+		final Double sourceId = Double.valueOf( sourceIndex );
+		final Double frameValue = Double.valueOf( frame );
+		for ( final Spot detection : detector.getResult() )
+		{
+			detection.localize( pos );
+
+			// Only keep the detections of the block core.
+			boolean inCore = true;
+			for ( int d = 0; d < 3 && inCore; d++ )
+			{
+				final long p = Math.round( pos[ d ] / calibration[ d ] );
+				inCore = p >= core.min( d ) && p <= core.max( d );
+			}
+			if ( !inCore )
+				continue;
+
+			toGlobal.apply( pos, global );
+			final Spot spot = new Spot( global[ 0 ], global[ 1 ], global[ 2 ], radius, detection.getFeature( Spot.QUALITY ).doubleValue() );
+			spot.putFeature( Spot.FRAME, frameValue );
+			spot.putFeature( SpotSourceIdAnalyzerFactory.SOURCE_ID, sourceId );
+			spots.add( spot );
+		}
+		return spots;
+	}
+
+	/**
+	 * Returns the number of spots found by the last run.
+	 */
+	public int getNSpotsFound()
+	{
+		return nSpotsFound;
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	@Override
+	public long getProcessingTime()
+	{
+		return processingTime;
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = Runtime.getRuntime().availableProcessors();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	@Override
+	public boolean isCanceled()
+	{
+		return null != cancelReason;
+	}
+
+	@Override
+	public void cancel( final String reason )
+	{
+		this.cancelReason = reason;
+	}
+
+	@Override
+	public String getCancelReason()
+	{
+		return cancelReason;
+	}
+}
@@ -0,0 +1,144 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.detection;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.scijava.listeners.Listeners;
+
+import fiji.plugin.trackmate.Spot;
+
+/**
+ * The spots and links found by a semi-automated tracking run, not yet added
+ * to the model.
+ * <p>
+ * The tracker stages its detections here and commits them to the model in
+ * batches. Views can paint the staged detections as a preview, and are
+ * notified through {@link #listeners()} when they change.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class StagedDetections
+{
+
+	/** The staged spots, mapped to the spot they are linked from. */
+	private final Map< Spot, Spot > links = new LinkedHashMap<>();
+
+	private final Listeners.List< Runnable > listeners = new Listeners.SynchronizedList<>();
+
+	/**
+	 * Stages the specified links.
+	 *
+	 * @param candidates
+	 *            the new spots, indexed by the spot they are linked from.
+	 */
+	public void stage( final Map< Spot, Spot > candidates )
+	{
+		if ( candidates.isEmpty() )
+			return;
+		synchronized ( links )
+		{
+			for ( final Map.Entry< Spot, Spot > entry : candidates.entrySet() )
+				links.put( entry.getValue(), entry.getKey() );
+		}
+		fireChanged();
+	}
+
+	/**
+	 * Removes and returns all the staged links.
+	 *
+	 * @return the new spots, indexed by the spot they are linked from, in the
+	 *         order they were staged.
+	 */
+	public Map< Spot, Spot > drain()
+	{
+		final Map< Spot, Spot > drained;
+		synchronized ( links )
+		{
+			if ( links.isEmpty() )
+				return new LinkedHashMap<>();
+			drained = new LinkedHashMap<>( links.size() );
+			for ( final Map.Entry< Spot, Spot > entry : links.entrySet() )
+				drained.put( entry.getValue(), entry.getKey() );
+			links.clear();
+		}
+		fireChanged();
+		return drained;
+	}
+
+	/**
+	 * Returns the staged spots in the specified frame.
+	 */
+	public List< Spot > getSpots( final int frame )
+	{
+		final List< Spot > spots = new ArrayList<>();
+		synchronized ( links )
+		{
+			for ( final Spot spot : links.keySet() )
+				if ( spot.getFeature( Spot.FRAME ).intValue() == frame )
+					spots.add( spot );
+		}
+		return spots;
+	}
+
+	/**
+	 * Returns the spot the specified staged spot is linked from, or
+	 * <code>null</code> if it is not staged.
+	 */
+	public Spot getLinkedFrom( final Spot spot )
+	{
+		synchronized ( links )
+		{
+			return links.get( spot );
+		}
+	}
+
+	public int size()
+	{
+		synchronized ( links )
+		{
+			return links.size();
+		}
+	}
+
+	public boolean isEmpty()
+	{
+		return size() == 0;
+	}
+
+	/**
+	 * Returns the listeners notified when staged detections are added or
+	 * drained. They are called on the tracking thread.
+	 */
+	public Listeners< Runnable > listeners()
+	{
+		return listeners;
+	}
+
+	private void fireChanged()
+	{
+		listeners.list.forEach( Runnable::run );
+	}
+}
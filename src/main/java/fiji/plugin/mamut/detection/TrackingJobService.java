@@ -0,0 +1,268 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.detection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import fiji.plugin.mamut.feature.MamutModelFeatureUpdater;
+import fiji.plugin.trackmate.Logger;
+
+/**
+ * Runs semi-automated tracking jobs one after the other, on a worker pool
+ * shared with the other background tasks of a MaMuT session.
+ * <p>
+ * Jobs are queued in submission order. Each job reports its progress and
+ * statistics, and can be canceled whether it is queued or running. The
+ * features of the spots created by a job are updated after each commit of
+ * the job, so that they are current while the job runs.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class TrackingJobService
+{
+
+	public enum State
+	{
+		QUEUED, RUNNING, DONE, FAILED, CANCELED;
+	}
+
+	/**
+	 * A semi-automated tracking job.
+	 */
+	public class Job
+	{
+
+		private final String name;
+
+		private final SourceSemiAutoTracker< ? > tracker;
+
+		private final AtomicReference< State > state = new AtomicReference<>( State.QUEUED );
+
+		private Future< ? > future;
+
+		private Job( final String name, final SourceSemiAutoTracker< ? > tracker )
+		{
+			this.name = name;
+			this.tracker = tracker;
+		}
+
+		private void run()
+		{
+			// Lost to a cancel request.
+			if ( !state.compareAndSet( State.QUEUED, State.RUNNING ) )
+				return;
+			logger.setStatus( name );
+			try
+			{
+				final boolean ok = tracker.checkInput() && tracker.process();
+				if ( tracker.isCanceled() )
+				{
+					state.set( State.CANCELED );
+				}
+				else if ( !ok )
+				{
+					state.set( State.FAILED );
+					logger.error( tracker.getErrorMessage() );
+				}
+				else
+				{
+					state.set( State.DONE );
+				}
+			}
+			catch ( final RuntimeException e )
+			{
+				state.set( State.FAILED );
+				logger.error( name + " failed: " + e.getMessage() + '\n' );
+				e.printStackTrace();
+			}
+			finally
+			{
+				logger.setStatus( "" );
+				synchronized ( jobs )
+				{
+					jobs.remove( this );
+				}
+			}
+			logger.log( toString() + '\n' );
+		}
+
+		/**
+		 * Cancels this job. A queued job will not run, a running job stops
+		 * after the frame it is processing.
+		 */
+		public void cancel()
+		{
+			tracker.cancel( "Canceled by user." );
+			if ( state.compareAndSet( State.QUEUED, State.CANCELED ) )
+			{
+				future.cancel( false );
+				synchronized ( jobs )
+				{
+					jobs.remove( this );
+				}
+			}
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		public State getState()
+		{
+			return state.get();
+		}
+
+		/**
+		 * Returns the progress of this job, from 0 to 1.
+		 */
+		public double getProgress()
+		{
+			if ( state.get() == State.DONE )
+				return 1.;
+			return ( double ) tracker.getFramesProcessed() / Math.max( 1, tracker.getMaxFrames() );
+		}
+
+		public int getFramesProcessed()
+		{
+			return tracker.getFramesProcessed();
+		}
+
+		/**
+		 * Returns the mean processing time per frame, in milliseconds. While
+		 * the job runs, this is measured on the frames processed so far.
+		 */
+		public double getTimePerFrame()
+		{
+			return ( double ) tracker.getProcessingTime() / Math.max( 1, tracker.getFramesProcessed() );
+		}
+
+		/**
+		 * Returns the time spent loading image data, in milliseconds.
+		 */
+		public long getIOTime()
+		{
+			return tracker.getIOTime();
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format( "%s: %s, %d frames, %.0f ms per frame, %d ms of I/O.",
+					name, state.get(), getFramesProcessed(), getTimePerFrame(), getIOTime() );
+		}
+	}
+
+	private final ExecutorService workers;
+
+	private final MamutModelFeatureUpdater featureUpdater;
+
+	private final Logger logger;
+
+	/** Runs the jobs, one at a time. */
+	private final ExecutorService dispatcher;
+
+	/** Jobs queued or running. */
+	private final List< Job > jobs = new ArrayList<>();
+
+	private int jobCounter = 0;
+
+	/**
+	 * Creates a job service.
+	 *
+	 * @param workers
+	 *            the pool to run the detections of the jobs on. It is not
+	 *            shut down by this service.
+	 * @param featureUpdater
+	 *            the feature updater to batch each commit of the jobs with.
+	 *            Can be <code>null</code>.
+	 * @param logger
+	 *            the logger to report progress to.
+	 */
+	public TrackingJobService( final ExecutorService workers, final MamutModelFeatureUpdater featureUpdater, final Logger logger )
+	{
+		this.workers = workers;
+		this.featureUpdater = featureUpdater;
+		this.logger = logger;
+		this.dispatcher = Executors.newSingleThreadExecutor( r -> {
+			final Thread thread = new Thread( r, "MaMuT tracking job dispatcher" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+	}
+
+	/**
+	 * Queues a semi-automated tracking job.
+	 *
+	 * @param tracker
+	 *            the configured tracker to run. Its detections are run on the
+	 *            worker pool of this service.
+	 * @return the job.
+	 */
+	public Job submit( final SourceSemiAutoTracker< ? > tracker )
+	{
+		tracker.setExecutorService( workers );
+		tracker.setFeatureUpdater( featureUpdater );
+		synchronized ( jobs )
+		{
+			final String name = ( tracker.isBackward() ? "Backward semi-automated tracking #" : "Semi-automated tracking #" ) + ( ++jobCounter );
+			final Job job = new Job( name, tracker );
+			jobs.add( job );
+			job.future = dispatcher.submit( job::run );
+			return job;
+		}
+	}
+
+	/**
+	 * Returns the jobs queued or running, in submission order.
+	 */
+	public List< Job > getJobs()
+	{
+		synchronized ( jobs )
+		{
+			return new ArrayList<>( jobs );
+		}
+	}
+
+	/**
+	 * Cancels all the jobs queued or running.
+	 */
+	public void cancelAll()
+	{
+		for ( final Job job : getJobs() )
+			job.cancel();
+	}
+
+	/**
+	 * Cancels all the jobs and stops the service.
+	 */
+	public void shutdown()
+	{
+		cancelAll();
+		dispatcher.shutdown();
+	}
+}
@@ -22,34 +22,110 @@
 package fiji.plugin.mamut.feature;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 import org.jgrapht.graph.DefaultWeightedEdge;
 
 import fiji.plugin.mamut.SourceSettings;
+import fiji.plugin.mamut.feature.spot.SpotFeatureDependency;
+import fiji.plugin.mamut.util.EdgeEnds;
+import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.ModelChangeEvent;
 import fiji.plugin.trackmate.ModelChangeListener;
 import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.features.EdgeFeatureCalculator;
-import fiji.plugin.trackmate.features.TrackFeatureCalculator;
 import net.imglib2.algorithm.MultiThreaded;
 
 /**
  * A specialized model feature updater, that can deal with BDV image data.
+ * <p>
+ * Model changes are not processed as they arrive. The spots, edges and tracks
+ * they touch are accumulated in dirty sets over a short time window, or until
+ * the end of a batch declared with {@link #beginBatch()} and
+ * {@link #endBatch()}. The features of each object are then computed once,
+ * and objects removed in the meantime are skipped.
+ * <p>
+ * The track model is not thread-safe. Edge and track features, which read
+ * it, are computed on the thread that notifies the model changes. Changes
+ * notified on the event dispatch thread, such as edits made in the views, are
+ * coalesced with a Swing timer that fires on this thread. Changes notified on
+ * other threads outside of a batch are processed immediately, one update per
+ * change, because there is no other safe thread to defer them to: scripts
+ * should group their edits in a batch. Only spot features, which read the
+ * image data, are computed in the background.
  * 
  * @author Jean-Yves Tinevez - December 2020
  */
 public class MamutModelFeatureUpdater implements ModelChangeListener, MultiThreaded
 {
 
+	/**
+	 * The default duration, in milliseconds, over which model changes are
+	 * coalesced before features are updated.
+	 */
+	public static final long DEFAULT_COALESCING_DELAY = 200;
+
 	private final MamutSpotFeatureCalculator mamutSpotFeatureCalculator;
 	private final EdgeFeatureCalculator edgeFeatureCalculator;
-	private final TrackFeatureCalculator trackFeatureCalculator;
+	private final MamutTrackFeatureCalculator trackFeatureCalculator;
 
 	private final Model model;
 
+	/** Where the ends of removed edges are found. */
+	private final EdgeEnds edgeEnds;
+
+	private final long delay;
+
+	private final Logger logger;
+
+	/** Runs the feature updates, one at a time. */
+	private final ScheduledExecutorService updater;
+
+	/**
+	 * Coalesces the edge and track updates of changes notified on the event
+	 * dispatch thread. Only accessed from this thread.
+	 */
+	private final Timer graphTimer;
+
 	private int numThreads;
 
+	/*
+	 * Dirty sets. Guarded by this.
+	 */
+
+	private Set< Spot > dirtySpots = new LinkedHashSet<>();
+
+	private Set< DefaultWeightedEdge > dirtyEdges = new LinkedHashSet<>();
+
+	private Set< Integer > dirtyTracks = new HashSet<>();
+
+	/** Tracks that only had spots and edges added to them. */
+	private Set< Integer > grownTracks = new HashSet<>();
+
+	/** Edges added since the last update. */
+	private Set< DefaultWeightedEdge > addedEdges = new LinkedHashSet<>();
+
+	/** Spots removed while spot features are being computed. */
+	private final Set< Spot > removedSpots = new HashSet<>();
+
+	/** Whether spot features are being computed. Guarded by this. */
+	private boolean computing = false;
+
+	/** Number of nested batches currently open. Guarded by this. */
+	private int batchDepth = 0;
+
+	/** Whether an update is already scheduled. Guarded by this. */
+	private boolean scheduled = false;
+
 	/**
 	 * Constructs and activate a {@code ModelFeatureUpdater}. The new instance
 	 * is registered to listen to model changes, and update its feature.
@@ -61,20 +137,75 @@ public class MamutModelFeatureUpdater implements ModelChangeListener, MultiThrea
 	 *            Required to access the raw data.
 	 */
 	public MamutModelFeatureUpdater( final Model model, final SourceSettings settings )
+	{
+		this( model, settings, null, DEFAULT_COALESCING_DELAY, Logger.IJ_LOGGER );
+	}
+
+	/**
+	 * Constructs and activate a {@code ModelFeatureUpdater}. The new instance
+	 * is registered to listen to model changes, and update its feature.
+	 * 
+	 * @param model
+	 *            the model to listen to.
+	 * @param settings
+	 *            the {@link SourceSettings} the model is built against.
+	 *            Required to access the raw data.
+	 * @param edgeEnds
+	 *            where the ends of the edges removed from this model are
+	 *            found.
+	 */
+	public MamutModelFeatureUpdater( final Model model, final SourceSettings settings, final EdgeEnds edgeEnds )
+	{
+		this( model, settings, edgeEnds, DEFAULT_COALESCING_DELAY, Logger.IJ_LOGGER );
+	}
+
+	/**
+	 * Constructs and activate a {@code ModelFeatureUpdater}. The new instance
+	 * is registered to listen to model changes, and update its feature.
+	 * 
+	 * @param model
+	 *            the model to listen to.
+	 * @param settings
+	 *            the {@link SourceSettings} the model is built against.
+	 *            Required to access the raw data.
+	 * @param edgeEnds
+	 *            where the ends of the edges removed from this model are
+	 *            found. If <code>null</code>, this instance creates its own.
+	 * @param delay
+	 *            the duration, in milliseconds, over which model changes are
+	 *            coalesced before features are updated.
+	 * @param logger
+	 *            the logger to report failed updates to.
+	 */
+	public MamutModelFeatureUpdater( final Model model, final SourceSettings settings, final EdgeEnds edgeEnds, final long delay, final Logger logger )
 	{
 		this.model = model;
+		this.edgeEnds = ( null == edgeEnds ) ? new EdgeEnds( model ) : edgeEnds;
+		this.delay = delay;
+		this.logger = logger;
 		// don't log feature computation for updates.
 		final boolean doLogIt = false;
 		this.mamutSpotFeatureCalculator = new MamutSpotFeatureCalculator( settings );
+		mamutSpotFeatureCalculator.setLogger( logger );
 		this.edgeFeatureCalculator = new EdgeFeatureCalculator( model, settings, doLogIt );
-		this.trackFeatureCalculator = new TrackFeatureCalculator( model, settings, doLogIt );
+		this.trackFeatureCalculator = new MamutTrackFeatureCalculator( model, settings );
+		this.graphTimer = new Timer( ( int ) Math.min( Integer.MAX_VALUE, delay ), e -> updateGraphFeatures( delay ) );
+		graphTimer.setRepeats( false );
+		this.updater = Executors.newSingleThreadScheduledExecutor( r -> {
+			final Thread thread = new Thread( r, "MaMuT feature updater" );
+			thread.setDaemon( true );
+			return thread;
+		} );
 		model.addModelChangeListener( this );
 		setNumThreads();
 	}
 
 	/**
-	 * Updates the model features against the change notified here. If the event
-	 * is not a {@link ModelChangeEvent#MODEL_MODIFIED}, does nothing.
+	 * Marks the objects touched by the change notified here for feature
+	 * update. If no batch is open, updates edge and track features at the end
+	 * of the coalescing window when called on the event dispatch thread, and
+	 * immediately otherwise. If the event is not a
+	 * {@link ModelChangeEvent#MODEL_MODIFIED}, does nothing.
 	 */
 	@Override
 	public void modelChanged( final ModelChangeEvent event )
@@ -82,26 +213,131 @@ public class MamutModelFeatureUpdater implements ModelChangeListener, MultiThrea
 		if ( event.getEventID() != ModelChangeEvent.MODEL_MODIFIED )
 			return;
 
-		// Build spot list
-		final ArrayList< Spot > spots = new ArrayList<>( event.getSpots().size() );
-		for ( final Spot spot : event.getSpots() )
-			if ( event.getSpotFlag( spot ) != ModelChangeEvent.FLAG_SPOT_REMOVED )
-				spots.add( spot );
+		synchronized ( this )
+		{
+			// Whether this change only added things to the model.
+			boolean growth = true;
+			for ( final Spot spot : event.getSpots() )
+			{
+				// Computations in flight for this spot are now obsolete.
+				final int flag = event.getSpotFlag( spot );
+				if ( flag == ModelChangeEvent.FLAG_SPOT_REMOVED )
+				{
+					mamutSpotFeatureCalculator.forget( spot );
+					dirtySpots.remove( spot );
+					if ( computing )
+						removedSpots.add( spot );
+				}
+				else
+				{
+					mamutSpotFeatureCalculator.cancel( spot );
+					dirtySpots.add( spot );
+				}
+				if ( flag != ModelChangeEvent.FLAG_SPOT_ADDED )
+					growth = false;
+			}
 
-		// Build edge list
-		final ArrayList< DefaultWeightedEdge > edges = new ArrayList<>( event.getEdges().size() );
-		for ( final DefaultWeightedEdge edge : event.getEdges() )
-			if ( event.getEdgeFlag( edge ) != ModelChangeEvent.FLAG_EDGE_REMOVED )
-				edges.add( edge );
+			for ( final DefaultWeightedEdge edge : event.getEdges() )
+			{
+				final int flag = event.getEdgeFlag( edge );
+				if ( flag == ModelChangeEvent.FLAG_EDGE_REMOVED )
+				{
+					dirtyEdges.remove( edge );
+					addedEdges.remove( edge );
+
+					// The links of its remaining spots changed.
+					for ( final Spot spot : new Spot[] { edgeEnds.getSource( edge ), edgeEnds.getTarget( edge ) } )
+					{
+						if ( null == spot || !model.getTrackModel().vertexSet().contains( spot ) )
+							continue;
+						mamutSpotFeatureCalculator.cancel( spot );
+						mamutSpotFeatureCalculator.invalidate( spot, SpotFeatureDependency.GRAPH );
+						dirtySpots.add( spot );
+					}
+				}
+				else
+				{
+					dirtyEdges.add( edge );
+
+					// The links of its spots changed.
+					if ( model.getTrackModel().edgeSet().contains( edge ) )
+					{
+						final Spot source = model.getTrackModel().getEdgeSource( edge );
+						final Spot target = model.getTrackModel().getEdgeTarget( edge );
+						for ( final Spot spot : new Spot[] { source, target } )
+						{
+							mamutSpotFeatureCalculator.cancel( spot );
+							mamutSpotFeatureCalculator.invalidate( spot, SpotFeatureDependency.GRAPH );
+							dirtySpots.add( spot );
+						}
+					}
+				}
+				if ( flag == ModelChangeEvent.FLAG_EDGE_ADDED )
+					addedEdges.add( edge );
+				else
+					growth = false;
+			}
 
-		// Update spot features
-		mamutSpotFeatureCalculator.updateSpotFeatures( spots );
+			if ( event.getTrackUpdated() != null )
+			{
+				if ( growth )
+					grownTracks.addAll( event.getTrackUpdated() );
+				else
+					dirtyTracks.addAll( event.getTrackUpdated() );
+			}
 
-		// Update edge features
-		edgeFeatureCalculator.computeEdgesFeatures( edges, false );
+			if ( batchDepth > 0 )
+				return;
 
-		// Update track features
-		trackFeatureCalculator.computeTrackFeatures( event.getTrackUpdated(), false );
+			if ( delay > 0 && SwingUtilities.isEventDispatchThread() )
+			{
+				if ( !dirtySpots.isEmpty() )
+					schedule( delay );
+				if ( !graphTimer.isRunning() )
+					graphTimer.start();
+				return;
+			}
+		}
+		updateGraphFeatures( delay );
+	}
+
+	/**
+	 * Starts a batch of model changes. Feature updates are deferred until the
+	 * matching call to {@link #endBatch()}. Batches can be nested.
+	 */
+	public synchronized void beginBatch()
+	{
+		batchDepth++;
+	}
+
+	/**
+	 * Ends a batch of model changes started with {@link #beginBatch()}. When
+	 * the outermost batch ends, the features of all the objects it touched
+	 * are updated immediately: edge and track features in this thread, spot
+	 * features in the background.
+	 */
+	public void endBatch()
+	{
+		synchronized ( this )
+		{
+			if ( batchDepth == 0 )
+				return;
+			batchDepth--;
+			if ( batchDepth > 0 )
+				return;
+		}
+		updateGraphFeatures( 0 );
+	}
+
+	/**
+	 * Exposes the calculator used to update spot features, so that its
+	 * resolution mode can be configured.
+	 *
+	 * @return the spot feature calculator.
+	 */
+	public MamutSpotFeatureCalculator getSpotFeatureCalculator()
+	{
+		return mamutSpotFeatureCalculator;
 	}
 
 	/**
@@ -111,6 +347,133 @@ public class MamutModelFeatureUpdater implements ModelChangeListener, MultiThrea
 	public void quit()
 	{
 		model.removeModelChangeListener( this );
+		graphTimer.stop();
+		updater.shutdownNow();
+		mamutSpotFeatureCalculator.shutdown();
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	/**
+	 * Schedules a spot feature update, unless one is already pending. Must be
+	 * called while holding the lock on this instance.
+	 */
+	private void schedule( final long wait )
+	{
+		if ( scheduled || updater.isShutdown() )
+			return;
+		scheduled = true;
+		updater.schedule( this::updateSpotFeatures, wait, TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * Computes the features of the edges and tracks currently marked as dirty,
+	 * then schedules the update of spot features. Called from the thread that
+	 * modifies the model, so that the track model is not read while it
+	 * changes.
+	 *
+	 * @param wait
+	 *            the delay before updating spot features, in milliseconds.
+	 */
+	private void updateGraphFeatures( final long wait )
+	{
+		final Set< DefaultWeightedEdge > edgeSet;
+		final Set< Integer > trackSet;
+		final Set< Integer > grownSet;
+		final Set< DefaultWeightedEdge > addedEdgeSet;
+		synchronized ( this )
+		{
+			edgeSet = dirtyEdges;
+			trackSet = dirtyTracks;
+			grownSet = grownTracks;
+			addedEdgeSet = addedEdges;
+			dirtyEdges = new LinkedHashSet<>();
+			dirtyTracks = new HashSet<>();
+			grownTracks = new HashSet<>();
+			addedEdges = new LinkedHashSet<>();
+			if ( !dirtySpots.isEmpty() )
+				schedule( wait );
+		}
+
+		// Skip edges that are not in the model anymore.
+		final Set< DefaultWeightedEdge > existingEdges = model.getTrackModel().edgeSet();
+		final ArrayList< DefaultWeightedEdge > edges = new ArrayList<>( edgeSet.size() );
+		for ( final DefaultWeightedEdge edge : edgeSet )
+			if ( existingEdges.contains( edge ) )
+				edges.add( edge );
+
+		final ArrayList< DefaultWeightedEdge > newEdges = new ArrayList<>( addedEdgeSet.size() );
+		for ( final DefaultWeightedEdge edge : addedEdgeSet )
+			if ( existingEdges.contains( edge ) )
+				newEdges.add( edge );
+
+		try
+		{
+			// Update edge features
+			if ( !edges.isEmpty() )
+				edgeFeatureCalculator.computeEdgesFeatures( edges, false );
+
+			// Update track features, incrementally for tracks that only grew.
+			if ( !trackSet.isEmpty() || !grownSet.isEmpty() )
+				trackFeatureCalculator.updateTrackFeatures( trackSet, grownSet, newEdges );
+		}
+		catch ( final RuntimeException e )
+		{
+			// Retry with the next change. Grown tracks get a full update.
+			synchronized ( this )
+			{
+				dirtyEdges.addAll( edges );
+				dirtyTracks.addAll( trackSet );
+				dirtyTracks.addAll( grownSet );
+			}
+			logger.error( "Could not update edge and track features: " + e.getMessage() + '\n' );
+		}
+	}
+
+	/**
+	 * Computes the features of the spots currently marked as dirty. Only
+	 * called from the updater thread. Spots are not linked to the track model,
+	 * so this only reads their position and the image data.
+	 */
+	private void updateSpotFeatures()
+	{
+		final Set< Spot > spotSet;
+		synchronized ( this )
+		{
+			scheduled = false;
+			spotSet = dirtySpots;
+			dirtySpots = new LinkedHashSet<>();
+			computing = true;
+		}
+
+		// Removed spots were dropped from the dirty set when notified.
+		final ArrayList< Spot > spots = new ArrayList<>( spotSet );
+		try
+		{
+			if ( !spots.isEmpty() )
+				mamutSpotFeatureCalculator.computeSpotFeatures( spots );
+		}
+		catch ( final RuntimeException e )
+		{
+			// Retry with the next change, skipping spots removed since.
+			synchronized ( this )
+			{
+				for ( final Spot spot : spots )
+					if ( !removedSpots.contains( spot ) )
+						dirtySpots.add( spot );
+			}
+			logger.error( "Could not update spot features: " + e.getMessage() + '\n' );
+		}
+		finally
+		{
+			synchronized ( this )
+			{
+				computing = false;
+				removedSpots.clear();
+			}
+		}
 	}
 
 	@Override
@@ -129,6 +492,7 @@ public class MamutModelFeatureUpdater implements ModelChangeListener, MultiThrea
 	public void setNumThreads( final int numThreads )
 	{
 		this.numThreads = numThreads;
+		mamutSpotFeatureCalculator.setNumThreads( numThreads );
 		edgeFeatureCalculator.setNumThreads( numThreads );
 		trackFeatureCalculator.setNumThreads( numThreads );
 	}
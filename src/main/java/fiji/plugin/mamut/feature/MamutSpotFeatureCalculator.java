@@ -23,17 +23,36 @@ package fiji.plugin.mamut.feature;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import bdv.util.Affine3DHelpers;
 import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
 import fiji.plugin.mamut.SourceSettings;
+import fiji.plugin.mamut.feature.SpotRoiPlanner.Region;
+import fiji.plugin.mamut.feature.spot.SpotFeatureDependency;
+import fiji.plugin.mamut.feature.spot.SpotMipmapLevelAnalyzerFactory;
+import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.SpotCollection;
 import fiji.plugin.trackmate.features.spot.SpotAnalyzer;
@@ -41,150 +60,820 @@ import fiji.plugin.trackmate.features.spot.SpotAnalyzerFactoryBase;
 import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
 import net.imagej.axis.AxisType;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.MultiThreaded;
 import net.imglib2.img.ImgView;
 import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.Translation3D;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
 
 /**
  * A class dedicated to centralizing the calculation of the numerical features
  * of spots, through {@link SpotAnalyzer}s, tuned for Mamut.
+ * <p>
+ * By default, features are computed on the full resolution level of each
+ * source. In adaptive resolution mode, they are computed, for each spot and
+ * each source, on the coarsest mipmap level at which the spot diameter still
+ * spans a minimal number of voxels along the worst-resolved axis. The level
+ * used is stored in the {@link SpotMipmapLevelAnalyzerFactory} features of
+ * the spot, if this factory is among the analyzers of the settings.
+ * <p>
+ * For each frame, source and resolution level, the analyzers are instantiated
+ * once on the image of that level, and the spots are grouped in regions of the
+ * image by {@link SpotRoiPlanner}. The regions are loaded and processed
+ * separately, reusing the same analyzers, so that an edit to a single spot
+ * only touches the data around it. Analyzers may keep scratch state between
+ * spots, so each computation thread gets its own instances.
+ * <p>
+ * The calculator remembers a fingerprint of the inputs of each spot (see
+ * {@link SpotFeatureDependency}) at its last computation. When the features
+ * of a spot are requested again, only the analyzers depending on the inputs
+ * that changed are run. Moving a spot does not rerun shape analyzers, and a
+ * spot whose inputs did not change is skipped altogether.
+ * <p>
+ * Regions are pipelined: the image cells they span are loaded on dedicated
+ * loader threads, then the regions are processed on a work-stealing pool with
+ * a bounded number of threads. Regions of all the frames and sources are
+ * in flight at the same time, so that loading the data for the next frames
+ * overlaps with computing the current ones. The amount of image data of the
+ * regions in flight is bounded by a memory budget: submitting more blocks
+ * until some complete. A spot whose features are requested again, or that is
+ * cancelled with {@link #cancel(Spot)}, is skipped by the computations
+ * already in flight. The pools must be released with {@link #shutdown()}
+ * when the calculator is not needed anymore.
  * 
  * @author Jean-Yves Tinevez - 2020
  * 
  */
-public class MamutSpotFeatureCalculator
+public class MamutSpotFeatureCalculator implements MultiThreaded
 {
 
+	/**
+	 * Maximal number of asynchronous update jobs waiting to be processed.
+	 * Beyond that, {@link #updateSpotFeatures(Iterable)} runs the job in the
+	 * caller thread.
+	 */
+	private static final int MAX_PENDING_JOBS = 16;
+
+	/** Voxel size assumed to convert the memory budget in voxels. */
+	private static final int BYTES_PER_VOXEL = 2;
+
+	/** Fingerprint value of an input marked as changed. */
+	private static final long INVALID = Long.MIN_VALUE;
+
+	/**
+	 * Default minimal number of voxels that the spot diameter must span, in
+	 * adaptive resolution mode.
+	 */
+	public static final double DEFAULT_MIN_VOXELS_PER_DIAMETER = 10.;
+
+	/**
+	 * Transformed spots reused by each computation thread, so that no spot is
+	 * allocated per feature update.
+	 */
+	private static final ThreadLocal< List< TransformedSpot > > TRANSFORMED_SPOTS = ThreadLocal.withInitial( ArrayList::new );
+
 	private final SourceSettings settings;
 
-	private final ExecutorService executor;
+	/** Runs the asynchronous update jobs, one at a time. */
+	private final ThreadPoolExecutor dispatcher;
+
+	/** Runs the spot computation tasks. */
+	private ExecutorService executor;
+
+	/**
+	 * If <code>true</code>, the computation pool is owned by the caller and
+	 * shared with other tasks.
+	 */
+	private boolean sharedExecutor = false;
+
+	/** Loads the image regions needed by the spot computation tasks. */
+	private ExecutorService loader;
+
+	/** Bounds the number of voxels of the regions in flight. */
+	private Semaphore budget;
+
+	private int budgetPermits;
+
+	private long memoryBudget;
+
+	private int numThreads;
+
+	/**
+	 * The token of the latest computation requested for each spot. A
+	 * computation skips a spot if its token is not the current one.
+	 */
+	private final Map< Spot, Long > tokens = new ConcurrentHashMap<>();
+
+	private final AtomicLong tokenGenerator = new AtomicLong();
+
+	/**
+	 * The fingerprint of the inputs of each spot, when its features were last
+	 * computed, indexed by {@link SpotFeatureDependency} ordinal.
+	 */
+	private final Map< Spot, long[] > fingerprints = new ConcurrentHashMap<>();
+
+	/** Changes when the image data changes, to invalidate the fingerprints. */
+	private final AtomicLong imageGeneration = new AtomicLong();
+
+	private boolean dependencyTracking = true;
+
+	private boolean adaptiveResolution = false;
+
+	private double minVoxelsPerDiameter = DEFAULT_MIN_VOXELS_PER_DIAMETER;
+
+	private Logger logger = Logger.IJ_LOGGER;
 
 	public MamutSpotFeatureCalculator( final SourceSettings settings )
+	{
+		this( settings, Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * Creates a calculator with the specified thread budget.
+	 *
+	 * @param settings
+	 *            the {@link SourceSettings} to get the image data and the
+	 *            analyzers from.
+	 * @param numThreads
+	 *            the maximal number of threads used for computation.
+	 */
+	public MamutSpotFeatureCalculator( final SourceSettings settings, final int numThreads )
 	{
 		this.settings = settings;
-		this.executor = Executors.newCachedThreadPool();
+		this.dispatcher = new ThreadPoolExecutor( 1, 1, 0l, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>( MAX_PENDING_JOBS ),
+				r -> {
+					final Thread thread = new Thread( r, "MaMuT spot feature dispatcher" );
+					thread.setDaemon( true );
+					return thread;
+				},
+				new ThreadPoolExecutor.CallerRunsPolicy() );
+		setNumThreads( numThreads );
+		setMemoryBudget( Runtime.getRuntime().maxMemory() / 4 );
 	}
 
 	/**
 	 * Update the specified spot feature values.
 	 * <p>
 	 * Computation is done in another thread and this method returns
-	 * immediately.
+	 * immediately, unless too many updates are already pending. In that case
+	 * the computation is done in the calling thread.
 	 */
 	public void updateSpotFeatures( final Iterable< Spot > toCompute )
 	{
-		executor.execute( () -> computeSpotFeatures( toCompute ) );
+		dispatcher.execute( () -> computeSpotFeatures( toCompute ) );
+	}
+
+	/**
+	 * Cancels the computations in flight for the specified spot. This must be
+	 * called when the spot is removed from the model.
+	 *
+	 * @param spot
+	 *            the spot.
+	 */
+	public void cancel( final Spot spot )
+	{
+		tokens.remove( spot );
+	}
+
+	/**
+	 * Cancels the computations in flight for the specified spot, and forgets
+	 * the inputs its features were computed with. This must be called when
+	 * the spot is removed from the model.
+	 *
+	 * @param spot
+	 *            the spot.
+	 */
+	public void forget( final Spot spot )
+	{
+		tokens.remove( spot );
+		fingerprints.remove( spot );
+	}
+
+	/**
+	 * Marks the specified input of the specified spot as changed, so that the
+	 * analyzers depending on it are run at the next computation of the spot.
+	 * This is needed for inputs that are not stored in the spot itself, such
+	 * as its links.
+	 *
+	 * @param spot
+	 *            the spot.
+	 * @param dependency
+	 *            the input that changed.
+	 */
+	public void invalidate( final Spot spot, final SpotFeatureDependency dependency )
+	{
+		fingerprints.computeIfPresent( spot, ( s, fingerprint ) -> {
+			final long[] invalidated = fingerprint.clone();
+			invalidated[ dependency.ordinal() ] = INVALID;
+			return invalidated;
+		} );
+	}
+
+	/**
+	 * Marks the image data as changed for all the spots, so that all the
+	 * analyzers depending on it are run at the next computation of each spot.
+	 */
+	public void invalidateImageData()
+	{
+		imageGeneration.incrementAndGet();
+	}
+
+	/**
+	 * Stops the computation threads. Computations in flight are interrupted.
+	 */
+	public synchronized void shutdown()
+	{
+		dispatcher.shutdownNow();
+		loader.shutdownNow();
+		if ( !sharedExecutor )
+			executor.shutdownNow();
 	}
 
 	/**
 	 * Update the specified spot feature values.
 	 * <p>
-	 * Computation is done in this thread, which blocks.
+	 * Computation is done in this thread, which blocks. Spots whose features
+	 * are requested again or cancelled while this computation runs are
+	 * skipped.
 	 */
 	public void computeSpotFeatures( final Iterable< Spot > toCompute )
 	{
-		// We always operate on the lowest resolution level.
-		final int level = 0;
+		// Supersede the computations in flight for these spots.
+		final Long token = Long.valueOf( tokenGenerator.incrementAndGet() );
+		for ( final Spot spot : toCompute )
+			tokens.put( spot, token );
+
+		final ExecutorService lExecutor;
+		final ExecutorService lLoader;
+		final Semaphore lBudget;
+		final int lBudgetPermits;
+		synchronized ( this )
+		{
+			lExecutor = executor;
+			lLoader = loader;
+			lBudget = budget;
+			lBudgetPermits = budgetPermits;
+		}
 		final List< SpotAnalyzerFactoryBase< ? > > saf = settings.getSpotAnalyzerFactories();
 		final List< SourceAndConverter< ? > > sources = settings.getSources();
 
-		// Sort spots by frames.
-		final SpotCollection sc = SpotCollection.fromCollection( toCompute );
+		// What each analyzer depends on, and how far around spots they read.
+		final List< EnumSet< SpotFeatureDependency > > dependencies = new ArrayList<>( saf.size() );
+		final EnumSet< SpotFeatureDependency > allDependencies = EnumSet.noneOf( SpotFeatureDependency.class );
+		double maxFootprint = 0.;
+		boolean recordLevel = false;
+		for ( final SpotAnalyzerFactoryBase< ? > factory : saf )
+		{
+			recordLevel |= factory instanceof SpotMipmapLevelAnalyzerFactory;
+			final EnumSet< SpotFeatureDependency > d = SpotFeatureDependency.of( factory );
+			dependencies.add( d );
+			allDependencies.addAll( d );
+			maxFootprint = Math.max( maxFootprint, SpotFeatureDependency.footprintOf( factory ) );
+		}
+		final double footprint = maxFootprint;
+		// Only store the level in spots when the feature is declared.
+		final boolean storeLevel = recordLevel;
 
-		final NavigableSet< Integer > frames = sc.keySet();
-		for ( final Integer iframe : frames )
+		// What changed for each spot since its last computation.
+		final Map< Spot, long[] > newFingerprints = new HashMap<>();
+		final Map< Spot, EnumSet< SpotFeatureDependency > > changes = new HashMap<>();
+		for ( final Spot spot : toCompute )
 		{
-			final int frame = iframe.intValue();
+			final long[] fingerprint = fingerprint( spot );
+			newFingerprints.put( spot, fingerprint );
+			final EnumSet< SpotFeatureDependency > changed = dependencyTracking
+					? changes( fingerprints.get( spot ), fingerprint )
+					: EnumSet.allOf( SpotFeatureDependency.class );
+			changed.retainAll( allDependencies );
+			if ( !changed.isEmpty() )
+				changes.put( spot, changed );
+		}
+		final Analysis analysis = new Analysis( token, saf, dependencies, changes );
+
+		// Sort spots that need computation by frames.
+		final SpotCollection sc = SpotCollection.fromCollection( changes.keySet() );
 
-			// Loop over each setup in this frame.
-			for ( int c = 0; c < sources.size(); c++ )
+		/*
+		 * Regions of all frames and sources are submitted without waiting for
+		 * the previous ones to complete, in frame order. Regions are loaded on
+		 * the loader threads then processed on the computation threads, so
+		 * loading the next regions overlaps with computing the current ones.
+		 * Submission blocks when the memory budget is exhausted.
+		 *
+		 * The permits of a region are released when its work is done. Works
+		 * are never cancelled: cancelling a future completes it without
+		 * stopping the action that runs it, so the permits would be released
+		 * while the region is still being read.
+		 */
+		final List< CompletableFuture< Void > > tasks = new ArrayList<>();
+		final List< Region > taskRegions = new ArrayList<>();
+		final List< String > taskNames = new ArrayList<>();
+		final Set< Spot > failed = new HashSet<>();
+		try
+		{
+			final NavigableSet< Integer > frames = sc.keySet();
+			for ( final Integer iframe : frames )
 			{
-				final int channel = c;
-
-				// The image for this setup, this frame (so 3D at max).
-				final SourceAndConverter< ? > sourceAnConverter = sources.get( c );
-				final Source< ? > source = sourceAnConverter.getSpimSource();
-
-				// The transform for this setup, this frame.
-				final AffineTransform3D sourceToGlobal = new AffineTransform3D();
-				source.getSourceTransform( frame, level, sourceToGlobal );
-
-				// The image.
-				@SuppressWarnings( "rawtypes" )
-				final RandomAccessibleInterval rai = source.getSource( frame, level );
-				final AxisType[] axes = new AxisType[] { Axes.X, Axes.Y, Axes.Z };
-				final double scaleX = Affine3DHelpers.extractScale( sourceToGlobal, 0 ) ;
-				final double scaleY = Affine3DHelpers.extractScale( sourceToGlobal, 1 ) ;
-				final double scaleZ = Affine3DHelpers.extractScale( sourceToGlobal, 2 ) ;
-				final double[] cal = new double[] {
-						1.,
-						scaleY / scaleX,
-						scaleZ / scaleX
-				};
-				final String[] units = new String[] { "globalpix", "globalpix", "globalpix" };
-				@SuppressWarnings( "unchecked" )
-				final ImgPlus< ? > imgPlus = new ImgPlus<>(
-						ImgView.wrap( rai ),
-						source.getName() + "C" + c + "_T" + frame,
-						axes,
-						cal,
-						units );
-
-				final List< Future< ? > > tasks = new ArrayList<>( sc.getNSpots( frame, false ) );
-				for ( final Spot spot : sc.iterable( frame, false ) )
+				final int frame = iframe.intValue();
+
+				// Loop over each setup in this frame.
+				for ( int c = 0; c < sources.size(); c++ )
 				{
-					// Transform spot coordinates.
-					final TransformedSpot transformedSpot = TransformedSpot.wrap( spot, sourceToGlobal, cal );
+					final int channel = c;
+					final Source< ? > source = sources.get( c ).getSpimSource();
+					if ( !source.isPresent( frame ) )
+						continue;
 
-					// Execute update.
-					final Future< ? > task = executor.submit( () -> {
-						try
-						{
-							update( transformedSpot, saf, imgPlus, channel );
-						}
-						catch ( final Exception e )
+					// Group spots by the resolution level we process them at.
+					final String levelFeature = SpotMipmapLevelAnalyzerFactory.makeFeatureKey( channel );
+					final Map< Integer, List< Spot > > spotsPerLevel = new TreeMap<>();
+					final double[] worstScales = getWorstScales( source, frame );
+					for ( final Spot spot : sc.iterable( frame, false ) )
+					{
+						if ( !token.equals( tokens.get( spot ) ) )
+							continue;
+						final int level = adaptiveResolution ? selectLevel( spot, worstScales ) : 0;
+						if ( storeLevel )
+							spot.putFeature( levelFeature, Double.valueOf( level ) );
+						spotsPerLevel.computeIfAbsent( Integer.valueOf( level ), l -> new ArrayList<>() ).add( spot );
+					}
+
+					for ( final Map.Entry< Integer, List< Spot > > entry : spotsPerLevel.entrySet() )
+					{
+						final int level = entry.getKey().intValue();
+						final List< Spot > spots = entry.getValue();
+
+						// The transform for this setup, this frame, this level.
+						final AffineTransform3D sourceToGlobal = new AffineTransform3D();
+						source.getSourceTransform( frame, level, sourceToGlobal );
+
+						// The image, and the regions of it we need.
+						final RandomAccessibleInterval< ? > rai = source.getSource( frame, level );
+						final List< Region > regions = SpotRoiPlanner.plan( spots, sourceToGlobal, rai, footprint );
+						final double scaleX = Affine3DHelpers.extractScale( sourceToGlobal, 0 ) ;
+						final double scaleY = Affine3DHelpers.extractScale( sourceToGlobal, 1 ) ;
+						final double scaleZ = Affine3DHelpers.extractScale( sourceToGlobal, 2 ) ;
+						final double[] cal = new double[] {
+								1.,
+								scaleY / scaleX,
+								scaleZ / scaleX
+						};
+						final String name = source.getName() + "C" + c + "_T" + frame + "_L" + level;
+
+						/*
+						 * The analyzers of this frame, source and level, shared
+						 * by its regions. They see the whole image: regions
+						 * only bound what is loaded and held in memory at a
+						 * time, not what the analyzers can read.
+						 */
+						final ImgPlus< ? > img = wrap( rai, name, cal );
+						final AffineTransform3D imgToGlobal = sourceToGlobal.copy();
+						imgToGlobal.concatenate( new Translation3D( Intervals.minAsDoubleArray( rai ) ) );
+						final Analyzers analyzers = new Analyzers( saf, img, channel );
+
+						for ( final Region region : regions )
 						{
-							e.printStackTrace();
+							// Memory budget: wait for the region to fit in.
+							final Interval interval = region.getInterval();
+							final int cost = ( int ) Math.min( lBudgetPermits, Intervals.numElements( interval ) );
+							lBudget.acquire( cost );
+
+							final CompletableFuture< Void > work = CompletableFuture
+									.runAsync( () -> {
+										// Skip regions whose spots were all superseded or cancelled.
+										if ( isCurrent( region.getSpots(), token ) )
+											SpotRoiPlanner.prefetch( rai, interval );
+									}, lLoader )
+									.thenRunAsync( () -> process( region, analysis, analyzers, imgToGlobal, cal ), lExecutor );
+							final CompletableFuture< Void > task = work.whenComplete( ( v, e ) -> lBudget.release( cost ) );
+							tasks.add( task );
+							taskRegions.add( region );
+							taskNames.add( name );
 						}
-					} );
-					tasks.add( task );
+					}
 				}
-				// Force computation before we move to next setup.
+			}
+
+			// Wait for all the regions.
+			for ( int i = 0; i < tasks.size(); i++ )
+			{
 				try
 				{
-					for ( final Future< ? > task : tasks )
-						task.get();
+					tasks.get( i ).get();
 				}
-				catch ( InterruptedException | ExecutionException e )
+				catch ( final ExecutionException e )
 				{
-					e.printStackTrace();
+					// Leave the spots of this region out of date, so that they are computed again.
+					final List< Spot > regionSpots = taskRegions.get( i ).getSpots();
+					failed.addAll( regionSpots );
+					final Throwable cause = ( null == e.getCause() ) ? e : e.getCause();
+					logger.error( "Could not compute the features of " + regionSpots.size() + " spots in "
+							+ taskNames.get( i ) + ":\n" + cause + "\n" );
 				}
 			}
 		}
+		catch ( final InterruptedException e )
+		{
+			/*
+			 * Make the regions not started yet skip their spots. They complete
+			 * quickly and release their permits; the regions in progress
+			 * release theirs when they are done.
+			 */
+			for ( final Spot spot : toCompute )
+				tokens.remove( spot, token );
+			Thread.currentThread().interrupt();
+			return;
+		}
+
+		// Record the inputs of the spots we were the latest computation for.
+		for ( final Spot spot : toCompute )
+		{
+			if ( token.equals( tokens.get( spot ) ) && !failed.contains( spot ) )
+				fingerprints.put( spot, newFingerprints.get( spot ) );
+			tokens.remove( spot, token );
+		}
+	}
 
+	/**
+	 * Returns the fingerprint of the current inputs of the specified spot.
+	 */
+	private long[] fingerprint( final Spot spot )
+	{
+		final long[] fingerprint = new long[ SpotFeatureDependency.values().length ];
+		final long radius = Double.doubleToLongBits( spot.getFeature( Spot.RADIUS ).doubleValue() );
+		// A spot moved to another frame sees another image.
+		final Double frameFeature = spot.getFeature( Spot.FRAME );
+		final long frame = ( null == frameFeature ) ? -1 : frameFeature.longValue();
+		long position = 17 + frame;
+		for ( int d = 0; d < 3; d++ )
+			position = 31 * position + Double.doubleToLongBits( spot.getDoublePosition( d ) );
+		fingerprint[ SpotFeatureDependency.POSITION.ordinal() ] = position;
+		fingerprint[ SpotFeatureDependency.RADIUS.ordinal() ] = radius;
+		// Spots are spheres.
+		fingerprint[ SpotFeatureDependency.SHAPE.ordinal() ] = radius;
+		fingerprint[ SpotFeatureDependency.IMAGE.ordinal() ] = 31 * ( 31 * imageGeneration.get() + frame )
+				+ ( adaptiveResolution ? Double.doubleToLongBits( minVoxelsPerDiameter ) : 0 );
+		// Links are not fingerprinted, but invalidated explicitly.
+		fingerprint[ SpotFeatureDependency.GRAPH.ordinal() ] = 0;
+		return fingerprint;
 	}
 
-	private static final void update( final Spot spot, final List< SpotAnalyzerFactoryBase< ? > > analyzerFactories, final ImgPlus< ? > img, final int channel )
+	/**
+	 * Returns the inputs that differ between two fingerprints. All of them if
+	 * there is no previous fingerprint.
+	 */
+	private static EnumSet< SpotFeatureDependency > changes( final long[] previous, final long[] current )
+	{
+		if ( previous == null )
+			return EnumSet.allOf( SpotFeatureDependency.class );
+
+		final EnumSet< SpotFeatureDependency > changed = EnumSet.noneOf( SpotFeatureDependency.class );
+		for ( final SpotFeatureDependency dependency : SpotFeatureDependency.values() )
+			if ( previous[ dependency.ordinal() ] != current[ dependency.ordinal() ] )
+				changed.add( dependency );
+		return changed;
+	}
+
+	/**
+	 * Returns <code>true</code> if at least one of the specified spots is
+	 * still to be computed with the specified token.
+	 */
+	private boolean isCurrent( final List< Spot > spots, final Long token )
+	{
+		for ( final Spot spot : spots )
+			if ( token.equals( tokens.get( spot ) ) )
+				return true;
+		return false;
+	}
+
+	/**
+	 * Computes the features of the spots of a region that are still current.
+	 */
+	private void process(
+			final Region region,
+			final Analysis analysis,
+			final Analyzers analyzers,
+			final AffineTransform3D imgToGlobal,
+			final double[] cal )
+	{
+		// Skip spots that were superseded or cancelled.
+		final List< Spot > batch = new ArrayList<>( region.getSpots().size() );
+		for ( final Spot spot : region.getSpots() )
+			if ( analysis.token.equals( tokens.get( spot ) ) )
+				batch.add( spot );
+		if ( batch.isEmpty() )
+			return;
+
+		// Reuse the transformed spots of this thread.
+		final List< TransformedSpot > pool = TRANSFORMED_SPOTS.get();
+		while ( pool.size() < batch.size() )
+			pool.add( new TransformedSpot() );
+		final List< TransformedSpot > transformedSpots = pool.subList( 0, batch.size() );
+		for ( int i = 0; i < batch.size(); i++ )
+			transformedSpots.get( i ).set( batch.get( i ), imgToGlobal, cal );
+
+		try
+		{
+			// Run each analyzer on the spots whose inputs it depends on changed.
+			final List< Spot > toProcess = new ArrayList<>( batch.size() );
+			for ( int i = 0; i < analysis.factories.size(); i++ )
+			{
+				final EnumSet< SpotFeatureDependency > dependencies = analysis.dependencies.get( i );
+				toProcess.clear();
+				for ( int j = 0; j < batch.size(); j++ )
+					if ( !Collections.disjoint( analysis.changes.get( batch.get( j ) ), dependencies ) )
+						toProcess.add( transformedSpots.get( j ) );
+				if ( toProcess.isEmpty() )
+					continue;
+
+				analyzers.get( i ).process( toProcess );
+			}
+		}
+		finally
+		{
+			for ( final TransformedSpot transformedSpot : transformedSpots )
+				transformedSpot.clear();
+		}
+	}
+
+	/**
+	 * Sets the memory budget of this calculator. It bounds the amount of
+	 * image data loaded for the regions in flight, assuming 2 bytes per
+	 * voxel. Computations in flight complete within the previous budget.
+	 *
+	 * @param bytes
+	 *            the memory budget, in bytes.
+	 */
+	public synchronized void setMemoryBudget( final long bytes )
+	{
+		this.memoryBudget = bytes;
+		this.budgetPermits = ( int ) Math.max( 1l, Math.min( Integer.MAX_VALUE, bytes / BYTES_PER_VOXEL ) );
+		this.budget = new Semaphore( budgetPermits );
+	}
+
+	public long getMemoryBudget()
+	{
+		return memoryBudget;
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		setNumThreads( Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * Sets the thread budget of this calculator. Computations in flight
+	 * complete on the previous pool.
+	 */
+	@Override
+	public synchronized void setNumThreads( final int numThreads )
+	{
+		if ( numThreads == this.numThreads && executor != null )
+			return;
+		this.numThreads = Math.max( 1, numThreads );
+		if ( executor != null )
+			loader.shutdown();
+		if ( !sharedExecutor )
+		{
+			if ( executor != null )
+				executor.shutdown();
+			this.executor = new ForkJoinPool( this.numThreads, pool -> {
+				final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread( pool );
+				thread.setName( "MaMuT spot feature calculator-" + thread.getPoolIndex() );
+				thread.setDaemon( true );
+				return thread;
+			}, null, false );
+		}
+		final AtomicInteger loaderIndex = new AtomicInteger();
+		this.loader = Executors.newFixedThreadPool( this.numThreads, r -> {
+			final Thread thread = new Thread( r, "MaMuT spot feature loader-" + loaderIndex.getAndIncrement() );
+			thread.setDaemon( true );
+			return thread;
+		} );
+	}
+
+	/**
+	 * Runs the spot computation tasks on the specified pool, shared with other
+	 * background tasks, instead of on a pool owned by this calculator. The
+	 * shared pool is not shut down by this calculator.
+	 *
+	 * @param executor
+	 *            the pool to use.
+	 */
+	public synchronized void setExecutorService( final ExecutorService executor )
+	{
+		if ( !sharedExecutor )
+			this.executor.shutdown();
+		this.executor = executor;
+		this.sharedExecutor = true;
+	}
+
+	/**
+	 * Sets the logger to report failed computations to.
+	 *
+	 * @param logger
+	 *            the logger.
+	 */
+	public void setLogger( final Logger logger )
+	{
+		this.logger = logger;
+	}
+
+	/**
+	 * Sets whether features are computed on the coarsest adequate resolution
+	 * level, rather than on the full resolution level.
+	 *
+	 * @param adaptiveResolution
+	 *            if <code>true</code>, the resolution level is picked per
+	 *            spot and per source.
+	 */
+	public void setAdaptiveResolution( final boolean adaptiveResolution )
+	{
+		this.adaptiveResolution = adaptiveResolution;
+	}
+
+	public boolean isAdaptiveResolution()
+	{
+		return adaptiveResolution;
+	}
+
+	/**
+	 * Sets whether analyzers are only run on the spots for which one of the
+	 * inputs they depend on changed since their last computation.
+	 *
+	 * @param dependencyTracking
+	 *            if <code>false</code>, all analyzers are run on all the spots
+	 *            to compute.
+	 */
+	public void setDependencyTracking( final boolean dependencyTracking )
+	{
+		this.dependencyTracking = dependencyTracking;
+	}
+
+	public boolean isDependencyTracking()
+	{
+		return dependencyTracking;
+	}
+
+	/**
+	 * Sets the minimal number of voxels that the spot diameter must span along
+	 * the worst-resolved axis, in adaptive resolution mode.
+	 *
+	 * @param minVoxelsPerDiameter
+	 *            the minimal number of voxels.
+	 */
+	public void setMinVoxelsPerDiameter( final double minVoxelsPerDiameter )
+	{
+		this.minVoxelsPerDiameter = minVoxelsPerDiameter;
+	}
+
+	public double getMinVoxelsPerDiameter()
+	{
+		return minVoxelsPerDiameter;
+	}
+
+	/**
+	 * Returns the coarsest level at which the spot diameter spans at least the
+	 * minimal number of voxels. Level 0 is returned if the spot is too small
+	 * even at full resolution.
+	 */
+	private int selectLevel( final Spot spot, final double[] worstScales )
+	{
+		final double diameter = 2. * spot.getFeature( Spot.RADIUS ).doubleValue();
+		int level = 0;
+		while ( level < worstScales.length - 1 && diameter / worstScales[ level + 1 ] >= minVoxelsPerDiameter )
+			level++;
+		return level;
+	}
+
+	/**
+	 * Returns, for each mipmap level of the source, the largest voxel size
+	 * along the 3 axes, in global coordinates.
+	 */
+	private static double[] getWorstScales( final Source< ? > source, final int frame )
+	{
+		final double[] worstScales = new double[ source.getNumMipmapLevels() ];
+		final AffineTransform3D sourceToGlobal = new AffineTransform3D();
+		for ( int level = 0; level < worstScales.length; level++ )
+		{
+			source.getSourceTransform( frame, level, sourceToGlobal );
+			double scale = Affine3DHelpers.extractScale( sourceToGlobal, 0 );
+			for ( int axis = 1; axis < 3; axis++ )
+				scale = Math.max( scale, Affine3DHelpers.extractScale( sourceToGlobal, axis ) );
+			worstScales[ level ] = scale;
+		}
+		return worstScales;
+	}
+
+	/**
+	 * Returns a view on the specified image, with its origin at the image
+	 * min.
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	static final ImgPlus< ? > wrap( final RandomAccessibleInterval rai, final String name, final double[] cal )
+	{
+		final AxisType[] axes = new AxisType[] { Axes.X, Axes.Y, Axes.Z };
+		final String[] units = new String[] { "globalpix", "globalpix", "globalpix" };
+		return new ImgPlus<>(
+				ImgView.wrap( Views.zeroMin( rai ) ),
+				name,
+				axes,
+				cal,
+				units );
+	}
+
+	/**
+	 * Instantiates an analyzer on the specified image.
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	private static final SpotAnalyzer< ? > createAnalyzer( final SpotAnalyzerFactoryBase factory, final ImgPlus img, final int channel )
 	{
 		/*
 		 * We expect to receive a single time-point image, so we point the
 		 * analyzers to its only frame.
 		 */
 		final int frame = 0;
+		final SpotAnalyzer< ? > analyzer = factory.getAnalyzer( img, frame, channel );
+
+		// We do multithread somewhere else.
+		if ( analyzer instanceof MultiThreaded )
+			( ( MultiThreaded ) analyzer ).setNumThreads( 1 );
+
+		return analyzer;
+	}
+
+	/**
+	 * The analyzers of one frame, source and resolution level, shared by the
+	 * regions of it. Analyzers may keep scratch state between spots, so each
+	 * computation thread gets its own instances, created on first use.
+	 */
+	private static final class Analyzers
+	{
+
+		private final List< SpotAnalyzerFactoryBase< ? > > factories;
+
+		private final ImgPlus< ? > img;
 
-		// Process all analyzers.
-		for ( @SuppressWarnings( "rawtypes" )
-		final SpotAnalyzerFactoryBase factory : analyzerFactories )
+		private final int channel;
+
+		private final Map< Thread, SpotAnalyzer< ? >[] > perThread = new ConcurrentHashMap<>();
+
+		private Analyzers( final List< SpotAnalyzerFactoryBase< ? > > factories, final ImgPlus< ? > img, final int channel )
 		{
-			@SuppressWarnings( "unchecked" )
-			final SpotAnalyzer< ? > analyzer = factory.getAnalyzer( img, frame, channel );
+			this.factories = factories;
+			this.img = img;
+			this.channel = channel;
+		}
 
-			// We do multithread somewhere else.
-			if ( analyzer instanceof MultiThreaded )
-				( ( MultiThreaded ) analyzer ).setNumThreads( 1 );
+		/**
+		 * Returns the analyzer of the specified factory for the current
+		 * thread.
+		 */
+		private SpotAnalyzer< ? > get( final int i )
+		{
+			final SpotAnalyzer< ? >[] analyzers = perThread.computeIfAbsent( Thread.currentThread(), t -> new SpotAnalyzer< ? >[ factories.size() ] );
+			if ( null == analyzers[ i ] )
+				analyzers[ i ] = createAnalyzer( factories.get( i ), img, channel );
+			return analyzers[ i ];
+		}
+	}
 
-			analyzer.process( Collections.singletonList( spot ) );
+	/**
+	 * What a computation runs: its token, the analyzers, what they depend on,
+	 * and what changed for each spot.
+	 */
+	private static final class Analysis
+	{
+
+		private final Long token;
+
+		private final List< SpotAnalyzerFactoryBase< ? > > factories;
+
+		private final List< EnumSet< SpotFeatureDependency > > dependencies;
+
+		private final Map< Spot, EnumSet< SpotFeatureDependency > > changes;
+
+		private Analysis(
+				final Long token,
+				final List< SpotAnalyzerFactoryBase< ? > > factories,
+				final List< EnumSet< SpotFeatureDependency > > dependencies,
+				final Map< Spot, EnumSet< SpotFeatureDependency > > changes )
+		{
+			this.token = token;
+			this.factories = factories;
+			this.dependencies = dependencies;
+			this.changes = changes;
 		}
 	}
 }
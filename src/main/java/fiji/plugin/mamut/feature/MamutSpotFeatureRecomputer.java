@@ -0,0 +1,570 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.feature;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.scijava.Cancelable;
+
+import bdv.cache.CacheControl;
+import bdv.img.cache.VolatileGlobalCellCache;
+import fiji.plugin.mamut.SourceSettings;
+import fiji.plugin.mamut.io.MamutBinaryFormat;
+import fiji.plugin.mamut.io.MamutBinaryReader;
+import fiji.plugin.mamut.io.MamutBinaryWriter;
+import fiji.plugin.mamut.io.MamutXmlReader;
+import fiji.plugin.mamut.io.MamutXmlStreamReader;
+import fiji.plugin.mamut.io.MamutXmlStreamWriter;
+import fiji.plugin.mamut.io.MamutXmlWriter;
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.features.spot.SpotAnalyzerFactoryBase;
+import net.imglib2.algorithm.Algorithm;
+import net.imglib2.algorithm.Benchmark;
+import net.imglib2.algorithm.MultiThreaded;
+
+/**
+ * Recomputes the features of all the spots of a model, streaming over the
+ * frames of the {@link SourceSettings} sources in bounded memory.
+ * <p>
+ * Frames are processed one after the other. Once a frame is done, the whole
+ * image cache of the sources is cleared and the feature values of its spots
+ * are appended to a checkpoint file. If a run is interrupted, a new run with
+ * the same checkpoint file restores the values already computed and resumes
+ * after the last completed frame. The checkpoint records the length and
+ * modification time of the file the model was read from, and is rejected if
+ * that file changed in between. The checkpoint file is deleted when the run
+ * completes.
+ * <p>
+ * This class can be run headless with {@link #main(String[])}.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class MamutSpotFeatureRecomputer implements Algorithm, Benchmark, MultiThreaded, Cancelable
+{
+
+	private static final String BASE_ERROR_MSG = "[MamutSpotFeatureRecomputer] ";
+
+	/** Extension of the checkpoint file next to a MaMuT file. */
+	public static final String CHECKPOINT_EXTENSION = ".checkpoint";
+
+	private static final int MAGIC = 0x4d4d4643; // "MMFC"
+
+	private static final int VERSION = 1;
+
+	private final Model model;
+
+	private final SourceSettings settings;
+
+	private final File checkpointFile;
+
+	/** Length and modification time of the input file, -1 if unknown. */
+	private final long[] inputStamp;
+
+	private final Logger logger;
+
+	private int numThreads;
+
+	private String errorMessage;
+
+	private long processingTime;
+
+	private volatile String cancelReason;
+
+	/**
+	 * Creates a recomputer for the specified model.
+	 *
+	 * @param model
+	 *            the model whose spot features to recompute.
+	 * @param settings
+	 *            the settings to get the image data and the analyzers from.
+	 * @param checkpointFile
+	 *            the file to store the progress in. If <code>null</code>, the
+	 *            progress is not saved and a run cannot be resumed.
+	 * @param logger
+	 *            the logger to report progress and throughput to.
+	 */
+	public MamutSpotFeatureRecomputer( final Model model, final SourceSettings settings, final File checkpointFile, final Logger logger )
+	{
+		this( model, settings, null, checkpointFile, logger );
+	}
+
+	/**
+	 * Creates a recomputer for the specified model, read from the specified
+	 * file.
+	 *
+	 * @param model
+	 *            the model whose spot features to recompute.
+	 * @param settings
+	 *            the settings to get the image data and the analyzers from.
+	 * @param inputFile
+	 *            the file the model was read from. Its length and
+	 *            modification time are stored in the checkpoint, and a
+	 *            checkpoint made for another version of this file is
+	 *            rejected. Can be <code>null</code>.
+	 * @param checkpointFile
+	 *            the file to store the progress in. If <code>null</code>, the
+	 *            progress is not saved and a run cannot be resumed.
+	 * @param logger
+	 *            the logger to report progress and throughput to.
+	 */
+	public MamutSpotFeatureRecomputer( final Model model, final SourceSettings settings, final File inputFile, final File checkpointFile, final Logger logger )
+	{
+		this.model = model;
+		this.settings = settings;
+		this.checkpointFile = checkpointFile;
+		this.inputStamp = ( null == inputFile )
+				? new long[] { -1l, -1l }
+				: new long[] { inputFile.length(), inputFile.lastModified() };
+		this.logger = logger;
+		setNumThreads();
+	}
+
+	/**
+	 * Returns the checkpoint file used by default for the specified MaMuT
+	 * file.
+	 */
+	public static File checkpointFileFor( final File mamutFile )
+	{
+		return new File( mamutFile.getParentFile(), mamutFile.getName() + CHECKPOINT_EXTENSION );
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( null == model )
+		{
+			errorMessage = BASE_ERROR_MSG + "The model is null.\n";
+			return false;
+		}
+		if ( null == settings )
+		{
+			errorMessage = BASE_ERROR_MSG + "The settings are null.\n";
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean process()
+	{
+		final long start = System.currentTimeMillis();
+		cancelReason = null;
+
+		final List< String > features = getFeatures();
+		final SpotCollection spots = model.getSpots();
+		final int nSpotsTotal = spots.getNSpots( false );
+
+		int firstFrame = 0;
+		long nSpotsDone = 0;
+		if ( null != checkpointFile && checkpointFile.exists() )
+		{
+			try
+			{
+				final int[] resumed = readCheckpoint( features );
+				firstFrame = resumed[ 0 ] + 1;
+				nSpotsDone = resumed[ 1 ];
+				logger.log( "Resuming after frame " + resumed[ 0 ] + ", " + nSpotsDone + " spots already done.\n" );
+			}
+			catch ( final IOException e )
+			{
+				errorMessage = BASE_ERROR_MSG + "Could not read checkpoint file " + checkpointFile + ":\n" + e.getMessage() + "\n";
+				return false;
+			}
+		}
+
+		final MamutSpotFeatureCalculator calculator = new MamutSpotFeatureCalculator( settings, numThreads );
+		calculator.setLogger( logger );
+		try (final DataOutputStream checkpoint = openCheckpoint( features, firstFrame > 0 ))
+		{
+			logger.setStatus( "Recomputing spot features" );
+			logger.log( "Recomputing the features of " + nSpotsTotal + " spots over " + settings.nframes + " frames.\n" );
+			final long computeStart = System.currentTimeMillis();
+			long nSpotsComputed = 0;
+			for ( int frame = firstFrame; frame < settings.nframes; frame++ )
+			{
+				if ( isCanceled() )
+				{
+					logger.log( "Canceled before frame " + frame + ": " + cancelReason + "\n" );
+					break;
+				}
+
+				final List< Spot > toCompute = new ArrayList<>( spots.getNSpots( frame, false ) );
+				for ( final Spot spot : spots.iterable( frame, false ) )
+					toCompute.add( spot );
+				if ( toCompute.isEmpty() )
+					continue;
+
+				final long frameStart = System.currentTimeMillis();
+				calculator.computeSpotFeatures( toCompute );
+				if ( Thread.currentThread().isInterrupted() )
+				{
+					cancel( "Interrupted." );
+					break;
+				}
+				final long frameEnd = System.currentTimeMillis();
+
+				// Release the image data of this frame.
+				releaseCache( settings.getCacheControl() );
+
+				if ( null != checkpoint )
+					writeCheckpoint( checkpoint, frame, toCompute, features );
+
+				nSpotsDone += toCompute.size();
+				nSpotsComputed += toCompute.size();
+				logger.log( String.format( "Frame %d: %d spots in %.1f s, %.0f spots/s overall.\n",
+						frame, toCompute.size(), ( frameEnd - frameStart ) / 1000.,
+						1000. * nSpotsComputed / Math.max( 1, frameEnd - computeStart ) ) );
+				logger.setProgress( ( double ) nSpotsDone / Math.max( 1, nSpotsTotal ) );
+			}
+		}
+		catch ( final IOException e )
+		{
+			errorMessage = BASE_ERROR_MSG + "Could not write checkpoint file " + checkpointFile + ":\n" + e.getMessage() + "\n";
+			return false;
+		}
+		finally
+		{
+			calculator.shutdown();
+			logger.setProgress( 0. );
+			logger.setStatus( "" );
+		}
+
+		processingTime = System.currentTimeMillis() - start;
+		if ( isCanceled() )
+		{
+			errorMessage = BASE_ERROR_MSG + "Canceled: " + cancelReason + "\n";
+			return false;
+		}
+
+		if ( null != checkpointFile )
+			checkpointFile.delete();
+		logger.log( String.format( "Done in %.1f s.\n", processingTime / 1000. ) );
+		return true;
+	}
+
+	/**
+	 * Returns the features computed by the spot analyzers of the settings.
+	 */
+	private List< String > getFeatures()
+	{
+		final Set< String > features = new LinkedHashSet<>();
+		for ( final SpotAnalyzerFactoryBase< ? > factory : settings.getSpotAnalyzerFactories() )
+			features.addAll( factory.getFeatures() );
+		return new ArrayList<>( features );
+	}
+
+	/**
+	 * Clears the whole image cache, not only the data of the frame just
+	 * processed: {@link VolatileGlobalCellCache} cannot release a single
+	 * timepoint. Viewers sharing the same cache will therefore reload the
+	 * data they display.
+	 */
+	private static void releaseCache( final CacheControl cache )
+	{
+		if ( cache instanceof VolatileGlobalCellCache )
+			( ( VolatileGlobalCellCache ) cache ).clearCache();
+	}
+
+	/*
+	 * CHECKPOINT.
+	 *
+	 * A header with the length and modification time of the input file and
+	 * the feature keys, then one record per completed frame: the frame, the
+	 * number of spots, then for each spot its ID, a presence bitmap of its
+	 * features (one bit per feature, in longs) and its feature values, 0 for a
+	 * missing one. A record truncated by a crash is ignored.
+	 */
+
+	private static int presenceWords( final int nFeatures )
+	{
+		return ( nFeatures + 63 ) >>> 6;
+	}
+
+	private DataOutputStream openCheckpoint( final List< String > features, final boolean append ) throws IOException
+	{
+		if ( null == checkpointFile )
+			return null;
+
+		final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( checkpointFile, append ) ) );
+		if ( !append )
+		{
+			out.writeInt( MAGIC );
+			out.writeInt( VERSION );
+			out.writeLong( inputStamp[ 0 ] );
+			out.writeLong( inputStamp[ 1 ] );
+			out.writeInt( features.size() );
+			for ( final String feature : features )
+				out.writeUTF( feature );
+			out.flush();
+		}
+		return out;
+	}
+
+	private static void writeCheckpoint( final DataOutputStream out, final int frame, final List< Spot > spots, final List< String > features ) throws IOException
+	{
+		final int nFeatures = features.size();
+		final long[] present = new long[ presenceWords( nFeatures ) ];
+		final double[] values = new double[ nFeatures ];
+		out.writeInt( frame );
+		out.writeInt( spots.size() );
+		for ( final Spot spot : spots )
+		{
+			Arrays.fill( present, 0l );
+			for ( int j = 0; j < nFeatures; j++ )
+			{
+				final Double val = spot.getFeature( features.get( j ) );
+				if ( null == val )
+				{
+					values[ j ] = 0.;
+				}
+				else
+				{
+					values[ j ] = val.doubleValue();
+					present[ j >>> 6 ] |= 1l << ( j & 63 );
+				}
+			}
+			out.writeInt( spot.ID() );
+			for ( final long word : present )
+				out.writeLong( word );
+			for ( final double value : values )
+				out.writeDouble( value );
+		}
+		out.flush();
+	}
+
+	/**
+	 * Restores the feature values stored in the checkpoint file.
+	 *
+	 * @return the last completed frame and the number of spots done.
+	 */
+	private int[] readCheckpoint( final List< String > features ) throws IOException
+	{
+		final Map< Integer, Spot > spotsById = new HashMap<>();
+		for ( final Spot spot : model.getSpots().iterable( false ) )
+			spotsById.put( Integer.valueOf( spot.ID() ), spot );
+
+		int lastFrame = -1;
+		int nSpots = 0;
+		long validLength;
+		try (final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( checkpointFile ) ) ))
+		{
+			if ( in.readInt() != MAGIC || in.readInt() != VERSION )
+				throw new IOException( "Not a MaMuT checkpoint file." );
+			final long length = in.readLong();
+			final long lastModified = in.readLong();
+			if ( length != inputStamp[ 0 ] || lastModified != inputStamp[ 1 ] )
+				throw new IOException( "The checkpoint was made for another version of the input file. Delete it to start over." );
+			final int nFeatures = in.readInt();
+			final List< String > stored = new ArrayList<>( nFeatures );
+			for ( int i = 0; i < nFeatures; i++ )
+				stored.add( in.readUTF() );
+			if ( !stored.equals( features ) )
+				throw new IOException( "The checkpoint was made with different spot analyzers." );
+
+			long position = 28;
+			for ( final String feature : stored )
+				position += 2 + feature.getBytes( "UTF-8" ).length;
+			validLength = position;
+
+			final int nWords = presenceWords( nFeatures );
+			while ( true )
+			{
+				final int frame;
+				final int n;
+				final int[] ids;
+				final long[][] present;
+				final double[][] vals;
+				try
+				{
+					frame = in.readInt();
+					n = in.readInt();
+					ids = new int[ n ];
+					present = new long[ n ][ nWords ];
+					vals = new double[ n ][ nFeatures ];
+					for ( int i = 0; i < n; i++ )
+					{
+						ids[ i ] = in.readInt();
+						for ( int w = 0; w < nWords; w++ )
+							present[ i ][ w ] = in.readLong();
+						for ( int j = 0; j < nFeatures; j++ )
+							vals[ i ][ j ] = in.readDouble();
+					}
+				}
+				catch ( final EOFException e )
+				{
+					// End of file, or truncated record.
+					break;
+				}
+
+				for ( int i = 0; i < n; i++ )
+				{
+					final Spot spot = spotsById.get( Integer.valueOf( ids[ i ] ) );
+					if ( null == spot )
+						continue;
+					for ( int j = 0; j < nFeatures; j++ )
+						if ( ( present[ i ][ j >>> 6 ] & ( 1l << ( j & 63 ) ) ) != 0 )
+							spot.putFeature( stored.get( j ), Double.valueOf( vals[ i ][ j ] ) );
+				}
+				lastFrame = Math.max( lastFrame, frame );
+				nSpots += n;
+				validLength += 8 + n * ( 4 + 8l * nWords + 8l * nFeatures );
+			}
+		}
+
+		// Drop a truncated trailing record before appending.
+		try (final FileOutputStream out = new FileOutputStream( checkpointFile, true ))
+		{
+			out.getChannel().truncate( validLength );
+		}
+		return new int[] { lastFrame, nSpots };
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	@Override
+	public long getProcessingTime()
+	{
+		return processingTime;
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = Runtime.getRuntime().availableProcessors();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	@Override
+	public boolean isCanceled()
+	{
+		return null != cancelReason;
+	}
+
+	@Override
+	public void cancel( final String reason )
+	{
+		this.cancelReason = reason;
+	}
+
+	@Override
+	public String getCancelReason()
+	{
+		return cancelReason;
+	}
+
+	/**
+	 * Headless entry point.
+	 * <p>
+	 * Usage: <code>MamutSpotFeatureRecomputer mamutFile [outputFile [numThreads]]</code>
+	 * <p>
+	 * Recomputes the spot features of the MaMuT file, and saves the model and
+	 * settings to the output file. The output file defaults to the MaMuT file
+	 * with a <code>-recomputed</code> suffix. It is written in the binary
+	 * format if its name ends with {@link MamutBinaryFormat#EXTENSION}, and
+	 * as streamed XML otherwise. The GUI state of the MaMuT file
+	 * is not copied to the output file. Progress is checkpointed next to the
+	 * output file, so running the same command again after an interruption
+	 * resumes the computation, unless the MaMuT file changed in between.
+	 * The process exits with a non-zero status if the arguments are missing,
+	 * or if reading the file or recomputing the features fails.
+	 */
+	public static void main( final String[] args ) throws IOException
+	{
+		if ( args.length < 1 )
+		{
+			System.err.println( "Usage: MamutSpotFeatureRecomputer mamutFile [outputFile [numThreads]]" );
+			System.exit( 1 );
+		}
+
+		final File mamutFile = new File( args[ 0 ] );
+		final File outputFile;
+		if ( args.length > 1 )
+			outputFile = new File( args[ 1 ] );
+		else if ( MamutBinaryFormat.hasBinaryExtension( mamutFile ) )
+			outputFile = new File( mamutFile.getParentFile(), mamutFile.getName().replaceFirst( "(?i)\\.mamutbin$", "-recomputed" + MamutBinaryFormat.EXTENSION ) );
+		else
+			outputFile = new File( mamutFile.getParentFile(), mamutFile.getName().replaceFirst( "(\\.xml)?$", "-recomputed.xml" ) );
+		final Logger logger = Logger.DEFAULT_LOGGER;
+
+		final MamutXmlReader reader = MamutBinaryFormat.isBinaryFile( mamutFile )
+				? new MamutBinaryReader( mamutFile )
+				: new MamutXmlStreamReader( mamutFile );
+		final Model model = reader.getModel();
+		final SourceSettings settings = reader.readSourceSettings();
+		if ( !reader.isReadingOk() )
+		{
+			logger.error( reader.getErrorMessage() );
+			System.exit( 1 );
+		}
+
+		final MamutSpotFeatureRecomputer recomputer = new MamutSpotFeatureRecomputer( model, settings, mamutFile, checkpointFileFor( outputFile ), logger );
+		if ( args.length > 2 )
+			recomputer.setNumThreads( Integer.parseInt( args[ 2 ] ) );
+		if ( !recomputer.checkInput() || !recomputer.process() )
+		{
+			logger.error( recomputer.getErrorMessage() );
+			System.exit( 1 );
+		}
+
+		final MamutXmlWriter writer = MamutBinaryFormat.hasBinaryExtension( outputFile )
+				? new MamutBinaryWriter( outputFile, logger )
+				: new MamutXmlStreamWriter( outputFile, logger );
+		writer.appendModel( model );
+		writer.appendSettings( settings );
+		writer.appendDisplaySettings( reader.getDisplaySettings() );
+		writer.writeToFile();
+		logger.log( "Saved to " + outputFile + "\n" );
+	}
+}
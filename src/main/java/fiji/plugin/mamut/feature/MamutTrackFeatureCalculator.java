@@ -0,0 +1,263 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.feature;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+import fiji.plugin.mamut.feature.track.IncrementalTrackAnalyzer;
+import fiji.plugin.mamut.feature.track.IncrementalTrackBranchingAnalyzer;
+import fiji.plugin.mamut.feature.track.IncrementalTrackDurationAnalyzer;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.TrackModel;
+import fiji.plugin.trackmate.features.track.TrackAnalyzer;
+import fiji.plugin.trackmate.features.track.TrackBranchingAnalyzer;
+import fiji.plugin.trackmate.features.track.TrackDurationAnalyzer;
+import net.imglib2.algorithm.MultiThreaded;
+
+/**
+ * A class dedicated to updating the numerical features of tracks after model
+ * changes, tuned for Mamut.
+ * <p>
+ * Tracks that only grew, by the addition of spots and edges, are updated
+ * incrementally by the {@link IncrementalTrackAnalyzer}s, from the local
+ * change only. Some TrackMate analyzers are swapped for an incremental
+ * equivalent that computes the same features. Analyzers that are not
+ * incremental, and tracks that underwent any other change, get a full
+ * recomputation.
+ */
+public class MamutTrackFeatureCalculator implements MultiThreaded
+{
+
+	private final Model model;
+
+	private final Settings settings;
+
+	/** Incremental equivalents of TrackMate analyzers, by analyzer key. */
+	private final Map< String, IncrementalTrackAnalyzer > incrementals = new HashMap<>();
+
+	/**
+	 * The number of spots in each track after the last update. Used to check
+	 * that a track only grew, and did not merge with another one.
+	 */
+	private final Map< Integer, Integer > trackSizes = new HashMap<>();
+
+	private int numThreads;
+
+	public MamutTrackFeatureCalculator( final Model model, final Settings settings )
+	{
+		this.model = model;
+		this.settings = settings;
+		incrementals.put( TrackBranchingAnalyzer.KEY, new IncrementalTrackBranchingAnalyzer() );
+		incrementals.put( TrackDurationAnalyzer.KEY, new IncrementalTrackDurationAnalyzer() );
+
+		final TrackModel tm = model.getTrackModel();
+		for ( final Integer trackID : tm.trackIDs( false ) )
+			trackSizes.put( trackID, Integer.valueOf( tm.trackSpots( trackID ).size() ) );
+		setNumThreads();
+	}
+
+	/**
+	 * Updates the features of the specified tracks.
+	 *
+	 * @param trackIDs
+	 *            the IDs of the tracks that must be fully recomputed.
+	 * @param grownTrackIDs
+	 *            the IDs of the tracks that only had spots and edges added to
+	 *            them. They are updated incrementally when possible.
+	 * @param addedEdges
+	 *            the edges added to the model since the last update.
+	 */
+	public synchronized void updateTrackFeatures(
+			final Collection< Integer > trackIDs,
+			final Collection< Integer > grownTrackIDs,
+			final Collection< DefaultWeightedEdge > addedEdges )
+	{
+		final TrackModel tm = model.getTrackModel();
+		final Set< Integer > existing = tm.trackIDs( false );
+
+		final Set< Integer > full = new HashSet<>();
+		for ( final Integer trackID : trackIDs )
+			if ( existing.contains( trackID ) )
+				full.add( trackID );
+
+		/*
+		 * Group additions by track, with the current track IDs.
+		 */
+
+		final Map< Integer, Growth > growths = new HashMap<>();
+		for ( final DefaultWeightedEdge edge : addedEdges )
+		{
+			final Integer trackID = tm.trackIDOf( edge );
+			if ( trackID != null )
+				growths.computeIfAbsent( trackID, k -> new Growth() ).edges.add( edge );
+		}
+
+		final Set< DefaultWeightedEdge > addedEdgeSet = new HashSet<>( addedEdges );
+		for ( final Map.Entry< Integer, Growth > entry : growths.entrySet() )
+		{
+			final Integer trackID = entry.getKey();
+			final Growth growth = entry.getValue();
+
+			/*
+			 * A spot is new to the track if all its edges are new: it was
+			 * created, or was a lone spot, before the change.
+			 */
+
+			final Set< Spot > candidates = new HashSet<>();
+			for ( final DefaultWeightedEdge edge : growth.edges )
+			{
+				candidates.add( tm.getEdgeSource( edge ) );
+				candidates.add( tm.getEdgeTarget( edge ) );
+			}
+			for ( final Spot spot : candidates )
+				if ( addedEdgeSet.containsAll( tm.edgesOf( spot ) ) )
+					growth.spots.add( spot );
+
+			// If the track is bigger than that, it merged with another one.
+			final Integer previousSize = trackSizes.get( trackID );
+			final int size = tm.trackSpots( trackID ).size();
+			if ( previousSize == null || size - growth.spots.size() != previousSize.intValue() )
+				full.add( trackID );
+		}
+
+		// Tracks we were told grew, but not by additions we know of.
+		for ( final Integer trackID : grownTrackIDs )
+			if ( existing.contains( trackID ) && !growths.containsKey( trackID ) )
+				full.add( trackID );
+
+		final List< Integer > grown = new ArrayList<>( growths.size() );
+		for ( final Integer trackID : growths.keySet() )
+			if ( !full.contains( trackID ) )
+				grown.add( trackID );
+
+		// Forget deleted tracks, even if nothing else needs updating.
+		trackSizes.keySet().retainAll( existing );
+		for ( final IncrementalTrackAnalyzer incremental : incrementals.values() )
+			incremental.retainTracks( existing );
+		for ( final TrackAnalyzer analyzer : settings.getTrackAnalyzers() )
+			if ( analyzer instanceof IncrementalTrackAnalyzer )
+				( ( IncrementalTrackAnalyzer ) analyzer ).retainTracks( existing );
+
+		if ( full.isEmpty() && grown.isEmpty() )
+			return;
+
+		final Set< Integer > all = new HashSet<>( full );
+		all.addAll( grown );
+
+		/*
+		 * Run analyzers.
+		 */
+
+		for ( final TrackAnalyzer analyzer : settings.getTrackAnalyzers() )
+		{
+			final IncrementalTrackAnalyzer incremental = getIncremental( analyzer );
+			final TrackAnalyzer target = ( incremental == null ) ? analyzer : incremental;
+			target.setNumThreads( numThreads );
+
+			if ( !target.isLocal() )
+			{
+				target.process( existing, model );
+				continue;
+			}
+
+			if ( incremental == null )
+			{
+				target.process( all, model );
+				continue;
+			}
+
+			final List< Integer > toRecompute = new ArrayList<>( full );
+			for ( final Integer trackID : grown )
+			{
+				final Growth growth = growths.get( trackID );
+				if ( !incremental.update( trackID, growth.spots, growth.edges, model ) )
+					toRecompute.add( trackID );
+			}
+			if ( !toRecompute.isEmpty() )
+				incremental.process( toRecompute, model );
+		}
+
+		/*
+		 * Record new track sizes.
+		 */
+
+		for ( final Integer trackID : all )
+			trackSizes.put( trackID, Integer.valueOf( tm.trackSpots( trackID ).size() ) );
+	}
+
+	/**
+	 * Recomputes the features of the specified tracks with all analyzers.
+	 *
+	 * @param trackIDs
+	 *            the IDs of the tracks to recompute.
+	 */
+	public void computeTrackFeatures( final Collection< Integer > trackIDs )
+	{
+		updateTrackFeatures( trackIDs, Collections.emptyList(), Collections.emptyList() );
+	}
+
+	private IncrementalTrackAnalyzer getIncremental( final TrackAnalyzer analyzer )
+	{
+		if ( analyzer instanceof IncrementalTrackAnalyzer )
+			return ( IncrementalTrackAnalyzer ) analyzer;
+		return incrementals.get( analyzer.getKey() );
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		setNumThreads( Runtime.getRuntime().availableProcessors() );
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * The spots and edges added to a single track.
+	 */
+	private static final class Growth
+	{
+		private final Set< Spot > spots = new HashSet<>();
+
+		private final List< DefaultWeightedEdge > edges = new ArrayList<>();
+	}
+}
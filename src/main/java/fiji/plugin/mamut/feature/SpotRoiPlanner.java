@@ -0,0 +1,241 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.feature;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import bdv.util.Affine3DHelpers;
+import fiji.plugin.mamut.feature.spot.SpotIntensityStatisticsAnalyzer;
+import fiji.plugin.trackmate.Spot;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealPoint;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.iterator.LocalizingIntervalIterator;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Intervals;
+
+/**
+ * Plans the regions of a source image that spot feature computation needs to
+ * access.
+ * <p>
+ * The source image is divided in blocks, matching the cells of the image when
+ * it is a cell image. Spots are grouped by the block their center falls in,
+ * and each group yields a region: the union of the bounding boxes of its
+ * spots, in source pixel coordinates. Analyzers only read the data of the
+ * region when they process its spots, so the cells a region spans can be
+ * loaded in one go with {@link #prefetch(RandomAccessibleInterval, Interval)}
+ * beforehand.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class SpotRoiPlanner
+{
+
+	/**
+	 * Block size used to group spots, when the image is not a cell image.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 64;
+
+	/**
+	 * Number of pixels added around the footprint of each spot.
+	 */
+	private static final int MARGIN = 1;
+
+	/**
+	 * The smallest footprint, in spot radii, of a region. The TrackMate
+	 * contrast and SNR analyzers and {@link SpotIntensityStatisticsAnalyzer}
+	 * read the shell between 1 and 2 radii around each spot.
+	 */
+	public static final double MIN_FOOTPRINT = 2.;
+
+	private SpotRoiPlanner()
+	{}
+
+	/**
+	 * A region of the source image, and the spots whose features it is needed
+	 * for.
+	 */
+	public static class Region
+	{
+
+		private final long[] min;
+
+		private final long[] max;
+
+		private final List< Spot > spots = new ArrayList<>();
+
+		private Region( final long[] min, final long[] max )
+		{
+			this.min = min.clone();
+			this.max = max.clone();
+		}
+
+		private void add( final Spot spot, final long[] smin, final long[] smax )
+		{
+			for ( int d = 0; d < min.length; d++ )
+			{
+				min[ d ] = Math.min( min[ d ], smin[ d ] );
+				max[ d ] = Math.max( max[ d ], smax[ d ] );
+			}
+			spots.add( spot );
+		}
+
+		/**
+		 * Returns the region, in source pixel coordinates.
+		 */
+		public Interval getInterval()
+		{
+			return new FinalInterval( min, max );
+		}
+
+		public List< Spot > getSpots()
+		{
+			return spots;
+		}
+	}
+
+	/**
+	 * Plans the regions needed to compute the features of the specified spots.
+	 *
+	 * @param spots
+	 *            the spots, in global coordinates.
+	 * @param sourceToGlobal
+	 *            the transform from source pixel coordinates to global
+	 *            coordinates.
+	 * @param image
+	 *            the source image.
+	 * @param footprint
+	 *            how far from the spot center analyzers read, in spot radii.
+	 *            Values smaller than {@link #MIN_FOOTPRINT} are raised to it.
+	 * @return a new list of regions. Each spot belongs to exactly one region.
+	 *         Regions lie within the image bounds, and may overlap.
+	 */
+	public static List< Region > plan( final Collection< Spot > spots, final AffineTransform3D sourceToGlobal, final RandomAccessibleInterval< ? > image, final double footprint )
+	{
+		final double extent = Math.max( MIN_FOOTPRINT, footprint );
+		final int n = image.numDimensions();
+		final int[] blockSize = getBlockSize( image );
+		final double[] scales = new double[ 3 ];
+		for ( int d = 0; d < 3; d++ )
+			scales[ d ] = Affine3DHelpers.extractScale( sourceToGlobal, d );
+
+		final Map< List< Long >, Region > regions = new LinkedHashMap<>();
+		final RealPoint pos = new RealPoint( 3 );
+		final long[] smin = new long[ n ];
+		final long[] smax = new long[ n ];
+		final List< Long > block = new ArrayList<>( n );
+		for ( final Spot spot : spots )
+		{
+			sourceToGlobal.applyInverse( pos, spot );
+			final double radius = spot.getFeature( Spot.RADIUS ).doubleValue();
+			block.clear();
+			for ( int d = 0; d < n; d++ )
+			{
+				final double center = d < 3 ? pos.getDoublePosition( d ) : 0.;
+				final double r = d < 3 ? extent * radius / scales[ d ] : 0.;
+				smin[ d ] = ( long ) Math.floor( center - r ) - MARGIN;
+				smax[ d ] = ( long ) Math.ceil( center + r ) + MARGIN;
+
+				/*
+				 * Clip to the image. Spots entirely outside of the image get
+				 * a single-pixel region on its border, so that they are still
+				 * processed, like with the whole image.
+				 */
+				smin[ d ] = Math.min( Math.max( smin[ d ], image.min( d ) ), image.max( d ) );
+				smax[ d ] = Math.min( Math.max( smax[ d ], image.min( d ) ), image.max( d ) );
+
+				final long c = Math.min( Math.max( Math.round( center ), image.min( d ) ), image.max( d ) );
+				block.add( Long.valueOf( Math.floorDiv( c - image.min( d ), blockSize[ d ] ) ) );
+			}
+
+			Region region = regions.get( block );
+			if ( region == null )
+			{
+				region = new Region( smin, smax );
+				regions.put( new ArrayList<>( block ), region );
+			}
+			region.add( spot, smin, smax );
+		}
+		return new ArrayList<>( regions.values() );
+	}
+
+	/**
+	 * Loads the cells of the specified image that intersect the specified
+	 * interval. Does nothing if the image is not a cell image.
+	 *
+	 * @param image
+	 *            the image.
+	 * @param interval
+	 *            the interval to load, in image coordinates.
+	 */
+	public static void prefetch( final RandomAccessibleInterval< ? > image, final Interval interval )
+	{
+		if ( !( image instanceof AbstractCellImg ) )
+			return;
+
+		final AbstractCellImg< ?, ?, ?, ? > cellImg = ( AbstractCellImg< ?, ?, ?, ? > ) image;
+		final CellGrid grid = cellImg.getCellGrid();
+		final Interval toLoad = Intervals.intersect( interval, cellImg );
+		if ( Intervals.isEmpty( toLoad ) )
+			return;
+
+		final int n = toLoad.numDimensions();
+		final long[] gmin = new long[ n ];
+		final long[] gmax = new long[ n ];
+		grid.getCellPosition( Intervals.minAsLongArray( toLoad ), gmin );
+		grid.getCellPosition( Intervals.maxAsLongArray( toLoad ), gmax );
+
+		final RandomAccess< ? > cells = cellImg.getCells().randomAccess();
+		final LocalizingIntervalIterator it = new LocalizingIntervalIterator( gmin, gmax );
+		while ( it.hasNext() )
+		{
+			it.fwd();
+			cells.setPosition( it );
+			cells.get();
+		}
+	}
+
+	private static int[] getBlockSize( final RandomAccessibleInterval< ? > image )
+	{
+		final int[] blockSize = new int[ image.numDimensions() ];
+		if ( image instanceof AbstractCellImg )
+		{
+			final CellGrid grid = ( ( AbstractCellImg< ?, ?, ?, ? > ) image ).getCellGrid();
+			for ( int d = 0; d < blockSize.length; d++ )
+				blockSize[ d ] = grid.cellDimension( d );
+		}
+		else
+		{
+			for ( int d = 0; d < blockSize.length; d++ )
+				blockSize[ d ] = DEFAULT_BLOCK_SIZE;
+		}
+		return blockSize;
+	}
+}
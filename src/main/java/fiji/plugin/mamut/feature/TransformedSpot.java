@@ -21,17 +21,22 @@
  */
 package fiji.plugin.mamut.feature;
 
+import java.util.Arrays;
 import java.util.Map;
 
 import bdv.util.Affine3DHelpers;
 import fiji.plugin.trackmate.Spot;
-import net.imglib2.RealPoint;
 import net.imglib2.realtransform.AffineTransform3D;
 
 /**
  * Wrapper for a spot, that exposes different coordinates calculated from a
  * transform, but has still the same features.
  * <p>
+ * Instances are flyweights: they can be re-pointed to another spot with
+ * {@link #set(Spot, AffineTransform3D, double[])}, which allocates nothing.
+ * They all share the same dummy ID and do not consume IDs from
+ * {@link Spot#IDcounter}. Since the ID does not tell them apart, equality is
+ * identity.
  * 
  * @author Jean-Yves Tinevez
  */
@@ -39,17 +44,80 @@ public class TransformedSpot extends Spot
 {
 	// TODO If only Spot was an interface...
 
-	private final Spot wrapped;
+	/** The ID shared by all the transformed spots. */
+	private static final int FLYWEIGHT_ID = -1;
 
-	private TransformedSpot( final RealPoint pos, final double radius, final Spot wrapped )
+	private Spot wrapped;
+
+	private final double[] source = new double[ 3 ];
+
+	private final double[] pos = new double[ 3 ];
+
+	private double radius;
+
+	/** Position and radius features, boxed on first request. */
+	private final Double[] boxed = new Double[ 4 ];
+
+	/**
+	 * Creates a transformed spot not wrapping any spot yet. It must be set
+	 * with {@link #set(Spot, AffineTransform3D, double[])} before use.
+	 */
+	public TransformedSpot()
+	{
+		super( FLYWEIGHT_ID );
+	}
+
+	/**
+	 * Points this instance to the specified spot. Its position and radius are
+	 * transformed with respect to the specified transform (inverse transform)
+	 * and physical calibration, and it exposes the features of the wrapped
+	 * spot. Modification made to the features of this spot are reflected on
+	 * the wrapped spot, except for position features.
+	 *
+	 * @param spot
+	 *            the spot to wrap.
+	 * @param transform
+	 *            the transform.
+	 * @param cal
+	 *            the physical calibration, used to scale the pixel coordinates
+	 *            returned by the inverse transform in physical coordinates.
+	 * @return this instance.
+	 */
+	public TransformedSpot set( final Spot spot, final AffineTransform3D transform, final double[] cal )
+	{
+		spot.localize( source );
+		transform.applyInverse( pos, source );
+		/*
+		 * pos now contains the position in pixel coordinates. We need to scale
+		 * them to the physical calibration.
+		 */
+		for ( int d = 0; d < 3; d++ )
+			pos[ d ] *= cal[ d ];
+
+		this.radius = spot.getFeature( Spot.RADIUS ).doubleValue() / Affine3DHelpers.extractScale( transform, 0 );
+		this.wrapped = spot;
+		Arrays.fill( boxed, null );
+		return this;
+	}
+
+	/**
+	 * Releases the wrapped spot.
+	 */
+	public void clear()
+	{
+		this.wrapped = null;
+	}
+
+	@Override
+	public double getDoublePosition( final int d )
+	{
+		return pos[ d ];
+	}
+
+	@Override
+	public float getFloatPosition( final int d )
 	{
-		super( Spot.IDcounter.incrementAndGet() );
-		super.putFeature( POSITION_X, Double.valueOf( pos.getDoublePosition( 0 ) ) );
-		super.putFeature( POSITION_Y, Double.valueOf( pos.getDoublePosition( 1 ) ) );
-		super.putFeature( POSITION_Z, Double.valueOf( pos.getDoublePosition( 2 ) ) );
-		super.putFeature( RADIUS, Double.valueOf( radius ) );
-		super.putFeature( QUALITY, Double.valueOf( wrapped.getFeature( Spot.QUALITY ) ) );
-		this.wrapped = wrapped;
+		return ( float ) pos[ d ];
 	}
 
 	@Override
@@ -61,25 +129,67 @@ public class TransformedSpot extends Spot
 	@Override
 	public Double getFeature( final String feature )
 	{
-		if ( feature.equals( POSITION_X )
-				|| feature.equals( POSITION_Y )
-				|| feature.equals( POSITION_Z )
-				|| feature.equals( RADIUS ) )
-			return super.getFeature( feature );
-		else
-			return wrapped.getFeature( feature );
+		if ( feature.equals( POSITION_X ) )
+			return boxed( 0, pos[ 0 ] );
+		if ( feature.equals( POSITION_Y ) )
+			return boxed( 1, pos[ 1 ] );
+		if ( feature.equals( POSITION_Z ) )
+			return boxed( 2, pos[ 2 ] );
+		if ( feature.equals( RADIUS ) )
+			return boxed( 3, radius );
+		return wrapped.getFeature( feature );
+	}
+
+	private Double boxed( final int i, final double value )
+	{
+		Double b = boxed[ i ];
+		if ( null == b )
+		{
+			b = Double.valueOf( value );
+			boxed[ i ] = b;
+		}
+		return b;
 	}
 
 	@Override
 	public void putFeature( final String feature, final Double value )
 	{
-		if ( feature.equals( POSITION_X )
-				|| feature.equals( POSITION_Y )
-				|| feature.equals( POSITION_Z )
-				|| feature.equals( RADIUS ) )
-			super.putFeature( feature, value );
-		else
+		if ( feature.equals( POSITION_X ) )
+		{
+			pos[ 0 ] = value.doubleValue();
+			boxed[ 0 ] = value;
+		}
+		else if ( feature.equals( POSITION_Y ) )
+		{
+			pos[ 1 ] = value.doubleValue();
+			boxed[ 1 ] = value;
+		}
+		else if ( feature.equals( POSITION_Z ) )
+		{
+			pos[ 2 ] = value.doubleValue();
+			boxed[ 2 ] = value;
+		}
+		else if ( feature.equals( RADIUS ) )
+		{
+			radius = value.doubleValue();
+			boxed[ 3 ] = value;
+		}
+		else if ( wrapped != null )
+		{
 			wrapped.putFeature( feature, value );
+		}
+	}
+
+	@Override
+	public boolean equals( final Object obj )
+	{
+		return this == obj;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return System.identityHashCode( this );
 	}
 
 	/**
@@ -88,6 +198,10 @@ public class TransformedSpot extends Spot
 	 * calibration, but that exposes the features of the wrapped spot.
 	 * Modification made to the features of this spot are reflected on the
 	 * wrapped spot, except for position features.
+	 * <p>
+	 * Prefer reusing an instance with
+	 * {@link #set(Spot, AffineTransform3D, double[])} when transforming many
+	 * spots.
 	 * 
 	 * @param spot
 	 *            the spot to wrap.
@@ -100,17 +214,6 @@ public class TransformedSpot extends Spot
 	 */
 	public static TransformedSpot wrap( final Spot spot, final AffineTransform3D transform, final double[] cal )
 	{
-		final RealPoint pos = new RealPoint( 3 );
-		transform.applyInverse( pos, spot );
-		/*
-		 * pos now contains the position in pixel coordinates. We need to scale
-		 * them to the physical calibration.
-		 */
-		for ( int d = 0; d < 3; d++ )
-			pos.setPosition( pos.getDoublePosition( d ) * cal[ d ], d );
-
-		final double r = spot.getFeature( Spot.RADIUS ).doubleValue() / Affine3DHelpers.extractScale( transform, 0 );
-
-		return new TransformedSpot( pos, r, spot );
+		return new TransformedSpot().set( spot, transform, cal );
 	}
 }
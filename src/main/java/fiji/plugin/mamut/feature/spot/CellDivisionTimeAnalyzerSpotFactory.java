@@ -22,6 +22,7 @@
 package fiji.plugin.mamut.feature.spot;
 
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -134,4 +135,11 @@ public class CellDivisionTimeAnalyzerSpotFactory< T extends RealType< T > & Nati
 	{
 		return SpotAnalyzer.dummyAnalyzer();
 	}
+
+	@Override
+	public EnumSet< SpotFeatureDependency > getDependencies()
+	{
+		// Values are set by the track analyzer.
+		return EnumSet.noneOf( SpotFeatureDependency.class );
+	}
 }
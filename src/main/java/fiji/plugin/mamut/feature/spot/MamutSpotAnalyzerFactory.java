@@ -21,6 +21,8 @@
  */
 package fiji.plugin.mamut.feature.spot;
 
+import java.util.EnumSet;
+
 import fiji.plugin.trackmate.features.spot.SpotAnalyzerFactoryBase;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
@@ -36,4 +38,16 @@ import net.imglib2.type.numeric.RealType;
  * @author Jean-Yves Tinevez - 2020
  */
 public interface MamutSpotAnalyzerFactory< T extends RealType< T > & NativeType< T > > extends SpotAnalyzerFactoryBase< T >
-{}
+{
+
+	/**
+	 * Returns the inputs the analyzers of this factory read. Their features
+	 * are recomputed only when one of these inputs changes.
+	 *
+	 * @return the dependencies. By default, all of them.
+	 */
+	public default EnumSet< SpotFeatureDependency > getDependencies()
+	{
+		return EnumSet.allOf( SpotFeatureDependency.class );
+	}
+}
@@ -0,0 +1,124 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.feature.spot;
+
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import fiji.plugin.trackmate.features.spot.SpotAnalyzerFactoryBase;
+import fiji.plugin.trackmate.features.spot.SpotContrastAndSNRAnalyzerFactory;
+import fiji.plugin.trackmate.features.spot.SpotFitEllipseAnalyzerFactory;
+import fiji.plugin.trackmate.features.spot.SpotIntensityMultiCAnalyzerFactory;
+import fiji.plugin.trackmate.features.spot.SpotShapeAnalyzerFactory;
+
+/**
+ * The inputs a spot analyzer reads to compute its features. A spot feature
+ * needs to be recomputed only if one of the inputs of its analyzer changed.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public enum SpotFeatureDependency
+{
+	/** The spot center, and its frame. */
+	POSITION,
+	/** The spot radius. */
+	RADIUS,
+	/**
+	 * The spot shape. MaMuT spots are spheres, so their shape only depends on
+	 * their radius.
+	 */
+	SHAPE,
+	/**
+	 * The image data around the spot, in its frame, and the resolution it is
+	 * read at.
+	 */
+	IMAGE,
+	/** The links of the spot. */
+	GRAPH;
+
+	/**
+	 * Dependencies of the TrackMate analyzers, by factory key.
+	 */
+	private static final Map< String, EnumSet< SpotFeatureDependency > > TRACKMATE_DEPENDENCIES = new HashMap<>();
+	static
+	{
+		TRACKMATE_DEPENDENCIES.put( SpotIntensityMultiCAnalyzerFactory.KEY, EnumSet.of( POSITION, RADIUS, IMAGE ) );
+		TRACKMATE_DEPENDENCIES.put( SpotContrastAndSNRAnalyzerFactory.KEY, EnumSet.of( POSITION, RADIUS, IMAGE ) );
+		TRACKMATE_DEPENDENCIES.put( SpotShapeAnalyzerFactory.KEY, EnumSet.of( SHAPE ) );
+		TRACKMATE_DEPENDENCIES.put( SpotFitEllipseAnalyzerFactory.KEY, EnumSet.of( SHAPE ) );
+	}
+
+	/**
+	 * How far from the spot center the TrackMate and MaMuT analyzers read the
+	 * image, in spot radii, by factory key.
+	 */
+	private static final Map< String, Double > FOOTPRINTS = new HashMap<>();
+	static
+	{
+		FOOTPRINTS.put( SpotIntensityMultiCAnalyzerFactory.KEY, Double.valueOf( 1. ) );
+		FOOTPRINTS.put( SpotContrastAndSNRAnalyzerFactory.KEY, Double.valueOf( 2. ) );
+		FOOTPRINTS.put( SpotIntensityStatisticsAnalyzerFactory.KEY, Double.valueOf( 2. ) );
+	}
+
+	/**
+	 * Footprint assumed for analyzers that read the image and are not listed
+	 * above.
+	 */
+	private static final double DEFAULT_FOOTPRINT = 2.;
+
+	/**
+	 * Returns how far from the spot center the analyzers of the specified
+	 * factory read the image, in spot radii. Returns 0 for analyzers that do
+	 * not read the image.
+	 *
+	 * @param factory
+	 *            the analyzer factory.
+	 * @return the footprint, in spot radii.
+	 */
+	public static double footprintOf( final SpotAnalyzerFactoryBase< ? > factory )
+	{
+		if ( !of( factory ).contains( IMAGE ) )
+			return 0.;
+		final Double footprint = FOOTPRINTS.get( factory.getKey() );
+		return ( footprint == null ) ? DEFAULT_FOOTPRINT : footprint.doubleValue();
+	}
+
+	/**
+	 * Returns the inputs of the analyzers of the specified factory. Factories
+	 * of unknown analyzers are assumed to depend on everything.
+	 *
+	 * @param factory
+	 *            the analyzer factory.
+	 * @return a new set.
+	 */
+	public static EnumSet< SpotFeatureDependency > of( final SpotAnalyzerFactoryBase< ? > factory )
+	{
+		if ( factory instanceof MamutSpotAnalyzerFactory )
+			return EnumSet.copyOf( ( ( MamutSpotAnalyzerFactory< ? > ) factory ).getDependencies() );
+
+		final EnumSet< SpotFeatureDependency > dependencies = TRACKMATE_DEPENDENCIES.get( factory.getKey() );
+		if ( dependencies == null )
+			return EnumSet.allOf( SpotFeatureDependency.class );
+		return EnumSet.copyOf( dependencies );
+	}
+}
@@ -0,0 +1,318 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.feature.spot;
+
+import static fiji.plugin.mamut.feature.spot.SpotIntensityStatisticsAnalyzerFactory.CONTRAST;
+import static fiji.plugin.mamut.feature.spot.SpotIntensityStatisticsAnalyzerFactory.MAX_INTENSITY;
+import static fiji.plugin.mamut.feature.spot.SpotIntensityStatisticsAnalyzerFactory.MEAN_INTENSITY;
+import static fiji.plugin.mamut.feature.spot.SpotIntensityStatisticsAnalyzerFactory.MEDIAN_INTENSITY;
+import static fiji.plugin.mamut.feature.spot.SpotIntensityStatisticsAnalyzerFactory.MIN_INTENSITY;
+import static fiji.plugin.mamut.feature.spot.SpotIntensityStatisticsAnalyzerFactory.SNR;
+import static fiji.plugin.mamut.feature.spot.SpotIntensityStatisticsAnalyzerFactory.STD_INTENSITY;
+import static fiji.plugin.mamut.feature.spot.SpotIntensityStatisticsAnalyzerFactory.TOTAL_INTENSITY;
+import static fiji.plugin.mamut.feature.spot.SpotIntensityStatisticsAnalyzerFactory.makeFeatureKey;
+
+import java.util.Arrays;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.features.spot.AbstractSpotFeatureAnalyzer;
+import fiji.plugin.trackmate.util.SpotUtil;
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.IterableInterval;
+import net.imglib2.Localizable;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Computes all the intensity statistics of a spot in one analyzer, with the
+ * same values as the TrackMate intensity and contrast analyzers it replaces.
+ * The voxels inside the spot contribute to the intensity statistics, the
+ * voxels in the shell between 1 and 2 radii to the background used for
+ * contrast and SNR.
+ * <p>
+ * The voxels within 2 radii of the spot center are read in a single pass,
+ * and split between the spot and the shell. For the values to be those of
+ * TrackMate, the voxels of the spot are the ones of its TrackMate
+ * neighborhood. Its extent is found first by moving a cursor over it, without
+ * reading any voxel.
+ * <p>
+ * Instances are not thread-safe: they reuse buffers across spots.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class SpotIntensityStatisticsAnalyzer< T extends RealType< T > > extends AbstractSpotFeatureAnalyzer< T >
+{
+
+	/** The ID of the stand-in spot, that does not consume a spot ID. */
+	private static final int STAND_IN_ID = -1;
+
+	private final ImgPlus< T > img;
+
+	private final String mean;
+
+	private final String median;
+
+	private final String min;
+
+	private final String max;
+
+	private final String total;
+
+	private final String std;
+
+	private final String contrast;
+
+	private final String snr;
+
+	private final double[] calibration;
+
+	/** The spot of twice the radius whose neighborhood is read. Reused. */
+	private final Spot outer = new Spot( STAND_IN_ID );
+
+	/** Intensities inside the current spot, for the median. */
+	private double[] values = new double[ 1024 ];
+
+	/**
+	 * First and last X position of each X line of the current spot
+	 * neighborhood, indexed by its Y and Z positions in the neighborhood.
+	 */
+	private long[] lineStart = new long[ 256 ];
+
+	private long[] lineEnd = new long[ 256 ];
+
+	/** Sums and extrema of the intensities inside the current spot. */
+	private int count;
+
+	private double sum;
+
+	private double sumSq;
+
+	private double vmin;
+
+	private double vmax;
+
+	public SpotIntensityStatisticsAnalyzer( final ImgPlus< T > img, final int channel )
+	{
+		this.img = img;
+		this.mean = makeFeatureKey( MEAN_INTENSITY, channel );
+		this.median = makeFeatureKey( MEDIAN_INTENSITY, channel );
+		this.min = makeFeatureKey( MIN_INTENSITY, channel );
+		this.max = makeFeatureKey( MAX_INTENSITY, channel );
+		this.total = makeFeatureKey( TOTAL_INTENSITY, channel );
+		this.std = makeFeatureKey( STD_INTENSITY, channel );
+		this.contrast = makeFeatureKey( CONTRAST, channel );
+		this.snr = makeFeatureKey( SNR, channel );
+		this.calibration = new double[ Math.min( 3, img.numDimensions() ) ];
+		for ( int d = 0; d < calibration.length; d++ )
+			calibration[ d ] = img.averageScale( d );
+	}
+
+	@Override
+	public void process( final Spot spot )
+	{
+		final double radius = spot.getFeature( Spot.RADIUS ).doubleValue();
+
+		/*
+		 * Extent of the spot neighborhood, the same as TrackMate intensity
+		 * analyzer, line by line.
+		 */
+		final IterableInterval< T > inner = SpotUtil.iterable( spot, img );
+		final int innerSize = mapLines( inner );
+		final boolean contiguous = innerSize >= 0;
+
+		/*
+		 * Neighborhood of twice the radius, the same as TrackMate contrast and
+		 * SNR analyzer. Voxels inside the spot neighborhood contribute to the
+		 * intensity statistics, voxels farther than the radius to the
+		 * background.
+		 */
+		outer.putFeature( Spot.POSITION_X, Double.valueOf( spot.getDoublePosition( 0 ) ) );
+		outer.putFeature( Spot.POSITION_Y, Double.valueOf( spot.getDoublePosition( 1 ) ) );
+		outer.putFeature( Spot.POSITION_Z, Double.valueOf( spot.getDoublePosition( 2 ) ) );
+		outer.putFeature( Spot.RADIUS, Double.valueOf( 2. * radius ) );
+		final int n = Math.min( 3, img.numDimensions() );
+		final double r2 = radius * radius;
+		resetInside();
+		int outerCount = 0;
+		double outerSum = 0.;
+		final Cursor< T > cursor = SpotUtil.iterable( outer, img ).localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			final boolean isInside = contiguous && isInside( cursor, inner );
+			double dist2 = 0.;
+			for ( int d = 0; d < n; d++ )
+			{
+				final double dx = cursor.getDoublePosition( d ) * calibration[ d ] - spot.getDoublePosition( d );
+				dist2 += dx * dx;
+			}
+			final boolean isShell = dist2 > r2;
+			if ( !isInside && !isShell )
+				continue;
+
+			final double val = cursor.get().getRealDouble();
+			if ( isInside )
+				addInside( val );
+			if ( isShell )
+			{
+				outerCount++;
+				outerSum += val;
+			}
+		}
+
+		/*
+		 * The spot neighborhood may stick out of the larger one, or not be
+		 * made of whole X lines, for tiny spots. Read it on its own then.
+		 */
+		if ( count != innerSize )
+		{
+			resetInside();
+			for ( final T pixel : inner )
+				addInside( pixel.getRealDouble() );
+		}
+
+		if ( count == 0 )
+		{
+			for ( final String feature : new String[] { mean, median, min, max, std, contrast, snr } )
+				spot.putFeature( feature, Double.valueOf( Double.NaN ) );
+			spot.putFeature( total, Double.valueOf( 0. ) );
+			return;
+		}
+
+		final double meanIn = sum / count;
+		final double variance = Math.max( 0., sumSq / count - meanIn * meanIn );
+		final double stdIn = Math.sqrt( variance );
+		Arrays.sort( values, 0, count );
+		final double med = ( count % 2 == 1 )
+				? values[ count / 2 ]
+				: 0.5 * ( values[ count / 2 - 1 ] + values[ count / 2 ] );
+
+		spot.putFeature( mean, Double.valueOf( meanIn ) );
+		spot.putFeature( median, Double.valueOf( med ) );
+		spot.putFeature( min, Double.valueOf( vmin ) );
+		spot.putFeature( max, Double.valueOf( vmax ) );
+		spot.putFeature( total, Double.valueOf( sum ) );
+		spot.putFeature( std, Double.valueOf( stdIn ) );
+
+		if ( outerCount == 0 )
+		{
+			spot.putFeature( contrast, Double.valueOf( Double.NaN ) );
+			spot.putFeature( snr, Double.valueOf( Double.NaN ) );
+			return;
+		}
+		final double meanOut = outerSum / outerCount;
+		spot.putFeature( contrast, Double.valueOf( ( meanIn - meanOut ) / ( meanIn + meanOut ) ) );
+		spot.putFeature( snr, Double.valueOf( ( meanIn - meanOut ) / stdIn ) );
+	}
+
+	/**
+	 * Records the first and last X position of each X line of the specified
+	 * neighborhood. Only the cursor moves: no voxel is read.
+	 *
+	 * @return the number of voxels in the neighborhood, or -1 if one of its
+	 *         lines is not contiguous, and cannot be described by its first
+	 *         and last position.
+	 */
+	private int mapLines( final IterableInterval< T > neighborhood )
+	{
+		final int nLines = nLines( neighborhood );
+		if ( lineStart.length < nLines )
+		{
+			lineStart = new long[ nLines ];
+			lineEnd = new long[ nLines ];
+		}
+		Arrays.fill( lineStart, 0, nLines, Long.MAX_VALUE );
+		Arrays.fill( lineEnd, 0, nLines, Long.MIN_VALUE );
+
+		final int[] lineSizes = new int[ nLines ];
+		int size = 0;
+		final Cursor< T > cursor = neighborhood.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			size++;
+			final int line = line( cursor, neighborhood );
+			final long x = cursor.getLongPosition( 0 );
+			lineStart[ line ] = Math.min( lineStart[ line ], x );
+			lineEnd[ line ] = Math.max( lineEnd[ line ], x );
+			lineSizes[ line ]++;
+		}
+		for ( int line = 0; line < nLines; line++ )
+			if ( lineSizes[ line ] > 0 && lineEnd[ line ] - lineStart[ line ] + 1 != lineSizes[ line ] )
+				return -1;
+		return size;
+	}
+
+	private boolean isInside( final Localizable position, final Interval neighborhood )
+	{
+		for ( int d = 1; d < neighborhood.numDimensions(); d++ )
+		{
+			final long p = position.getLongPosition( d );
+			if ( p < neighborhood.min( d ) || p > neighborhood.max( d ) )
+				return false;
+		}
+		final int line = line( position, neighborhood );
+		final long x = position.getLongPosition( 0 );
+		return x >= lineStart[ line ] && x <= lineEnd[ line ];
+	}
+
+	private static int nLines( final Interval neighborhood )
+	{
+		int nLines = 1;
+		for ( int d = 1; d < neighborhood.numDimensions(); d++ )
+			nLines *= ( int ) neighborhood.dimension( d );
+		return nLines;
+	}
+
+	/**
+	 * Index of the X line of the specified position, which must be in the
+	 * neighborhood interval.
+	 */
+	private static int line( final Localizable position, final Interval neighborhood )
+	{
+		int line = 0;
+		for ( int d = neighborhood.numDimensions() - 1; d > 0; d-- )
+			line = line * ( int ) neighborhood.dimension( d ) + ( int ) ( position.getLongPosition( d ) - neighborhood.min( d ) );
+		return line;
+	}
+
+	private void resetInside()
+	{
+		count = 0;
+		sum = 0.;
+		sumSq = 0.;
+		vmin = Double.POSITIVE_INFINITY;
+		vmax = Double.NEGATIVE_INFINITY;
+	}
+
+	private void addInside( final double val )
+	{
+		if ( count == values.length )
+			values = Arrays.copyOf( values, 2 * count );
+		values[ count++ ] = val;
+		sum += val;
+		sumSq += val * val;
+		vmin = Math.min( vmin, val );
+		vmax = Math.max( vmax, val );
+	}
+}
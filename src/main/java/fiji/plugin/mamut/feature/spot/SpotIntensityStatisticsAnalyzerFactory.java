@@ -0,0 +1,215 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.feature.spot;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.ImageIcon;
+
+import org.scijava.plugin.Plugin;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.features.spot.SpotAnalyzer;
+import net.imagej.ImgPlus;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Computes the intensity statistics of spots in each source, in a single pass
+ * over the voxels around each spot: mean, median, min, max, total and
+ * standard deviation of the intensity inside the spot, and its contrast and
+ * signal-to-noise ratio against the shell between 1 and 2 radii.
+ * <p>
+ * The feature keys are the ones of the TrackMate intensity and contrast
+ * analyzers, which this factory supersedes in MaMuT.
+ *
+ * @author Jean-Yves Tinevez
+ */
+@Plugin( type = MamutSpotAnalyzerFactory.class )
+public class SpotIntensityStatisticsAnalyzerFactory< T extends RealType< T > & NativeType< T > > implements MamutSpotAnalyzerFactory< T >
+{
+
+	public static final String MEAN_INTENSITY = "MEAN_INTENSITY_CH";
+
+	public static final String MEDIAN_INTENSITY = "MEDIAN_INTENSITY_CH";
+
+	public static final String MIN_INTENSITY = "MIN_INTENSITY_CH";
+
+	public static final String MAX_INTENSITY = "MAX_INTENSITY_CH";
+
+	public static final String TOTAL_INTENSITY = "TOTAL_INTENSITY_CH";
+
+	public static final String STD_INTENSITY = "STD_INTENSITY_CH";
+
+	public static final String CONTRAST = "CONTRAST_CH";
+
+	public static final String SNR = "SNR_CH";
+
+	private static final String[] PREFIXES = new String[] {
+			MEAN_INTENSITY, MEDIAN_INTENSITY, MIN_INTENSITY, MAX_INTENSITY,
+			TOTAL_INTENSITY, STD_INTENSITY, CONTRAST, SNR };
+
+	private static final String[] NAMES = new String[] {
+			"Mean intensity", "Median intensity", "Min intensity", "Max intensity",
+			"Sum intensity", "Std intensity", "Contrast", "Signal/Noise ratio" };
+
+	private static final String[] SHORT_NAMES = new String[] {
+			"Mean", "Median", "Min", "Max", "Sum", "Std", "Ctrst", "SNR" };
+
+	private static final Dimension[] DIMENSIONS = new Dimension[] {
+			Dimension.INTENSITY, Dimension.INTENSITY, Dimension.INTENSITY, Dimension.INTENSITY,
+			Dimension.INTENSITY, Dimension.INTENSITY, Dimension.NONE, Dimension.NONE };
+
+	public static final String KEY = "Spot intensity statistics";
+
+	private List< String > features = new ArrayList<>();
+
+	private Map< String, String > featureNames = new HashMap<>();
+
+	private Map< String, String > featureShortNames = new HashMap<>();
+
+	private Map< String, Dimension > featureDimensions = new HashMap<>();
+
+	private Map< String, Boolean > isInt = new HashMap<>();
+
+	public SpotIntensityStatisticsAnalyzerFactory()
+	{
+		setNChannels( 1 );
+	}
+
+	/**
+	 * Returns the key of a feature for the specified source.
+	 *
+	 * @param prefix
+	 *            the feature prefix, for instance {@link #MEAN_INTENSITY}.
+	 * @param channel
+	 *            the source index, 0-based.
+	 * @return the feature key.
+	 */
+	public static final String makeFeatureKey( final String prefix, final int channel )
+	{
+		return prefix + ( channel + 1 );
+	}
+
+	@Override
+	public void setNChannels( final int nChannels )
+	{
+		final List< String > lFeatures = new ArrayList<>( nChannels * PREFIXES.length );
+		final Map< String, String > lFeatureNames = new HashMap<>();
+		final Map< String, String > lFeatureShortNames = new HashMap<>();
+		final Map< String, Dimension > lFeatureDimensions = new HashMap<>();
+		final Map< String, Boolean > lIsInt = new HashMap<>();
+		for ( int c = 0; c < nChannels; c++ )
+		{
+			for ( int i = 0; i < PREFIXES.length; i++ )
+			{
+				final String feature = makeFeatureKey( PREFIXES[ i ], c );
+				lFeatures.add( feature );
+				lFeatureNames.put( feature, NAMES[ i ] + " ch" + ( c + 1 ) );
+				lFeatureShortNames.put( feature, SHORT_NAMES[ i ] + " ch" + ( c + 1 ) );
+				lFeatureDimensions.put( feature, DIMENSIONS[ i ] );
+				lIsInt.put( feature, Boolean.FALSE );
+			}
+		}
+		this.features = lFeatures;
+		this.featureNames = lFeatureNames;
+		this.featureShortNames = lFeatureShortNames;
+		this.featureDimensions = lFeatureDimensions;
+		this.isInt = lIsInt;
+	}
+
+	@Override
+	public String getKey()
+	{
+		return KEY;
+	}
+
+	@Override
+	public List< String > getFeatures()
+	{
+		return features;
+	}
+
+	@Override
+	public Map< String, String > getFeatureShortNames()
+	{
+		return featureShortNames;
+	}
+
+	@Override
+	public Map< String, String > getFeatureNames()
+	{
+		return featureNames;
+	}
+
+	@Override
+	public Map< String, Dimension > getFeatureDimensions()
+	{
+		return featureDimensions;
+	}
+
+	@Override
+	public Map< String, Boolean > getIsIntFeature()
+	{
+		return isInt;
+	}
+
+	@Override
+	public boolean isManualFeature()
+	{
+		return false;
+	}
+
+	@Override
+	public SpotAnalyzer< T > getAnalyzer( final ImgPlus< T > img, final int frame, final int channel )
+	{
+		return new SpotIntensityStatisticsAnalyzer<>( img, channel );
+	}
+
+	@Override
+	public EnumSet< SpotFeatureDependency > getDependencies()
+	{
+		return EnumSet.of( SpotFeatureDependency.POSITION, SpotFeatureDependency.RADIUS, SpotFeatureDependency.IMAGE );
+	}
+
+	@Override
+	public String getInfoText()
+	{
+		return "Computes the intensity statistics, contrast and SNR of spots in a single pass per source.";
+	}
+
+	@Override
+	public ImageIcon getIcon()
+	{
+		return null;
+	}
+
+	@Override
+	public String getName()
+	{
+		return "Spot intensity statistics";
+	}
+}
@@ -0,0 +1,178 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.feature.spot;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.ImageIcon;
+
+import org.scijava.plugin.Plugin;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.features.spot.SpotAnalyzer;
+import net.imagej.ImgPlus;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Declares the features that record, for each source, the mipmap level at
+ * which the image features of a spot were computed. The values are set by the
+ * {@link fiji.plugin.mamut.feature.MamutSpotFeatureCalculator}, so that
+ * results can be reproduced.
+ */
+@Plugin( type = MamutSpotAnalyzerFactory.class )
+public class SpotMipmapLevelAnalyzerFactory< T extends RealType< T > & NativeType< T > > implements MamutSpotAnalyzerFactory< T >
+{
+
+	/** The prefix of the mipmap level features, one per source. */
+	public static final String MIPMAP_LEVEL = "MIPMAP_LEVEL_CH";
+
+	public static final String KEY = "Spot mipmap level";
+
+	private List< String > features = new ArrayList<>();
+
+	private Map< String, String > featureNames = new HashMap<>();
+
+	private Map< String, String > featureShortNames = new HashMap<>();
+
+	private Map< String, Dimension > featureDimensions = new HashMap<>();
+
+	private Map< String, Boolean > isInt = new HashMap<>();
+
+	public SpotMipmapLevelAnalyzerFactory()
+	{
+		setNChannels( 1 );
+	}
+
+	/**
+	 * Returns the key of the mipmap level feature for the specified source.
+	 *
+	 * @param channel
+	 *            the source index, 0-based.
+	 * @return the feature key.
+	 */
+	public static final String makeFeatureKey( final int channel )
+	{
+		return MIPMAP_LEVEL + ( channel + 1 );
+	}
+
+	@Override
+	public void setNChannels( final int nChannels )
+	{
+		final List< String > lFeatures = new ArrayList<>( nChannels );
+		final Map< String, String > lFeatureNames = new HashMap<>( nChannels );
+		final Map< String, String > lFeatureShortNames = new HashMap<>( nChannels );
+		final Map< String, Dimension > lFeatureDimensions = new HashMap<>( nChannels );
+		final Map< String, Boolean > lIsInt = new HashMap<>( nChannels );
+		for ( int c = 0; c < nChannels; c++ )
+		{
+			final String feature = makeFeatureKey( c );
+			lFeatures.add( feature );
+			lFeatureNames.put( feature, "Mipmap level ch" + ( c + 1 ) );
+			lFeatureShortNames.put( feature, "Level ch" + ( c + 1 ) );
+			lFeatureDimensions.put( feature, Dimension.NONE );
+			lIsInt.put( feature, Boolean.TRUE );
+		}
+		this.features = lFeatures;
+		this.featureNames = lFeatureNames;
+		this.featureShortNames = lFeatureShortNames;
+		this.featureDimensions = lFeatureDimensions;
+		this.isInt = lIsInt;
+	}
+
+	@Override
+	public String getKey()
+	{
+		return KEY;
+	}
+
+	@Override
+	public List< String > getFeatures()
+	{
+		return features;
+	}
+
+	@Override
+	public Map< String, String > getFeatureShortNames()
+	{
+		return featureShortNames;
+	}
+
+	@Override
+	public Map< String, String > getFeatureNames()
+	{
+		return featureNames;
+	}
+
+	@Override
+	public Map< String, Dimension > getFeatureDimensions()
+	{
+		return featureDimensions;
+	}
+
+	@Override
+	public Map< String, Boolean > getIsIntFeature()
+	{
+		return isInt;
+	}
+
+	@Override
+	public boolean isManualFeature()
+	{
+		return false;
+	}
+
+	@Override
+	public SpotAnalyzer< T > getAnalyzer( final ImgPlus< T > img, final int frame, final int channel )
+	{
+		return SpotAnalyzer.dummyAnalyzer();
+	}
+
+	@Override
+	public EnumSet< SpotFeatureDependency > getDependencies()
+	{
+		// Values are set by the spot feature calculator.
+		return EnumSet.noneOf( SpotFeatureDependency.class );
+	}
+
+	@Override
+	public String getInfoText()
+	{
+		return "";
+	}
+
+	@Override
+	public ImageIcon getIcon()
+	{
+		return null;
+	}
+
+	@Override
+	public String getName()
+	{
+		return "Spot mipmap level";
+	}
+}
@@ -22,6 +22,7 @@
 package fiji.plugin.mamut.feature.spot;
 
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -106,6 +107,13 @@ public class SpotSourceIdAnalyzerFactory< T extends RealType< T > & NativeType<
 		return SpotAnalyzer.dummyAnalyzer();
 	}
 
+	@Override
+	public EnumSet< SpotFeatureDependency > getDependencies()
+	{
+		// Values are set when the spot is created.
+		return EnumSet.noneOf( SpotFeatureDependency.class );
+	}
+
 	@Override
 	public String getInfoText()
 	{
@@ -0,0 +1,72 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.feature.track;
+
+import java.util.Collection;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.features.track.TrackAnalyzer;
+
+/**
+ * Interface for track analyzers that can update the features of a track from
+ * the local change made to it, without traversing the whole track.
+ * <p>
+ * Incremental updates are only requested for tracks that grew: spots and
+ * edges were added to a single existing track, and nothing was removed or
+ * modified in it. Any other change triggers a full call to
+ * {@link #process(Collection, Model)}.
+ */
+public interface IncrementalTrackAnalyzer extends TrackAnalyzer
+{
+
+	/**
+	 * Updates the features of the specified track after it grew.
+	 *
+	 * @param trackID
+	 *            the ID of the track that grew.
+	 * @param newSpots
+	 *            the spots that were added to the track.
+	 * @param newEdges
+	 *            the edges that were added to the track.
+	 * @param model
+	 *            the model, in its state after the change.
+	 * @return <code>true</code> if the features could be updated
+	 *         incrementally. If <code>false</code>, the caller must recompute
+	 *         the features of this track with
+	 *         {@link #process(Collection, Model)}.
+	 */
+	public boolean update( Integer trackID, Collection< Spot > newSpots, Collection< DefaultWeightedEdge > newEdges, Model model );
+
+	/**
+	 * Discards the state this analyzer keeps for tracks that do not exist
+	 * anymore.
+	 *
+	 * @param trackIDs
+	 *            the IDs of the tracks currently in the model.
+	 */
+	public default void retainTracks( final Collection< Integer > trackIDs )
+	{}
+
+}
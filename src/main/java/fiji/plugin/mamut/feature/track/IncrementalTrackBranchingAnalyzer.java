@@ -0,0 +1,150 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.feature.track;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.TrackModel;
+import fiji.plugin.trackmate.features.track.TrackBranchingAnalyzer;
+
+/**
+ * A {@link TrackBranchingAnalyzer} that can update the branching statistics
+ * of a track from the spots and edges added to it.
+ * <p>
+ * Full computation is inherited. Incremental updates start from the feature
+ * values currently stored in the feature model, and only re-classify the
+ * spots touched by the new edges.
+ */
+public class IncrementalTrackBranchingAnalyzer extends TrackBranchingAnalyzer implements IncrementalTrackAnalyzer
+{
+
+	private static final int NONE = 0;
+
+	private static final int SPLIT = 1;
+
+	private static final int MERGE = 2;
+
+	private static final int COMPLEX = 3;
+
+	@Override
+	public boolean update( final Integer trackID, final Collection< Spot > newSpots, final Collection< DefaultWeightedEdge > newEdges, final Model model )
+	{
+		final FeatureModel fm = model.getFeatureModel();
+		final Double nSpots = fm.getTrackFeature( trackID, NUMBER_SPOTS );
+		final Double nSplits = fm.getTrackFeature( trackID, NUMBER_SPLITS );
+		final Double nMerges = fm.getTrackFeature( trackID, NUMBER_MERGES );
+		final Double nComplex = fm.getTrackFeature( trackID, NUMBER_COMPLEX );
+		final Double nGaps = fm.getTrackFeature( trackID, NUMBER_GAPS );
+		final Double longestGap = fm.getTrackFeature( trackID, LONGEST_GAP );
+		if ( nSpots == null || nSplits == null || nMerges == null || nComplex == null || nGaps == null || longestGap == null )
+			return false;
+
+		final TrackModel tm = model.getTrackModel();
+		final Set< DefaultWeightedEdge > added = new HashSet<>( newEdges );
+
+		// Spots whose neighborhood changed.
+		final Set< Spot > touched = new HashSet<>( newSpots );
+		for ( final DefaultWeightedEdge edge : newEdges )
+		{
+			touched.add( tm.getEdgeSource( edge ) );
+			touched.add( tm.getEdgeTarget( edge ) );
+		}
+
+		final int[] counts = new int[ 4 ];
+		for ( final Spot spot : touched )
+		{
+			counts[ classify( spot, tm, null ) ]++;
+			if ( !newSpots.contains( spot ) )
+				counts[ classify( spot, tm, added ) ]--;
+		}
+
+		int gaps = nGaps.intValue();
+		int longest = longestGap.intValue();
+		for ( final DefaultWeightedEdge edge : newEdges )
+		{
+			final Spot source = tm.getEdgeSource( edge );
+			final Spot target = tm.getEdgeTarget( edge );
+			final int gaplength = ( int ) Math.abs( target.diffTo( source, Spot.FRAME ) ) - 1;
+			if ( gaplength > 0 )
+			{
+				gaps++;
+				longest = Math.max( longest, gaplength );
+			}
+		}
+
+		fm.putTrackFeature( trackID, NUMBER_SPOTS, Double.valueOf( nSpots.intValue() + newSpots.size() ) );
+		fm.putTrackFeature( trackID, NUMBER_SPLITS, Double.valueOf( nSplits.intValue() + counts[ SPLIT ] ) );
+		fm.putTrackFeature( trackID, NUMBER_MERGES, Double.valueOf( nMerges.intValue() + counts[ MERGE ] ) );
+		fm.putTrackFeature( trackID, NUMBER_COMPLEX, Double.valueOf( nComplex.intValue() + counts[ COMPLEX ] ) );
+		fm.putTrackFeature( trackID, NUMBER_GAPS, Double.valueOf( gaps ) );
+		fm.putTrackFeature( trackID, LONGEST_GAP, Double.valueOf( longest ) );
+		return true;
+	}
+
+	/**
+	 * Classifies a spot from the number of its neighbors before and after it
+	 * in time, the same way the full computation does.
+	 *
+	 * @param excluded
+	 *            if not <code>null</code>, the edges to ignore, to classify
+	 *            the spot as it was before they were added.
+	 */
+	private static final int classify( final Spot spot, final TrackModel tm, final Set< DefaultWeightedEdge > excluded )
+	{
+		final Set< Spot > neighbors = new HashSet<>();
+		for ( final DefaultWeightedEdge edge : tm.edgesOf( spot ) )
+		{
+			if ( excluded != null && excluded.contains( edge ) )
+				continue;
+			neighbors.add( tm.getEdgeSource( edge ) );
+			neighbors.add( tm.getEdgeTarget( edge ) );
+		}
+		neighbors.remove( spot );
+
+		int earlier = 0;
+		int later = 0;
+		for ( final Spot neighbor : neighbors )
+		{
+			if ( spot.diffTo( neighbor, Spot.FRAME ) > 0 )
+				earlier++;
+			else
+				later++;
+		}
+
+		if ( earlier == 1 && later == 1 )
+			return NONE;
+		if ( earlier <= 1 && later > 1 )
+			return SPLIT;
+		if ( later <= 1 && earlier > 1 )
+			return MERGE;
+		if ( later > 1 && earlier > 1 )
+			return COMPLEX;
+		return NONE;
+	}
+}
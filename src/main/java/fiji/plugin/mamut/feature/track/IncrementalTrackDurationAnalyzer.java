@@ -0,0 +1,118 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.feature.track;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.features.track.TrackDurationAnalyzer;
+
+/**
+ * A {@link TrackDurationAnalyzer} that can update the duration and
+ * displacement of a track from the spots added to it.
+ * <p>
+ * Full computation is inherited. For incremental updates, the first and last
+ * spots of each track are cached. They are found with one traversal of the
+ * track the first time it grows after a full computation.
+ */
+public class IncrementalTrackDurationAnalyzer extends TrackDurationAnalyzer implements IncrementalTrackAnalyzer
+{
+
+	/** The first and last spots of the tracks we know of. */
+	private final Map< Integer, Spot[] > extremities = new ConcurrentHashMap<>();
+
+	@Override
+	public void process( final Collection< Integer > trackIDs, final Model model )
+	{
+		for ( final Integer trackID : trackIDs )
+			extremities.remove( trackID );
+		super.process( trackIDs, model );
+	}
+
+	@Override
+	public void retainTracks( final Collection< Integer > trackIDs )
+	{
+		extremities.keySet().retainAll( trackIDs );
+	}
+
+	@Override
+	public boolean update( final Integer trackID, final Collection< Spot > newSpots, final Collection< DefaultWeightedEdge > newEdges, final Model model )
+	{
+		Spot[] ends = extremities.get( trackID );
+		if ( ends == null )
+		{
+			// Find the extremities of the track before it grew.
+			ends = new Spot[ 2 ];
+			double minT = Double.POSITIVE_INFINITY;
+			double maxT = Double.NEGATIVE_INFINITY;
+			for ( final Spot spot : model.getTrackModel().trackSpots( trackID ) )
+			{
+				if ( newSpots.contains( spot ) )
+					continue;
+				final double t = spot.getFeature( Spot.POSITION_T ).doubleValue();
+				if ( t < minT )
+				{
+					minT = t;
+					ends[ 0 ] = spot;
+				}
+				if ( t > maxT )
+				{
+					maxT = t;
+					ends[ 1 ] = spot;
+				}
+			}
+			if ( ends[ 0 ] == null )
+				return false;
+		}
+
+		double minT = ends[ 0 ].getFeature( Spot.POSITION_T ).doubleValue();
+		double maxT = ends[ 1 ].getFeature( Spot.POSITION_T ).doubleValue();
+		for ( final Spot spot : newSpots )
+		{
+			final double t = spot.getFeature( Spot.POSITION_T ).doubleValue();
+			if ( t < minT )
+			{
+				minT = t;
+				ends[ 0 ] = spot;
+			}
+			if ( t > maxT )
+			{
+				maxT = t;
+				ends[ 1 ] = spot;
+			}
+		}
+		extremities.put( trackID, ends );
+
+		final FeatureModel fm = model.getFeatureModel();
+		fm.putTrackFeature( trackID, TRACK_DURATION, Double.valueOf( maxT - minT ) );
+		fm.putTrackFeature( trackID, TRACK_START, Double.valueOf( minT ) );
+		fm.putTrackFeature( trackID, TRACK_STOP, Double.valueOf( maxT ) );
+		fm.putTrackFeature( trackID, TRACK_DISPLACEMENT, Double.valueOf( Math.sqrt( ends[ 0 ].squareDistanceTo( ends[ 1 ] ) ) ) );
+		return true;
+	}
+}
@@ -71,7 +71,17 @@ public class MamutActions
 
 	public static final Action getSemiAutoTrackingAction( final MaMuT mamut )
 	{
-		return new SemiAutoTrackingAction( mamut );
+		return new SemiAutoTrackingAction( mamut, false );
+	}
+
+	public static final Action getBackwardSemiAutoTrackingAction( final MaMuT mamut )
+	{
+		return new SemiAutoTrackingAction( mamut, true );
+	}
+
+	public static final Action getCancelSemiAutoTrackingAction( final MaMuT mamut )
+	{
+		return new CancelSemiAutoTrackingAction( mamut );
 	}
 
 	public static final Action getShowHelpAction( final MamutViewer viewer )
@@ -355,7 +365,29 @@ public class MamutActions
 
 		private final MaMuT mamut;
 
-		public SemiAutoTrackingAction( final MaMuT mamut )
+		private final boolean backward;
+
+		public SemiAutoTrackingAction( final MaMuT mamut, final boolean backward )
+		{
+			this.mamut = mamut;
+			this.backward = backward;
+		}
+
+		@Override
+		public void actionPerformed( final ActionEvent e )
+		{
+			mamut.semiAutoDetectSpot( backward );
+		}
+	}
+
+	private static final class CancelSemiAutoTrackingAction extends AbstractAction
+	{
+
+		private static final long serialVersionUID = 1L;
+
+		private final MaMuT mamut;
+
+		public CancelSemiAutoTrackingAction( final MaMuT mamut )
 		{
 			this.mamut = mamut;
 		}
@@ -363,7 +395,7 @@ public class MamutActions
 		@Override
 		public void actionPerformed( final ActionEvent e )
 		{
-			mamut.semiAutoDetectSpot();
+			mamut.cancelSemiAutoTracking();
 		}
 	}
 
@@ -51,6 +51,8 @@ public class MamutKeyboardHandler
 		DEFAULT_KEYBINGS.setProperty( "ENTER", "add spot" );
 		DEFAULT_KEYBINGS.setProperty( "D", "delete spot" );
 		DEFAULT_KEYBINGS.setProperty( "shift A", "semi-auto tracking" );
+		DEFAULT_KEYBINGS.setProperty( "shift control A", "semi-auto tracking backward" );
+		DEFAULT_KEYBINGS.setProperty( "shift ESCAPE", "cancel semi-auto tracking" );
 		DEFAULT_KEYBINGS.setProperty( "shift L", "toggle linking mode" );
 		DEFAULT_KEYBINGS.setProperty( "L", "toggle link" );
 		DEFAULT_KEYBINGS.setProperty( "E", "increase spot radius" );
@@ -182,6 +184,8 @@ public class MamutKeyboardHandler
 		map.put( "decrease spot radius a bit", MamutActions.getDecreaseRadiusABitAction( mamut, viewer ) );
 
 		map.put( "semi-auto tracking", MamutActions.getSemiAutoTrackingAction( mamut ) );
+		map.put( "semi-auto tracking backward", MamutActions.getBackwardSemiAutoTrackingAction( mamut ) );
+		map.put( "cancel semi-auto tracking", MamutActions.getCancelSemiAutoTrackingAction( mamut ) );
 
 		map.put( "toggle linking mode", MamutActions.getToggleLinkingModeAction( mamut, viewer.getLogger() ) );
 		map.put( "toggle link", MamutActions.getToggleLinkAction( mamut, viewer.getLogger() ) );
@@ -0,0 +1,155 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.io;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Constants and helpers for the binary MaMuT annotation format, written by
+ * {@link MamutBinaryWriter} and read by {@link MamutBinaryReader}.
+ * <p>
+ * The file is a sequence of sections, followed by a footer that indexes
+ * them. All values are big-endian.
+ *
+ * <pre>
+ * magic (long) | version (int)
+ * section 0 | section 1 | ...
+ * footer: section count (int), then for each section: name (string), offset (long), length (long)
+ * trailer: footer offset (long) | magic (long)
+ * </pre>
+ *
+ * Strings are stored as their UTF-8 length (int) followed by their UTF-8
+ * bytes. The sections are:
+ * <ul>
+ * <li>{@value #XML}: the settings, GUI state and display settings, as the
+ * UTF-8 bytes of a MaMuT XML document without its model.
+ * <li>{@value #META}: the physical units and the spot, edge and track feature
+ * declarations.
+ * <li>{@value #SPOT_FRAMES}: the frame count <i>n</i>, the <i>n</i> frames,
+ * then the <i>n+1</i> indices at which the spots of each frame start in the
+ * spot columns. Spots are sorted by frame.
+ * <li>{@value #SPOT_IDS} and {@value #SPOT_NAMES}: the spot IDs and names.
+ * <li>{@value #SPOT_FEATURE_PREFIX}<i>feature</i>: a feature column of one
+ * value per spot.
+ * <li>{@value #EDGE_SOURCES}, {@value #EDGE_TARGETS} and
+ * {@value #EDGE_WEIGHTS}: the source spot ID, target spot ID and weight of
+ * each edge. Edges are sorted by track.
+ * <li>{@value #EDGE_FEATURE_PREFIX}<i>feature</i>: a feature column of one
+ * value per edge.
+ * <li>{@value #TRACK_IDS}, {@value #TRACK_NAMES} and
+ * {@value #TRACK_VISIBLE}: the ID, name and visibility (byte) of each track.
+ * <li>{@value #TRACK_EDGES}: the <i>n+1</i> indices at which the edges of each
+ * track start in the edge columns.
+ * <li>{@value #TRACK_FEATURE_PREFIX}<i>feature</i>: a feature column of one
+ * value per track.
+ * </ul>
+ * String columns store the <i>n+1</i> byte offsets (int) of the strings,
+ * followed by their concatenated UTF-8 bytes. Feature columns of <i>n</i>
+ * values store a presence bitmap of <i>ceil(n/64)</i> longs, bit <i>i</i>
+ * of long <i>i/64</i> being set if object <i>i</i> has a value, followed by
+ * the <i>n</i> doubles. Missing values are stored as 0.
+ */
+public final class MamutBinaryFormat
+{
+
+	/** The extension of binary MaMuT files. */
+	public static final String EXTENSION = ".mamutbin";
+
+	static final long MAGIC = 0x4d414d555442494eL; // MAMUTBIN
+
+	static final int VERSION = 1;
+
+	/** Size of the trailer: footer offset and magic. */
+	static final int TRAILER_SIZE = 8 + 8;
+
+	static final String XML = "xml";
+
+	static final String META = "meta";
+
+	static final String SPOT_FRAMES = "spots.frames";
+
+	static final String SPOT_IDS = "spots.id";
+
+	static final String SPOT_NAMES = "spots.name";
+
+	static final String SPOT_FEATURE_PREFIX = "spots.feature.";
+
+	static final String EDGE_SOURCES = "edges.source";
+
+	static final String EDGE_TARGETS = "edges.target";
+
+	static final String EDGE_WEIGHTS = "edges.weight";
+
+	static final String EDGE_FEATURE_PREFIX = "edges.feature.";
+
+	static final String TRACK_IDS = "tracks.id";
+
+	static final String TRACK_NAMES = "tracks.name";
+
+	static final String TRACK_VISIBLE = "tracks.visible";
+
+	static final String TRACK_EDGES = "tracks.edges";
+
+	static final String TRACK_FEATURE_PREFIX = "tracks.feature.";
+
+	private MamutBinaryFormat()
+	{}
+
+	/**
+	 * Returns the number of longs in the presence bitmap of a feature column
+	 * of the specified size.
+	 */
+	static int presenceWords( final int n )
+	{
+		return ( n + 63 ) >>> 6;
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified file name has the binary
+	 * MaMuT extension. Used to pick the format when saving.
+	 */
+	public static boolean hasBinaryExtension( final File file )
+	{
+		return file.getName().toLowerCase().endsWith( EXTENSION );
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified file starts like a binary
+	 * MaMuT file. Used to pick the format when loading.
+	 */
+	public static boolean isBinaryFile( final File file )
+	{
+		if ( !file.isFile() || file.length() < 8 + 4 + TRAILER_SIZE )
+			return false;
+		try (DataInputStream in = new DataInputStream( new FileInputStream( file ) ))
+		{
+			return in.readLong() == MAGIC;
+		}
+		catch ( final IOException e )
+		{
+			return false;
+		}
+	}
+}
@@ -0,0 +1,514 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.io;
+
+import static fiji.plugin.mamut.io.MamutBinaryFormat.EDGE_FEATURE_PREFIX;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.EDGE_SOURCES;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.EDGE_TARGETS;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.EDGE_WEIGHTS;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.MAGIC;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.META;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.SPOT_FEATURE_PREFIX;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.SPOT_FRAMES;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.SPOT_IDS;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.SPOT_NAMES;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.TRACK_EDGES;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.TRACK_FEATURE_PREFIX;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.TRACK_IDS;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.TRACK_NAMES;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.TRACK_VISIBLE;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.TRAILER_SIZE;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.VERSION;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.XML;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.jgrapht.graph.SimpleWeightedGraph;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+
+/**
+ * A {@link MamutXmlReader} for the binary MaMuT format described in
+ * {@link MamutBinaryFormat}.
+ * <p>
+ * The sections of the file are memory-mapped, and the model is built
+ * directly from the mapped columns when this reader is created, frames being
+ * converted in parallel. The XML section holding the settings, GUI state and
+ * display settings is copied to a temporary file and read by the parent
+ * class as before.
+ * <p>
+ * {@link #getModel()} returns the same {@link Model} instance every time it
+ * is called.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class MamutBinaryReader extends MamutXmlReader
+{
+
+	private final File mamutFile;
+
+	private final Model model;
+
+	public MamutBinaryReader( final File file )
+	{
+		this( file, Runtime.getRuntime().availableProcessors() );
+	}
+
+	public MamutBinaryReader( final File file, final int numThreads )
+	{
+		this( file, new MappedFile( file, numThreads ) );
+	}
+
+	private MamutBinaryReader( final File file, final MappedFile mapped )
+	{
+		super( mapped.header );
+		this.mamutFile = file;
+		// Without the header, the file is not usable.
+		this.model = ( null == root ) ? null : mapped.model;
+		mapped.header.delete();
+		for ( final String error : mapped.errors )
+		{
+			logger.error( error );
+			ok = false;
+		}
+	}
+
+	@Override
+	protected File getMamutFile()
+	{
+		return mamutFile;
+	}
+
+	@Override
+	public Model getModel()
+	{
+		return model;
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * Maps the sections of a binary MaMuT file and builds the {@link Model}
+	 * from them.
+	 */
+	private static final class MappedFile
+	{
+
+		private final int numThreads;
+
+		private final List< String > errors = new ArrayList<>();
+
+		private final Map< String, long[] > sections = new LinkedHashMap<>();
+
+		private File header;
+
+		private Model model;
+
+		private FileChannel channel;
+
+		private MappedFile( final File file, final int numThreads )
+		{
+			this.numThreads = Math.max( 1, numThreads );
+			try
+			{
+				header = File.createTempFile( "mamut-header", ".xml" );
+				header.deleteOnExit();
+			}
+			catch ( final IOException e )
+			{
+				throw new RuntimeException( "Could not create a temporary file.", e );
+			}
+
+			try (FileChannel lChannel = FileChannel.open( file.toPath(), StandardOpenOption.READ ))
+			{
+				channel = lChannel;
+				readIndex();
+
+				final ByteBuffer xml = section( XML );
+				final byte[] bytes = new byte[ xml.remaining() ];
+				xml.get( bytes );
+				try (OutputStream os = new FileOutputStream( header ))
+				{
+					os.write( bytes );
+				}
+
+				if ( sections.containsKey( META ) )
+					model = readModel();
+			}
+			catch ( final IOException e )
+			{
+				// The file is unreadable or malformed: do not return a partial model.
+				model = null;
+				errors.add( "Problem reading the MaMuT file " + file + ":\n" + e.getMessage() + '\n' );
+			}
+			catch ( final RuntimeException e )
+			{
+				// Mapping or reading past the data: the file is malformed.
+				model = null;
+				errors.add( "Problem reading the MaMuT file " + file + ":\nThe file is malformed: " + e + '\n' );
+			}
+			finally
+			{
+				channel = null;
+			}
+		}
+
+		private void readIndex() throws IOException
+		{
+			final long size = channel.size();
+			if ( size < 8 + 4 + TRAILER_SIZE )
+				throw new IOException( "The file is truncated." );
+			final ByteBuffer head = channel.map( FileChannel.MapMode.READ_ONLY, 0, 8 + 4 );
+			if ( head.getLong() != MAGIC )
+				throw new IOException( "Not a binary MaMuT file." );
+			final int version = head.getInt();
+			if ( version != VERSION )
+				throw new IOException( "Unsupported binary MaMuT file version: " + version + "." );
+
+			final ByteBuffer trailer = channel.map( FileChannel.MapMode.READ_ONLY, size - TRAILER_SIZE, TRAILER_SIZE );
+			final long footer = trailer.getLong();
+			if ( trailer.getLong() != MAGIC )
+				throw new IOException( "The file is truncated." );
+			if ( footer <= 0 || footer > size - TRAILER_SIZE )
+				throw new IOException( "The file is malformed: bad index offset " + footer + "." );
+
+			final ByteBuffer index = channel.map( FileChannel.MapMode.READ_ONLY, footer, size - TRAILER_SIZE - footer );
+			final int nSections = index.getInt();
+			for ( int i = 0; i < nSections; i++ )
+			{
+				final String name = getString( index );
+				final long offset = index.getLong();
+				final long length = index.getLong();
+				if ( offset < 0 || length < 0 || offset > footer - length )
+					throw new IOException( "The file is malformed: section " + name + " does not fit in the file." );
+				sections.put( name, new long[] { offset, length } );
+			}
+		}
+
+		private MappedByteBuffer section( final String name ) throws IOException
+		{
+			final long[] section = sections.get( name );
+			if ( null == section )
+				throw new IOException( "Missing section: " + name + "." );
+			if ( section[ 1 ] > Integer.MAX_VALUE )
+				throw new IOException( "Section " + name + " is too large to be mapped." );
+			return channel.map( FileChannel.MapMode.READ_ONLY, section[ 0 ], section[ 1 ] );
+		}
+
+		/**
+		 * Returns the feature columns of <code>n</code> values whose section
+		 * names start with the specified prefix, keyed by feature.
+		 */
+		private Map< String, Column > columns( final String prefix, final int n ) throws IOException
+		{
+			final Map< String, Column > columns = new LinkedHashMap<>();
+			for ( final String name : sections.keySet() )
+			{
+				if ( !name.startsWith( prefix ) )
+					continue;
+
+				final ByteBuffer buffer = section( name );
+				final int words = MamutBinaryFormat.presenceWords( n );
+				if ( buffer.remaining() < 8L * ( words + n ) )
+					throw new IOException( "Section " + name + " is truncated." );
+
+				final LongBuffer present = buffer.asLongBuffer();
+				present.limit( words );
+				buffer.position( 8 * words );
+				final DoubleBuffer values = buffer.slice().asDoubleBuffer();
+				columns.put( name.substring( prefix.length() ), new Column( present, values ) );
+			}
+			return columns;
+		}
+
+		private Model readModel() throws IOException
+		{
+			final Model lModel = new Model();
+			final FeatureModel fm = lModel.getFeatureModel();
+
+			final ByteBuffer meta = section( META );
+			lModel.setPhysicalUnits( getString( meta ), getString( meta ) );
+			final Declarations spotDeclarations = readDeclarations( meta );
+			fm.declareSpotFeatures( spotDeclarations.features, spotDeclarations.names, spotDeclarations.shortNames, spotDeclarations.dimensions, spotDeclarations.isInts );
+			final Declarations edgeDeclarations = readDeclarations( meta );
+			fm.declareEdgeFeatures( edgeDeclarations.features, edgeDeclarations.names, edgeDeclarations.shortNames, edgeDeclarations.dimensions, edgeDeclarations.isInts );
+			final Declarations trackDeclarations = readDeclarations( meta );
+			fm.declareTrackFeatures( trackDeclarations.features, trackDeclarations.names, trackDeclarations.shortNames, trackDeclarations.dimensions, trackDeclarations.isInts );
+
+			/*
+			 * Spots, converted frame by frame in parallel.
+			 */
+
+			final ByteBuffer framesSection = section( SPOT_FRAMES );
+			final int nFrames = framesSection.getInt();
+			final int[] frames = new int[ nFrames ];
+			for ( int f = 0; f < nFrames; f++ )
+				frames[ f ] = framesSection.getInt();
+			final int[] frameStarts = new int[ nFrames + 1 ];
+			for ( int f = 0; f <= nFrames; f++ )
+				frameStarts[ f ] = framesSection.getInt();
+
+			final IntBuffer spotIDs = section( SPOT_IDS ).asIntBuffer();
+			final String[] spotNames = getStrings( section( SPOT_NAMES ), frameStarts[ nFrames ] );
+			final Map< String, Column > spotFeatures = columns( SPOT_FEATURE_PREFIX, frameStarts[ nFrames ] );
+
+			final SpotCollection spots = new SpotCollection();
+			final Map< Integer, Spot > spotMap = new HashMap<>( 2 * frameStarts[ nFrames ] );
+			final ExecutorService executor = Executors.newFixedThreadPool( numThreads );
+			try
+			{
+				final List< Future< List< Spot > > > futures = new ArrayList<>( nFrames );
+				for ( int f = 0; f < nFrames; f++ )
+				{
+					final int start = frameStarts[ f ];
+					final int end = frameStarts[ f + 1 ];
+					futures.add( executor.submit( () -> {
+						final List< Spot > frameSpots = new ArrayList<>( end - start );
+						for ( int i = start; i < end; i++ )
+						{
+							final Spot spot = new Spot( spotIDs.get( i ) );
+							if ( !spotNames[ i ].isEmpty() )
+								spot.setName( spotNames[ i ] );
+							for ( final Map.Entry< String, Column > column : spotFeatures.entrySet() )
+							{
+								final Double val = column.getValue().get( i );
+								if ( null != val )
+									spot.putFeature( column.getKey(), val );
+							}
+							frameSpots.add( spot );
+						}
+						return frameSpots;
+					} ) );
+				}
+				for ( int f = 0; f < nFrames; f++ )
+				{
+					final Integer frame = Integer.valueOf( frames[ f ] );
+					for ( final Spot spot : futures.get( f ).get() )
+					{
+						spots.add( spot, frame );
+						spotMap.put( Integer.valueOf( spot.ID() ), spot );
+					}
+				}
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException( "Interrupted while reading spots.", e );
+			}
+			catch ( final ExecutionException e )
+			{
+				throw new IOException( "Could not read spots.", e.getCause() );
+			}
+			finally
+			{
+				executor.shutdownNow();
+			}
+			lModel.setSpots( spots, false );
+
+			/*
+			 * Tracks.
+			 */
+
+			final IntBuffer trackIDs = section( TRACK_IDS ).asIntBuffer();
+			final int nTracks = trackIDs.limit();
+			final IntBuffer trackStarts = section( TRACK_EDGES ).asIntBuffer();
+			final ByteBuffer trackVisible = section( TRACK_VISIBLE );
+			final String[] trackNameArray = getStrings( section( TRACK_NAMES ), nTracks );
+
+			final IntBuffer sources = section( EDGE_SOURCES ).asIntBuffer();
+			final IntBuffer targets = section( EDGE_TARGETS ).asIntBuffer();
+			final DoubleBuffer weights = section( EDGE_WEIGHTS ).asDoubleBuffer();
+			final Map< String, Column > edgeFeatures = columns( EDGE_FEATURE_PREFIX, sources.limit() );
+
+			final SimpleWeightedGraph< Spot, DefaultWeightedEdge > graph = new SimpleWeightedGraph<>( DefaultWeightedEdge.class );
+			for ( final Spot spot : spotMap.values() )
+				graph.addVertex( spot );
+
+			final Map< Integer, Set< Spot > > trackSpots = new HashMap<>( 2 * nTracks );
+			final Map< Integer, Set< DefaultWeightedEdge > > trackEdges = new HashMap<>( 2 * nTracks );
+			final Map< Integer, Boolean > trackVisibility = new HashMap<>( 2 * nTracks );
+			final Map< Integer, String > trackNames = new HashMap<>( 2 * nTracks );
+			int missingSpots = 0;
+			for ( int t = 0; t < nTracks; t++ )
+			{
+				final Integer trackID = Integer.valueOf( trackIDs.get( t ) );
+				final int end = trackStarts.get( t + 1 );
+				final Set< Spot > lSpots = new HashSet<>();
+				final Set< DefaultWeightedEdge > lEdges = new HashSet<>();
+				for ( int e = trackStarts.get( t ); e < end; e++ )
+				{
+					final Spot source = spotMap.get( Integer.valueOf( sources.get( e ) ) );
+					final Spot target = spotMap.get( Integer.valueOf( targets.get( e ) ) );
+					final DefaultWeightedEdge edge = ( null == source || null == target ) ? null : graph.addEdge( source, target );
+					if ( null == edge )
+					{
+						missingSpots++;
+						continue;
+					}
+					graph.setEdgeWeight( edge, weights.get( e ) );
+					for ( final Map.Entry< String, Column > column : edgeFeatures.entrySet() )
+					{
+						final Double val = column.getValue().get( e );
+						if ( null != val )
+							fm.putEdgeFeature( edge, column.getKey(), val );
+					}
+					lSpots.add( source );
+					lSpots.add( target );
+					lEdges.add( edge );
+				}
+				trackSpots.put( trackID, lSpots );
+				trackEdges.put( trackID, lEdges );
+				trackVisibility.put( trackID, Boolean.valueOf( trackVisible.get( t ) != 0 ) );
+				trackNames.put( trackID, trackNameArray[ t ] );
+			}
+			if ( missingSpots > 0 )
+				errors.add( "Could not create " + missingSpots + " edges: missing or duplicate source and target spots.\n" );
+			lModel.getTrackModel().from( graph, trackSpots, trackEdges, trackVisibility, trackNames );
+
+			for ( final Map.Entry< String, Column > column : columns( TRACK_FEATURE_PREFIX, nTracks ).entrySet() )
+			{
+				for ( int t = 0; t < nTracks; t++ )
+				{
+					final Double val = column.getValue().get( t );
+					if ( null != val )
+						fm.putTrackFeature( Integer.valueOf( trackIDs.get( t ) ), column.getKey(), val );
+				}
+			}
+			return lModel;
+		}
+
+		private static Declarations readDeclarations( final ByteBuffer buffer ) throws IOException
+		{
+			final Declarations declarations = new Declarations();
+			final int n = buffer.getInt();
+			for ( int i = 0; i < n; i++ )
+			{
+				final String feature = getString( buffer );
+				declarations.features.add( feature );
+				declarations.names.put( feature, getString( buffer ) );
+				declarations.shortNames.put( feature, getString( buffer ) );
+				final String dimension = getString( buffer );
+				try
+				{
+					declarations.dimensions.put( feature, Dimension.valueOf( dimension ) );
+				}
+				catch ( final IllegalArgumentException e )
+				{
+					throw new IOException( "Unknown dimension " + dimension + " for feature " + feature + ".", e );
+				}
+				declarations.isInts.put( feature, Boolean.valueOf( buffer.get() != 0 ) );
+			}
+			return declarations;
+		}
+
+		private static String getString( final ByteBuffer buffer )
+		{
+			final byte[] bytes = new byte[ buffer.getInt() ];
+			buffer.get( bytes );
+			return new String( bytes, StandardCharsets.UTF_8 );
+		}
+
+		private static String[] getStrings( final ByteBuffer buffer, final int n )
+		{
+			final int[] offsets = new int[ n + 1 ];
+			for ( int i = 0; i <= n; i++ )
+				offsets[ i ] = buffer.getInt();
+			final byte[] bytes = new byte[ offsets[ n ] ];
+			buffer.get( bytes );
+			final String[] strings = new String[ n ];
+			for ( int i = 0; i < n; i++ )
+				strings[ i ] = new String( bytes, offsets[ i ], offsets[ i + 1 ] - offsets[ i ], StandardCharsets.UTF_8 );
+			return strings;
+		}
+	}
+
+	/**
+	 * A mapped feature column and its presence bitmap.
+	 */
+	private static final class Column
+	{
+
+		private final LongBuffer present;
+
+		private final DoubleBuffer values;
+
+		private Column( final LongBuffer present, final DoubleBuffer values )
+		{
+			this.present = present;
+			this.values = values;
+		}
+
+		/**
+		 * Returns the value of object <code>i</code>, or <code>null</code> if
+		 * it has none.
+		 */
+		private Double get( final int i )
+		{
+			if ( ( present.get( i >>> 6 ) & ( 1L << ( i & 63 ) ) ) == 0 )
+				return null;
+			return Double.valueOf( values.get( i ) );
+		}
+	}
+
+	private static final class Declarations
+	{
+
+		private final List< String > features = new ArrayList<>();
+
+		private final Map< String, String > names = new HashMap<>();
+
+		private final Map< String, String > shortNames = new HashMap<>();
+
+		private final Map< String, Dimension > dimensions = new HashMap<>();
+
+		private final Map< String, Boolean > isInts = new HashMap<>();
+	}
+}
@@ -0,0 +1,464 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.io;
+
+import static fiji.plugin.mamut.io.MamutBinaryFormat.EDGE_FEATURE_PREFIX;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.EDGE_SOURCES;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.EDGE_TARGETS;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.EDGE_WEIGHTS;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.MAGIC;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.META;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.SPOT_FEATURE_PREFIX;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.SPOT_FRAMES;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.SPOT_IDS;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.SPOT_NAMES;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.TRACK_EDGES;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.TRACK_FEATURE_PREFIX;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.TRACK_IDS;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.TRACK_NAMES;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.TRACK_VISIBLE;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.VERSION;
+import static fiji.plugin.mamut.io.MamutBinaryFormat.XML;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jdom2.output.Format;
+import org.jdom2.output.XMLOutputter;
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.TrackModel;
+
+/**
+ * A {@link MamutXmlWriter} that writes the binary MaMuT format described in
+ * {@link MamutBinaryFormat}.
+ * <p>
+ * The model is written as columns: one column of doubles per feature, with
+ * a bitmap of the objects that have a value for it, packed
+ * arrays of edge source and target IDs, and tracks as ranges of the edge
+ * columns. The settings, GUI state and display settings are appended to the
+ * document by the parent class as usual, and stored as an XML section of
+ * the binary file.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class MamutBinaryWriter extends MamutXmlWriter
+{
+
+	private final File file;
+
+	private Model model;
+
+	private boolean modelInDocument = false;
+
+	public MamutBinaryWriter( final File file, final Logger logger )
+	{
+		super( file, logger );
+		this.file = file;
+	}
+
+	/**
+	 * Registers the model to write. It is only read when
+	 * {@link #writeToFile()} is called.
+	 */
+	@Override
+	public void appendModel( final Model model )
+	{
+		this.model = model;
+	}
+
+	/**
+	 * Returns the document as a XML string, including the model, so that the
+	 * save-file dump shown after a failed save still contains the
+	 * annotations.
+	 */
+	@Override
+	public String toString()
+	{
+		if ( null != model && !modelInDocument )
+		{
+			modelInDocument = true;
+			super.appendModel( model );
+		}
+		return super.toString();
+	}
+
+	@Override
+	public void writeToFile() throws FileNotFoundException, IOException
+	{
+		logger.log( "  Writing to binary file.\n" );
+		try (FileChannel channel = FileChannel.open( file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING ))
+		{
+			final Output out = new Output( channel );
+			out.putLong( MAGIC );
+			out.putInt( VERSION );
+
+			out.begin();
+			out.putBytes( new XMLOutputter( Format.getPrettyFormat() ).outputString( root ).getBytes( StandardCharsets.UTF_8 ) );
+			out.end( XML );
+
+			if ( null != model )
+				writeModel( out );
+
+			final long footer = out.position();
+			final List< Section > sections = out.sections;
+			out.putInt( sections.size() );
+			for ( final Section section : sections )
+			{
+				out.putString( section.name );
+				out.putLong( section.offset );
+				out.putLong( section.length );
+			}
+			out.putLong( footer );
+			out.putLong( MAGIC );
+			out.flush();
+		}
+	}
+
+	private void writeModel( final Output out ) throws IOException
+	{
+		final FeatureModel fm = model.getFeatureModel();
+		final TrackModel trackModel = model.getTrackModel();
+
+		/*
+		 * Meta data.
+		 */
+
+		out.begin();
+		out.putString( model.getSpaceUnits() );
+		out.putString( model.getTimeUnits() );
+		writeDeclarations( out, fm.getSpotFeatures(), fm.getSpotFeatureNames(), fm.getSpotFeatureShortNames(), fm.getSpotFeatureDimensions(), fm.getSpotFeatureIsInt() );
+		writeDeclarations( out, fm.getEdgeFeatures(), fm.getEdgeFeatureNames(), fm.getEdgeFeatureShortNames(), fm.getEdgeFeatureDimensions(), fm.getEdgeFeatureIsInt() );
+		writeDeclarations( out, fm.getTrackFeatures(), fm.getTrackFeatureNames(), fm.getTrackFeatureShortNames(), fm.getTrackFeatureDimensions(), fm.getTrackFeatureIsInt() );
+		out.end( META );
+
+		/*
+		 * Spots, sorted by frame.
+		 */
+
+		final SpotCollection spotCollection = model.getSpots();
+		final List< Spot > spots = new ArrayList<>( spotCollection.getNSpots( false ) );
+		final List< Integer > frames = new ArrayList<>( spotCollection.keySet() );
+		final int[] frameStarts = new int[ frames.size() + 1 ];
+		final Set< String > spotFeatures = new LinkedHashSet<>( fm.getSpotFeatures() );
+		for ( int f = 0; f < frames.size(); f++ )
+		{
+			frameStarts[ f ] = spots.size();
+			for ( final Spot spot : spotCollection.iterable( frames.get( f ), false ) )
+			{
+				spots.add( spot );
+				spotFeatures.addAll( spot.getFeatures().keySet() );
+			}
+		}
+		frameStarts[ frames.size() ] = spots.size();
+
+		out.begin();
+		out.putInt( frames.size() );
+		for ( final Integer frame : frames )
+			out.putInt( frame.intValue() );
+		for ( final int start : frameStarts )
+			out.putInt( start );
+		out.end( SPOT_FRAMES );
+
+		out.begin();
+		for ( final Spot spot : spots )
+			out.putInt( spot.ID() );
+		out.end( SPOT_IDS );
+
+		final List< String > spotNames = new ArrayList<>( spots.size() );
+		for ( final Spot spot : spots )
+			spotNames.add( spot.getName() );
+		writeStrings( out, spotNames, SPOT_NAMES );
+
+		final List< Double > spotValues = new ArrayList<>( spots.size() );
+		for ( final String feature : spotFeatures )
+		{
+			spotValues.clear();
+			for ( final Spot spot : spots )
+				spotValues.add( spot.getFeature( feature ) );
+			writeColumn( out, spotValues, SPOT_FEATURE_PREFIX + feature );
+		}
+		logger.log( "  Added " + spots.size() + " spots.\n" );
+
+		/*
+		 * Edges, sorted by track.
+		 */
+
+		final List< Integer > trackIDs = new ArrayList<>( trackModel.trackIDs( false ) );
+		final List< DefaultWeightedEdge > edges = new ArrayList<>( trackModel.edgeSet().size() );
+		final int[] trackStarts = new int[ trackIDs.size() + 1 ];
+		for ( int t = 0; t < trackIDs.size(); t++ )
+		{
+			trackStarts[ t ] = edges.size();
+			edges.addAll( trackModel.trackEdges( trackIDs.get( t ) ) );
+		}
+		trackStarts[ trackIDs.size() ] = edges.size();
+
+		out.begin();
+		for ( final DefaultWeightedEdge edge : edges )
+			out.putInt( trackModel.getEdgeSource( edge ).ID() );
+		out.end( EDGE_SOURCES );
+
+		out.begin();
+		for ( final DefaultWeightedEdge edge : edges )
+			out.putInt( trackModel.getEdgeTarget( edge ).ID() );
+		out.end( EDGE_TARGETS );
+
+		out.begin();
+		for ( final DefaultWeightedEdge edge : edges )
+			out.putDouble( trackModel.getEdgeWeight( edge ) );
+		out.end( EDGE_WEIGHTS );
+
+		final List< Double > edgeValues = new ArrayList<>( edges.size() );
+		for ( final String feature : fm.getEdgeFeatures() )
+		{
+			edgeValues.clear();
+			for ( final DefaultWeightedEdge edge : edges )
+				edgeValues.add( fm.getEdgeFeature( edge, feature ) );
+			writeColumn( out, edgeValues, EDGE_FEATURE_PREFIX + feature );
+		}
+		logger.log( "  Added " + edges.size() + " edges.\n" );
+
+		/*
+		 * Tracks, as ranges of the edge columns.
+		 */
+
+		out.begin();
+		for ( final Integer trackID : trackIDs )
+			out.putInt( trackID.intValue() );
+		out.end( TRACK_IDS );
+
+		out.begin();
+		for ( final int start : trackStarts )
+			out.putInt( start );
+		out.end( TRACK_EDGES );
+
+		out.begin();
+		for ( final Integer trackID : trackIDs )
+			out.putByte( trackModel.isVisible( trackID ) ? ( byte ) 1 : ( byte ) 0 );
+		out.end( TRACK_VISIBLE );
+
+		final List< String > trackNames = new ArrayList<>( trackIDs.size() );
+		for ( final Integer trackID : trackIDs )
+			trackNames.add( trackModel.name( trackID ) );
+		writeStrings( out, trackNames, TRACK_NAMES );
+
+		final List< Double > trackValues = new ArrayList<>( trackIDs.size() );
+		for ( final String feature : fm.getTrackFeatures() )
+		{
+			trackValues.clear();
+			for ( final Integer trackID : trackIDs )
+				trackValues.add( fm.getTrackFeature( trackID, feature ) );
+			writeColumn( out, trackValues, TRACK_FEATURE_PREFIX + feature );
+		}
+		logger.log( "  Added " + trackIDs.size() + " tracks.\n" );
+	}
+
+	private static void writeDeclarations( final Output out, final Collection< String > features,
+			final Map< String, String > names, final Map< String, String > shortNames,
+			final Map< String, Dimension > dimensions, final Map< String, Boolean > isInts ) throws IOException
+	{
+		out.putInt( features.size() );
+		for ( final String feature : features )
+		{
+			out.putString( feature );
+			out.putString( names.get( feature ) );
+			out.putString( shortNames.get( feature ) );
+			out.putString( dimensions.get( feature ).name() );
+			final Boolean isInt = isInts.get( feature );
+			out.putByte( ( null != isInt && isInt.booleanValue() ) ? ( byte ) 1 : ( byte ) 0 );
+		}
+	}
+
+	private static void writeStrings( final Output out, final List< String > strings, final String name ) throws IOException
+	{
+		final List< byte[] > bytes = new ArrayList<>( strings.size() );
+		for ( final String str : strings )
+			bytes.add( null == str ? new byte[ 0 ] : str.getBytes( StandardCharsets.UTF_8 ) );
+
+		out.begin();
+		int offset = 0;
+		out.putInt( offset );
+		for ( final byte[] b : bytes )
+		{
+			offset += b.length;
+			out.putInt( offset );
+		}
+		for ( final byte[] b : bytes )
+			out.putBytes( b );
+		out.end( name );
+	}
+
+	/**
+	 * Writes a feature column: the presence bitmap, then the values. Missing
+	 * values are written as 0 and flagged absent in the bitmap, so that NaN
+	 * values are kept as they are.
+	 */
+	private static void writeColumn( final Output out, final List< Double > values, final String name ) throws IOException
+	{
+		final long[] present = new long[ MamutBinaryFormat.presenceWords( values.size() ) ];
+		for ( int i = 0; i < values.size(); i++ )
+			if ( null != values.get( i ) )
+				present[ i >>> 6 ] |= 1L << ( i & 63 );
+
+		out.begin();
+		for ( final long word : present )
+			out.putLong( word );
+		for ( final Double val : values )
+			out.putDouble( null == val ? 0. : val.doubleValue() );
+		out.end( name );
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	private static final class Section
+	{
+
+		private final String name;
+
+		private final long offset;
+
+		private final long length;
+
+		private Section( final String name, final long offset, final long length )
+		{
+			this.name = name;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Buffered writes to a file channel, keeping track of the position and of
+	 * the sections written.
+	 */
+	private static final class Output
+	{
+
+		private final FileChannel channel;
+
+		private final ByteBuffer buffer = ByteBuffer.allocate( 1 << 20 );
+
+		private final List< Section > sections = new ArrayList<>();
+
+		private long flushed = 0;
+
+		private long sectionStart;
+
+		private Output( final FileChannel channel )
+		{
+			this.channel = channel;
+		}
+
+		private long position()
+		{
+			return flushed + buffer.position();
+		}
+
+		private void begin()
+		{
+			sectionStart = position();
+		}
+
+		private void end( final String name )
+		{
+			sections.add( new Section( name, sectionStart, position() - sectionStart ) );
+		}
+
+		private void ensure( final int n ) throws IOException
+		{
+			if ( buffer.remaining() < n )
+				flush();
+		}
+
+		private void putByte( final byte b ) throws IOException
+		{
+			ensure( 1 );
+			buffer.put( b );
+		}
+
+		private void putInt( final int i ) throws IOException
+		{
+			ensure( 4 );
+			buffer.putInt( i );
+		}
+
+		private void putLong( final long l ) throws IOException
+		{
+			ensure( 8 );
+			buffer.putLong( l );
+		}
+
+		private void putDouble( final double d ) throws IOException
+		{
+			ensure( 8 );
+			buffer.putDouble( d );
+		}
+
+		private void putBytes( final byte[] bytes ) throws IOException
+		{
+			int offset = 0;
+			while ( offset < bytes.length )
+			{
+				ensure( 1 );
+				final int n = Math.min( buffer.remaining(), bytes.length - offset );
+				buffer.put( bytes, offset, n );
+				offset += n;
+			}
+		}
+
+		private void putString( final String str ) throws IOException
+		{
+			final byte[] bytes = ( null == str ? "" : str ).getBytes( StandardCharsets.UTF_8 );
+			putInt( bytes.length );
+			putBytes( bytes );
+		}
+
+		private void flush() throws IOException
+		{
+			buffer.flip();
+			while ( buffer.hasRemaining() )
+				flushed += channel.write( buffer );
+			buffer.clear();
+		}
+	}
+}
@@ -0,0 +1,922 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+import fiji.plugin.mamut.feature.spot.SpotSourceIdAnalyzerFactory;
+import fiji.plugin.mamut.util.EdgeEnds;
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.ModelChangeEvent;
+import fiji.plugin.trackmate.ModelChangeListener;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.features.edges.EdgeAnalyzer;
+import fiji.plugin.trackmate.features.spot.SpotAnalyzerFactoryBase;
+
+/**
+ * An append-only binary journal of the edits made to a MaMuT model.
+ * <p>
+ * Each {@link ModelChangeEvent#MODEL_MODIFIED} event is serialized on the
+ * thread that fired it, then appended to the journal file by a single
+ * background thread, that also forces the content to disk periodically. The
+ * journal is bound to a MaMuT XML file: its header stores the length and
+ * modification time of this file, so that the journal is only replayed
+ * against the exact XML file it was started from.
+ * <p>
+ * Saving rotates the journal: {@link #beginSnapshot(File)} must be called
+ * before the model is serialized, and {@link #endSnapshot(boolean)} after the
+ * file is written. Edits made in between go to a new segment, that replaces
+ * the previous journal only once the file is written. Edits that make it into
+ * both the file and the new segment are replayed harmlessly, because every
+ * record is idempotent.
+ * <p>
+ * Recovering is done with {@link #replay(File, Model, Logger)}, and costs a
+ * time proportional to the number of edits recorded since the last save, not
+ * to the size of the model. Closing a session without saving also leaves the
+ * journal on disk, so the user is asked whether to replay or to discard it
+ * (see {@link #hasJournal(File)}).
+ * <p>
+ * Spot records store the position, frame, radius, quality, source and name
+ * of the spot, and edge records the weight of the edge. Both also store the
+ * values of the manual features, the ones of the analyzers for which
+ * {@code isManualFeature()} is true, such as the manual colors set from
+ * TrackScheme. Other features are computed again after recovery.
+ * <p>
+ * The journal file is only created when the first edit is recorded.
+ */
+public class MamutEditJournal implements ModelChangeListener
+{
+
+	/** The extension of journal files, appended to the MaMuT file name. */
+	public static final String JOURNAL_EXTENSION = ".journal";
+
+	/** The extension of the segment written while a save is in progress. */
+	private static final String PENDING_EXTENSION = ".pending";
+
+	/** The default interval, in milliseconds, between two fsync calls. */
+	public static final long DEFAULT_SYNC_INTERVAL = 1000;
+
+	private static final long MAGIC = 0x4d414d55544a4e4cL; // MAMUTJNL
+
+	private static final int VERSION = 1;
+
+	private static final byte RECORD_SPOT = 1;
+
+	private static final byte RECORD_SPOT_REMOVED = 2;
+
+	private static final byte RECORD_EDGE = 3;
+
+	private static final byte RECORD_EDGE_REMOVED = 4;
+
+	/** A spot record followed by the manual features of the spot. */
+	private static final byte RECORD_SPOT_FEATURES = 5;
+
+	/** An edge record followed by the manual features of the edge. */
+	private static final byte RECORD_EDGE_FEATURES = 6;
+
+	/** Size of the file header: magic, version and XML file stamp. */
+	private static final int HEADER_SIZE = 8 + 4 + 8 + 8;
+
+	private final Model model;
+
+	private final Settings settings;
+
+	private final EdgeEnds edgeEnds;
+
+	private final Logger logger;
+
+	private final ScheduledExecutorService writer;
+
+	/** The file the journal writes to. Only accessed by the writer thread. */
+	private File journalFile;
+
+	/** The XML file the journal is bound to. Only accessed by the writer thread. */
+	private File xmlFile;
+
+	/** Only accessed by the writer thread. */
+	private DataOutputStream out;
+
+	/** Only accessed by the writer thread. */
+	private FileChannel channel;
+
+	/** Only accessed by the writer thread. */
+	private boolean dirty;
+
+	/**
+	 * Whether a save is in progress, and the journal writes to a pending
+	 * segment. Only accessed by the writer thread.
+	 */
+	private boolean snapshotting;
+
+	/** The journal before the current save. Only accessed by the writer thread. */
+	private File previousJournalFile;
+
+	/** The XML file before the current save. Only accessed by the writer thread. */
+	private File previousXmlFile;
+
+	private volatile boolean active = true;
+
+	/**
+	 * Creates a journal for the specified model, and starts listening to its
+	 * changes. Edits are not recorded until the journal is bound to a file
+	 * with {@link #open(File)}.
+	 *
+	 * @param model
+	 *            the model to record edits of.
+	 * @param settings
+	 *            the settings whose analyzers tell which features are
+	 *            manual, and must be recorded.
+	 * @param edgeEnds
+	 *            where the sources and targets of the edges removed from this
+	 *            model are found.
+	 * @param syncInterval
+	 *            the interval, in milliseconds, between two forced writes of
+	 *            the journal to the disk.
+	 * @param logger
+	 *            a logger to report errors to.
+	 */
+	public MamutEditJournal( final Model model, final Settings settings, final EdgeEnds edgeEnds, final long syncInterval, final Logger logger )
+	{
+		this.model = model;
+		this.settings = settings;
+		this.edgeEnds = edgeEnds;
+		this.logger = logger;
+		this.writer = Executors.newSingleThreadScheduledExecutor( r -> {
+			final Thread thread = new Thread( r, "MaMuT edit journal writer" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		writer.scheduleWithFixedDelay( this::sync, syncInterval, syncInterval, TimeUnit.MILLISECONDS );
+		model.addModelChangeListener( this );
+	}
+
+	public MamutEditJournal( final Model model, final Settings settings, final EdgeEnds edgeEnds, final Logger logger )
+	{
+		this( model, settings, edgeEnds, DEFAULT_SYNC_INTERVAL, logger );
+	}
+
+	/**
+	 * Returns the journal file that goes with the specified MaMuT file. The
+	 * journal is named after the full file name, so that the XML and binary
+	 * files of the same annotation do not share a journal.
+	 *
+	 * @param mamutFile
+	 *            the MaMuT XML or binary file.
+	 * @return the journal file, in the same folder.
+	 */
+	public static File journalFileFor( final File mamutFile )
+	{
+		return new File( mamutFile.getParentFile(), mamutFile.getName() + JOURNAL_EXTENSION );
+	}
+
+	/**
+	 * Binds this journal to the specified MaMuT XML file. If a journal that
+	 * matches the current state of this XML file already exists, subsequent
+	 * edits are appended to it. Otherwise, it is discarded and a new journal
+	 * will be started at the next edit.
+	 * <p>
+	 * Saves must use {@link #beginSnapshot(File)} and
+	 * {@link #endSnapshot(boolean)} instead.
+	 *
+	 * @param mamutFile
+	 *            the MaMuT XML file to bind to.
+	 */
+	public void open( final File mamutFile )
+	{
+		writer.execute( () -> {
+			closeStream();
+			xmlFile = mamutFile;
+			journalFile = journalFileFor( mamutFile );
+			if ( journalFile.exists() && !matches( journalFile, mamutFile ) )
+				if ( !journalFile.delete() )
+					logger.error( "Could not delete stale journal " + journalFile + ".\n" );
+		} );
+	}
+
+	/**
+	 * Starts a new journal segment before the model is saved to the specified
+	 * file. Edits recorded from now on go to this segment. The previous
+	 * journal is left untouched until {@link #endSnapshot(boolean)} is
+	 * called, so that a crash during the save still leaves a journal that
+	 * matches the previous file.
+	 *
+	 * @param mamutFile
+	 *            the MaMuT file the model is about to be saved to.
+	 */
+	public void beginSnapshot( final File mamutFile )
+	{
+		writer.execute( () -> {
+			closeStream();
+			if ( !snapshotting )
+			{
+				previousJournalFile = journalFile;
+				previousXmlFile = xmlFile;
+			}
+			snapshotting = true;
+			xmlFile = mamutFile;
+			journalFile = pendingFileFor( mamutFile );
+			if ( journalFile.exists() && !journalFile.delete() )
+				logger.error( "Could not delete stale journal " + journalFile + ".\n" );
+		} );
+	}
+
+	/**
+	 * Ends the save started with {@link #beginSnapshot(File)}. If the file was
+	 * written, the new segment is stamped with it and replaces its journal.
+	 * Otherwise, the edits of the new segment are moved back to the previous
+	 * journal, which keeps being used.
+	 *
+	 * @param saved
+	 *            whether the MaMuT file was written successfully.
+	 */
+	public void endSnapshot( final boolean saved )
+	{
+		writer.execute( () -> {
+			if ( !snapshotting )
+				return;
+			closeStream();
+			snapshotting = false;
+			final File pendingFile = journalFile;
+			try
+			{
+				if ( saved )
+				{
+					final File target = journalFileFor( xmlFile );
+					if ( pendingFile.exists() )
+					{
+						stamp( pendingFile, xmlFile );
+						move( pendingFile, target );
+					}
+					else if ( target.exists() && !target.delete() )
+					{
+						logger.error( "Could not delete stale journal " + target + ".\n" );
+					}
+					journalFile = target;
+				}
+				else
+				{
+					xmlFile = previousXmlFile;
+					journalFile = previousJournalFile;
+					if ( pendingFile.exists() )
+					{
+						if ( journalFile != null )
+							transfer( pendingFile );
+						if ( !pendingFile.delete() )
+							logger.error( "Could not delete journal " + pendingFile + ".\n" );
+					}
+				}
+			}
+			catch ( final IOException e )
+			{
+				logger.error( "Could not rotate journal " + pendingFile + ": " + e.getMessage() + '\n' );
+				closeStream();
+				// Stop journaling instead of writing a journal with holes.
+				journalFile = null;
+			}
+			previousJournalFile = null;
+			previousXmlFile = null;
+		} );
+	}
+
+	/**
+	 * Stops listening to the model, writes pending edits and closes the
+	 * journal file. The journal file is kept on disk.
+	 */
+	public void close()
+	{
+		active = false;
+		model.removeModelChangeListener( this );
+		writer.execute( this::closeStream );
+		writer.shutdown();
+		try
+		{
+			writer.awaitTermination( 10, TimeUnit.SECONDS );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void modelChanged( final ModelChangeEvent event )
+	{
+		if ( !active || event.getEventID() != ModelChangeEvent.MODEL_MODIFIED )
+			return;
+
+		final List< byte[] > records = new ArrayList<>();
+		try
+		{
+			// Added or modified spots first, so that new edges can refer to them.
+			final List< String > spotFeatures = manualSpotFeatures();
+			for ( final Spot spot : event.getSpots() )
+				if ( event.getSpotFlag( spot ) != ModelChangeEvent.FLAG_SPOT_REMOVED )
+					records.add( spotRecord( spot, spotFeatures ) );
+
+			for ( final DefaultWeightedEdge edge : event.getEdges() )
+			{
+				if ( event.getEdgeFlag( edge ) == ModelChangeEvent.FLAG_EDGE_REMOVED )
+				{
+					final Spot source = edgeEnds.getSource( edge );
+					final Spot target = edgeEnds.getTarget( edge );
+					if ( source == null || target == null )
+					{
+						// Ends unknown: nothing to record.
+						continue;
+					}
+					records.add( edgeRemovedRecord( source, target ) );
+				}
+			}
+
+			final List< String > edgeFeatures = manualEdgeFeatures();
+			for ( final DefaultWeightedEdge edge : event.getEdges() )
+				if ( event.getEdgeFlag( edge ) != ModelChangeEvent.FLAG_EDGE_REMOVED )
+					records.add( edgeRecord( edge, edgeFeatures ) );
+
+			for ( final Spot spot : event.getSpots() )
+				if ( event.getSpotFlag( spot ) == ModelChangeEvent.FLAG_SPOT_REMOVED )
+					records.add( spotRemovedRecord( spot ) );
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Could not serialize edit for the journal: " + e.getMessage() + '\n' );
+			return;
+		}
+
+		if ( !records.isEmpty() )
+			writer.execute( () -> write( records ) );
+	}
+
+	/*
+	 * REPLAY.
+	 */
+
+	/**
+	 * Returns <code>true</code> if a journal that matches the specified MaMuT
+	 * file exists next to it. This is the case after a crash, but also after
+	 * a session closed without saving, so callers should ask the user whether
+	 * to replay or to discard it.
+	 *
+	 * @param mamutFile
+	 *            the MaMuT file.
+	 * @return <code>true</code> if there are edits to recover.
+	 */
+	public static boolean hasJournal( final File mamutFile )
+	{
+		final File file = journalFileFor( mamutFile );
+		return file.exists() && file.canRead() && matches( file, mamutFile );
+	}
+
+	/**
+	 * Deletes the journal found next to the specified MaMuT file, discarding
+	 * the edits it records.
+	 *
+	 * @param mamutFile
+	 *            the MaMuT file.
+	 * @param logger
+	 *            a logger to report errors to.
+	 */
+	public static void discard( final File mamutFile, final Logger logger )
+	{
+		final File file = journalFileFor( mamutFile );
+		if ( file.exists() && !file.delete() )
+			logger.error( "Could not delete journal " + file + ".\n" );
+	}
+
+	/**
+	 * Replays the journal found next to the specified MaMuT XML file on the
+	 * specified model, if there is one and if it matches the XML file. The
+	 * model must have been read from this XML file. The replay stops at the
+	 * first incomplete or corrupted record, which is what a crash leaves at
+	 * the end of the journal.
+	 *
+	 * @param mamutFile
+	 *            the MaMuT XML file the model was read from.
+	 * @param model
+	 *            the model to apply the edits to.
+	 * @param logger
+	 *            a logger to report progress and errors to.
+	 * @return the number of edits replayed.
+	 */
+	public static int replay( final File mamutFile, final Model model, final Logger logger )
+	{
+		final File file = journalFileFor( mamutFile );
+		if ( !file.exists() || !file.canRead() )
+			return 0;
+
+		if ( !matches( file, mamutFile ) )
+		{
+			logger.log( "Ignoring journal " + file + ": it does not match " + mamutFile + ".\n" );
+			return 0;
+		}
+
+		final Map< Integer, Spot > spots = new HashMap<>( model.getSpots().getNSpots( false ) );
+		for ( final Spot spot : model.getSpots().iterable( false ) )
+			spots.put( Integer.valueOf( spot.ID() ), spot );
+
+		int nRecords = 0;
+		int maxID = -1;
+		final long start = System.currentTimeMillis();
+		model.beginUpdate();
+		try (final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ))
+		{
+			readHeader( in );
+			final CRC32 crc = new CRC32();
+			while ( true )
+			{
+				final int length;
+				final long checksum;
+				final byte[] payload;
+				try
+				{
+					length = in.readInt();
+					checksum = in.readLong();
+					if ( length <= 0 )
+						break;
+					payload = new byte[ length ];
+					in.readFully( payload );
+				}
+				catch ( final EOFException e )
+				{
+					break;
+				}
+				crc.reset();
+				crc.update( payload, 0, payload.length );
+				if ( crc.getValue() != checksum )
+				{
+					logger.error( "Journal " + file + " has a corrupted record after " + nRecords + " edits. Stopping there.\n" );
+					break;
+				}
+				final int id = apply( payload, model, spots );
+				maxID = Math.max( maxID, id );
+				nRecords++;
+			}
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Problem reading journal " + file + ": " + e.getMessage() + '\n' );
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+
+		// Spots created from the journal keep their ID.
+		final int nextID = maxID + 1;
+		Spot.IDcounter.accumulateAndGet( nextID, Math::max );
+
+		final long end = System.currentTimeMillis();
+		logger.log( String.format( "Replayed %d edits from journal %s in %d ms.\n", nRecords, file, end - start ) );
+		return nRecords;
+	}
+
+	/**
+	 * Applies a single record to the model.
+	 *
+	 * @return the largest spot ID found in the record.
+	 */
+	private static int apply( final byte[] payload, final Model model, final Map< Integer, Spot > spots ) throws IOException
+	{
+		final DataInputStream in = new DataInputStream( new ByteArrayInputStream( payload ) );
+		final byte type = in.readByte();
+		switch ( type )
+		{
+		case RECORD_SPOT:
+		case RECORD_SPOT_FEATURES:
+		{
+			final int id = in.readInt();
+			final int frame = in.readInt();
+			final double x = in.readDouble();
+			final double y = in.readDouble();
+			final double z = in.readDouble();
+			final double radius = in.readDouble();
+			final double quality = in.readDouble();
+			final double sourceId = in.readDouble();
+			final String name = in.readBoolean() ? in.readUTF() : null;
+			final Map< String, Double > features = ( type == RECORD_SPOT_FEATURES )
+					? readFeatures( in )
+					: new HashMap<>();
+
+			Spot spot = spots.get( Integer.valueOf( id ) );
+			final boolean isNew = ( spot == null );
+			if ( isNew )
+			{
+				spot = new Spot( id );
+				spots.put( Integer.valueOf( id ), spot );
+			}
+			spot.putFeature( Spot.POSITION_X, Double.valueOf( x ) );
+			spot.putFeature( Spot.POSITION_Y, Double.valueOf( y ) );
+			spot.putFeature( Spot.POSITION_Z, Double.valueOf( z ) );
+			spot.putFeature( Spot.RADIUS, Double.valueOf( radius ) );
+			spot.putFeature( Spot.QUALITY, Double.valueOf( quality ) );
+			spot.putFeature( Spot.POSITION_T, Double.valueOf( frame ) );
+			if ( !Double.isNaN( sourceId ) )
+				spot.putFeature( SpotSourceIdAnalyzerFactory.SOURCE_ID, Double.valueOf( sourceId ) );
+			if ( name != null )
+				spot.setName( name );
+			for ( final Map.Entry< String, Double > feature : features.entrySet() )
+				spot.putFeature( feature.getKey(), feature.getValue() );
+
+			if ( isNew )
+			{
+				model.addSpotTo( spot, Integer.valueOf( frame ) );
+			}
+			else
+			{
+				final int previousFrame = spot.getFeature( Spot.FRAME ).intValue();
+				if ( previousFrame != frame )
+					model.moveSpotFrom( spot, Integer.valueOf( previousFrame ), Integer.valueOf( frame ) );
+				else
+					model.updateFeatures( spot );
+			}
+			return id;
+		}
+		case RECORD_SPOT_REMOVED:
+		{
+			final int id = in.readInt();
+			final Spot spot = spots.remove( Integer.valueOf( id ) );
+			if ( spot != null )
+				model.removeSpot( spot );
+			return id;
+		}
+		case RECORD_EDGE:
+		case RECORD_EDGE_FEATURES:
+		{
+			final Spot source = spots.get( Integer.valueOf( in.readInt() ) );
+			final Spot target = spots.get( Integer.valueOf( in.readInt() ) );
+			final double weight = in.readDouble();
+			final Map< String, Double > features = ( type == RECORD_EDGE_FEATURES )
+					? readFeatures( in )
+					: new HashMap<>();
+			if ( source == null || target == null )
+				return -1;
+			DefaultWeightedEdge edge = model.getTrackModel().getEdge( source, target );
+			if ( edge == null )
+				edge = model.addEdge( source, target, weight );
+			else
+				model.setEdgeWeight( edge, weight );
+			final FeatureModel fm = model.getFeatureModel();
+			for ( final Map.Entry< String, Double > feature : features.entrySet() )
+				fm.putEdgeFeature( edge, feature.getKey(), feature.getValue() );
+			return -1;
+		}
+		case RECORD_EDGE_REMOVED:
+		{
+			final Spot source = spots.get( Integer.valueOf( in.readInt() ) );
+			final Spot target = spots.get( Integer.valueOf( in.readInt() ) );
+			if ( source != null && target != null && model.getTrackModel().containsEdge( source, target ) )
+				model.removeEdge( source, target );
+			return -1;
+		}
+		default:
+			throw new IOException( "Unknown journal record type: " + type );
+		}
+	}
+
+	/*
+	 * SERIALIZATION.
+	 */
+
+	/**
+	 * Returns the keys of the manual spot features, that are not recorded
+	 * otherwise.
+	 */
+	private List< String > manualSpotFeatures()
+	{
+		final Set< String > features = new LinkedHashSet<>();
+		if ( null != settings )
+			for ( final SpotAnalyzerFactoryBase< ? > factory : settings.getSpotAnalyzerFactories() )
+				if ( factory.isManualFeature() )
+					features.addAll( factory.getFeatures() );
+		features.remove( SpotSourceIdAnalyzerFactory.SOURCE_ID );
+		return new ArrayList<>( features );
+	}
+
+	/**
+	 * Returns the keys of the manual edge features.
+	 */
+	private List< String > manualEdgeFeatures()
+	{
+		final Set< String > features = new LinkedHashSet<>();
+		if ( null != settings )
+			for ( final EdgeAnalyzer analyzer : settings.getEdgeAnalyzers() )
+				if ( analyzer.isManualFeature() )
+					features.addAll( analyzer.getFeatures() );
+		return new ArrayList<>( features );
+	}
+
+	private static byte[] spotRecord( final Spot spot, final Collection< String > features ) throws IOException
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream( 96 );
+		final DataOutputStream out = new DataOutputStream( bytes );
+		out.writeByte( RECORD_SPOT_FEATURES );
+		out.writeInt( spot.ID() );
+		out.writeInt( spot.getFeature( Spot.FRAME ).intValue() );
+		out.writeDouble( spot.getDoublePosition( 0 ) );
+		out.writeDouble( spot.getDoublePosition( 1 ) );
+		out.writeDouble( spot.getDoublePosition( 2 ) );
+		out.writeDouble( valueOrNaN( spot.getFeature( Spot.RADIUS ) ) );
+		out.writeDouble( valueOrNaN( spot.getFeature( Spot.QUALITY ) ) );
+		out.writeDouble( valueOrNaN( spot.getFeature( SpotSourceIdAnalyzerFactory.SOURCE_ID ) ) );
+		final String name = spot.getName();
+		out.writeBoolean( name != null );
+		if ( name != null )
+			out.writeUTF( name );
+		final Map< String, Double > values = new HashMap<>();
+		for ( final String feature : features )
+		{
+			final Double value = spot.getFeature( feature );
+			if ( value != null )
+				values.put( feature, value );
+		}
+		writeFeatures( out, values );
+		return bytes.toByteArray();
+	}
+
+	private static byte[] spotRemovedRecord( final Spot spot ) throws IOException
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream( 5 );
+		final DataOutputStream out = new DataOutputStream( bytes );
+		out.writeByte( RECORD_SPOT_REMOVED );
+		out.writeInt( spot.ID() );
+		return bytes.toByteArray();
+	}
+
+	private byte[] edgeRecord( final DefaultWeightedEdge edge, final Collection< String > features ) throws IOException
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream( 17 );
+		final DataOutputStream out = new DataOutputStream( bytes );
+		out.writeByte( RECORD_EDGE_FEATURES );
+		out.writeInt( model.getTrackModel().getEdgeSource( edge ).ID() );
+		out.writeInt( model.getTrackModel().getEdgeTarget( edge ).ID() );
+		out.writeDouble( model.getTrackModel().getEdgeWeight( edge ) );
+		final FeatureModel fm = model.getFeatureModel();
+		final Map< String, Double > values = new HashMap<>();
+		for ( final String feature : features )
+		{
+			final Double value = fm.getEdgeFeature( edge, feature );
+			if ( value != null )
+				values.put( feature, value );
+		}
+		writeFeatures( out, values );
+		return bytes.toByteArray();
+	}
+
+	private static byte[] edgeRemovedRecord( final Spot source, final Spot target ) throws IOException
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream( 9 );
+		final DataOutputStream out = new DataOutputStream( bytes );
+		out.writeByte( RECORD_EDGE_REMOVED );
+		out.writeInt( source.ID() );
+		out.writeInt( target.ID() );
+		return bytes.toByteArray();
+	}
+
+	private static void writeFeatures( final DataOutputStream out, final Map< String, Double > features ) throws IOException
+	{
+		out.writeInt( features.size() );
+		for ( final Map.Entry< String, Double > feature : features.entrySet() )
+		{
+			out.writeUTF( feature.getKey() );
+			out.writeDouble( feature.getValue().doubleValue() );
+		}
+	}
+
+	private static Map< String, Double > readFeatures( final DataInputStream in ) throws IOException
+	{
+		final int n = in.readInt();
+		final Map< String, Double > features = new HashMap<>( Math.max( 0, n ) );
+		for ( int i = 0; i < n; i++ )
+		{
+			final String key = in.readUTF();
+			features.put( key, Double.valueOf( in.readDouble() ) );
+		}
+		return features;
+	}
+
+	private static final double valueOrNaN( final Double val )
+	{
+		return ( val == null ) ? Double.NaN : val.doubleValue();
+	}
+
+	/*
+	 * FILE HANDLING. All called from the writer thread.
+	 */
+
+	private static File pendingFileFor( final File mamutFile )
+	{
+		return new File( mamutFile.getParentFile(), mamutFile.getName() + JOURNAL_EXTENSION + PENDING_EXTENSION );
+	}
+
+	/**
+	 * Writes the stamp of the specified XML file in the header of the
+	 * specified journal, and forces it to disk.
+	 */
+	private static void stamp( final File journal, final File mamutFile ) throws IOException
+	{
+		try (final RandomAccessFile raf = new RandomAccessFile( journal, "rw" ))
+		{
+			raf.seek( 8 + 4 );
+			raf.writeLong( mamutFile.exists() ? mamutFile.length() : 0l );
+			raf.writeLong( mamutFile.exists() ? mamutFile.lastModified() : 0l );
+			raf.getFD().sync();
+		}
+	}
+
+	private static void move( final File source, final File target ) throws IOException
+	{
+		try
+		{
+			Files.move( source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		}
+		catch ( final AtomicMoveNotSupportedException e )
+		{
+			Files.move( source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		}
+	}
+
+	/**
+	 * Appends the records of the specified segment to the current journal.
+	 */
+	private void transfer( final File segment ) throws IOException
+	{
+		if ( segment.length() <= HEADER_SIZE )
+			return;
+		if ( out == null )
+			openStream();
+		try (final FileInputStream in = new FileInputStream( segment ))
+		{
+			long toSkip = HEADER_SIZE;
+			while ( toSkip > 0 )
+				toSkip -= in.skip( toSkip );
+			final byte[] buffer = new byte[ 64 * 1024 ];
+			int read;
+			while ( ( read = in.read( buffer ) ) > 0 )
+				out.write( buffer, 0, read );
+		}
+		dirty = true;
+	}
+
+	private void write( final List< byte[] > records )
+	{
+		if ( journalFile == null )
+			return;
+
+		try
+		{
+			if ( out == null )
+				openStream();
+
+			final CRC32 crc = new CRC32();
+			for ( final byte[] payload : records )
+			{
+				crc.reset();
+				crc.update( payload, 0, payload.length );
+				out.writeInt( payload.length );
+				out.writeLong( crc.getValue() );
+				out.write( payload );
+			}
+			dirty = true;
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Could not write to journal " + journalFile + ": " + e.getMessage() + '\n' );
+			closeStream();
+			// Stop journaling instead of writing a journal with holes.
+			journalFile = null;
+		}
+	}
+
+	private void openStream() throws IOException
+	{
+		final boolean append = journalFile.exists() && journalFile.length() >= HEADER_SIZE;
+		final FileOutputStream fos = new FileOutputStream( journalFile, append );
+		channel = fos.getChannel();
+		out = new DataOutputStream( new BufferedOutputStream( fos, 64 * 1024 ) );
+		if ( !append )
+		{
+			channel.truncate( 0 );
+			out.writeLong( MAGIC );
+			out.writeInt( VERSION );
+			// A pending segment is stamped when the save completes.
+			final boolean stamped = !snapshotting && xmlFile.exists();
+			out.writeLong( stamped ? xmlFile.length() : 0l );
+			out.writeLong( stamped ? xmlFile.lastModified() : 0l );
+			dirty = true;
+		}
+	}
+
+	private void sync()
+	{
+		if ( out == null || !dirty )
+			return;
+		try
+		{
+			out.flush();
+			channel.force( false );
+			dirty = false;
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Could not sync journal " + journalFile + ": " + e.getMessage() + '\n' );
+		}
+	}
+
+	private void closeStream()
+	{
+		if ( out == null )
+			return;
+		sync();
+		try
+		{
+			out.close();
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Could not close journal " + journalFile + ": " + e.getMessage() + '\n' );
+		}
+		out = null;
+		channel = null;
+	}
+
+	private static long[] readHeader( final DataInputStream in ) throws IOException
+	{
+		if ( in.readLong() != MAGIC )
+			throw new IOException( "Not a MaMuT journal file." );
+		final int version = in.readInt();
+		if ( version != VERSION )
+			throw new IOException( "Unsupported MaMuT journal version: " + version );
+		final long length = in.readLong();
+		final long lastModified = in.readLong();
+		return new long[] { length, lastModified };
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified journal was started against
+	 * the current version of the specified XML file.
+	 */
+	private static boolean matches( final File journal, final File mamutFile )
+	{
+		try (final DataInputStream in = new DataInputStream( new FileInputStream( journal ) ))
+		{
+			final long[] stamp = readHeader( in );
+			final long length = mamutFile.exists() ? mamutFile.length() : 0l;
+			final long lastModified = mamutFile.exists() ? mamutFile.lastModified() : 0l;
+			return stamp[ 0 ] == length && stamp[ 1 ] == lastModified;
+		}
+		catch ( final IOException e )
+		{
+			return false;
+		}
+	}
+}
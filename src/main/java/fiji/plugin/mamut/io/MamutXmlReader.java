@@ -60,6 +60,7 @@ import bdv.tools.bookmarks.Bookmarks;
 import bdv.tools.brightness.SetupAssignments;
 import fiji.plugin.mamut.MaMuT;
 import fiji.plugin.mamut.SourceSettings;
+import fiji.plugin.mamut.feature.spot.SpotIntensityStatisticsAnalyzerFactory;
 import fiji.plugin.mamut.providers.MamutSpotAnalyzerProvider;
 import fiji.plugin.mamut.viewer.MamutViewer;
 import fiji.plugin.trackmate.Model;
@@ -117,6 +118,38 @@ public class MamutXmlReader extends TmXmlReader
 		throw new UnsupportedOperationException( "MaMuT cannot load a XML file that requires specifying an ImagePlus." );
 	}
 
+	/**
+	 * Returns the model stored in the file.
+	 * <p>
+	 * This reader builds a new {@link Model} at every call. Subclasses that
+	 * read the model once when they are created, such as
+	 * {@link MamutXmlStreamReader} and {@link MamutBinaryReader}, return the
+	 * same instance every time instead. Callers that edit the model must
+	 * therefore not call this method twice expecting independent copies.
+	 * <p>
+	 * Errors on single elements, such as an unparsable feature value or an
+	 * edge with a missing spot, are reported by {@link #isReadingOk()} and
+	 * {@link #getErrorMessage()}, and the rest of the model is returned. The
+	 * streaming and binary readers return <code>null</code> if the file
+	 * itself cannot be read or is malformed.
+	 *
+	 * @return the model, or <code>null</code> if it could not be read.
+	 */
+	@Override
+	public Model getModel()
+	{
+		return super.getModel();
+	}
+
+	/**
+	 * Returns the MaMuT file this reader reads from. Relative image paths are
+	 * resolved against its folder.
+	 */
+	protected File getMamutFile()
+	{
+		return file;
+	}
+
 	public SourceSettings readSourceSettings()
 	{
 		final Element settingsElement = root.getChild( SETTINGS_ELEMENT_KEY );
@@ -137,7 +170,7 @@ public class MamutXmlReader extends TmXmlReader
 			return null;
 		}
 		if ( null == folder || folder.isEmpty() )
-			folder = file.getParent(); // it is a relative path, then
+			folder = getMamutFile().getParent(); // it is a relative path, then
 
 		File imageFile = new File( folder, filename );
 		if ( !imageFile.exists() || !imageFile.canRead() )
@@ -146,7 +179,7 @@ public class MamutXmlReader extends TmXmlReader
 			 * Could not find it to the absolute path. Then we look for the same
 			 * path of the xml file
 			 */
-			folder = file.getParent();
+			folder = getMamutFile().getParent();
 			imageFile = new File( folder, filename );
 			if ( !imageFile.exists() || !imageFile.canRead() )
 			{
@@ -219,7 +252,7 @@ public class MamutXmlReader extends TmXmlReader
 				for ( final Element child : children )
 				{
 
-					final String key = child.getAttributeValue( ANALYSER_KEY_ATTRIBUTE );
+					String key = child.getAttributeValue( ANALYSER_KEY_ATTRIBUTE );
 					if ( null == key )
 					{
 						logger.error( "Could not find analyzer name for element " + child + ".\n" );
@@ -227,6 +260,16 @@ public class MamutXmlReader extends TmXmlReader
 						continue;
 					}
 
+					/*
+					 * Files saved before MaMuT had its own intensity analyzer
+					 * list the TrackMate ones it supersedes. It publishes the
+					 * same features, so we use it instead, once.
+					 */
+					if ( SourceSettings.isSupersededSpotAnalyzer( key ) )
+						key = SpotIntensityStatisticsAnalyzerFactory.KEY;
+					if ( SpotIntensityStatisticsAnalyzerFactory.KEY.equals( key ) && hasSpotAnalyzer( settings, key ) )
+						continue;
+
 					SpotAnalyzerFactoryBase< ? > spotAnalyzer = spotAnalyzerProvider.getFactory( key );
 					if ( null == spotAnalyzer )
 					{
@@ -338,6 +381,14 @@ public class MamutXmlReader extends TmXmlReader
 		return settings;
 	}
 
+	private static boolean hasSpotAnalyzer( final Settings settings, final String key )
+	{
+		for ( final SpotAnalyzerFactoryBase< ? > factory : settings.getSpotAnalyzerFactories() )
+			if ( key.equals( factory.getKey() ) )
+				return true;
+		return false;
+	}
+
 	/**
 	 * Returns the collection of views that were saved in this file. The views
 	 * returned <b>will be rendered</b>.
@@ -0,0 +1,657 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.io;
+
+import static fiji.plugin.trackmate.io.TmXmlKeys.EDGE_FEATURES_ELEMENT;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_DECLARATIONS_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_DIMENSION_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_ELEMENT;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_ISINT_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_NAME_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_SHORT_NAME_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FILTERED_TRACK_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FRAME_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.MODEL_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPATIAL_UNITS_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_COLLECTION_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_FEATURES_ELEMENT;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_FRAME_COLLECTION_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_ID_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_NAME_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TIME_UNITS_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_COLLECTION_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_EDGE_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_FEATURES_ELEMENT;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_ID_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_ID_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_NAME_ATTRIBUTE_NAME;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.jgrapht.graph.SimpleWeightedGraph;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.features.edges.EdgeTargetAnalyzer;
+
+/**
+ * A {@link MamutXmlReader} that streams the model from the file instead of
+ * building it as a JDOM tree first.
+ * <p>
+ * The file is read once with StAX when this reader is created. The
+ * <code>AllSpots</code> element is parsed frame by frame, and each frame is
+ * converted to spots on a worker thread while the next one is being parsed.
+ * The track graph is built in a final pass over the <code>AllTracks</code>
+ * element, once all the spots are known. Peak memory therefore scales with
+ * the model rather than with the DOM of the file.
+ * <p>
+ * The other sections of the file (log, settings, GUI state, display
+ * settings) are small. They are copied to a temporary file and read by the
+ * parent class as before.
+ * <p>
+ * Unlike {@link MamutXmlReader}, {@link #getModel()} returns the same
+ * {@link Model} instance every time it is called.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class MamutXmlStreamReader extends MamutXmlReader
+{
+
+	/**
+	 * Maximal number of parsed frames waiting for conversion, per conversion
+	 * thread.
+	 */
+	private static final int PENDING_FRAMES_PER_THREAD = 2;
+
+	private final File mamutFile;
+
+	private final Model model;
+
+	public MamutXmlStreamReader( final File file )
+	{
+		this( file, Runtime.getRuntime().availableProcessors() );
+	}
+
+	public MamutXmlStreamReader( final File file, final int numThreads )
+	{
+		this( file, new StreamedFile( file, numThreads ) );
+	}
+
+	private MamutXmlStreamReader( final File file, final StreamedFile streamed )
+	{
+		super( streamed.header );
+		this.mamutFile = file;
+		// Without the header, the file is not usable.
+		this.model = ( null == root ) ? null : streamed.model;
+		streamed.header.delete();
+		for ( final String error : streamed.errors )
+		{
+			logger.error( error );
+			ok = false;
+		}
+	}
+
+	@Override
+	protected File getMamutFile()
+	{
+		return mamutFile;
+	}
+
+	@Override
+	public Model getModel()
+	{
+		return model;
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * Reads a MaMuT file in a single StAX pass. Builds the {@link Model}, and
+	 * copies all the other top-level elements to a temporary header file.
+	 */
+	private static final class StreamedFile
+	{
+
+		private final int numThreads;
+
+		private final List< String > errors = new ArrayList<>();
+
+		/**
+		 * Canonical instances of feature keys, so that all spots share them.
+		 */
+		private final Map< String, String > keys = new HashMap<>();
+
+		private File header;
+
+		private Model model;
+
+		private StreamedFile( final File file, final int numThreads )
+		{
+			this.numThreads = Math.max( 1, numThreads );
+			try
+			{
+				header = File.createTempFile( "mamut-header", ".xml" );
+				header.deleteOnExit();
+			}
+			catch ( final IOException e )
+			{
+				throw new RuntimeException( "Could not create a temporary file.", e );
+			}
+
+			try (InputStream is = new BufferedInputStream( new FileInputStream( file ), 1 << 16 );
+					OutputStream os = new BufferedOutputStream( new FileOutputStream( header ) ))
+			{
+				final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+				inputFactory.setProperty( XMLInputFactory.SUPPORT_DTD, Boolean.FALSE );
+				final XMLStreamReader in = inputFactory.createXMLStreamReader( is );
+				final XMLStreamWriter out = XMLOutputFactory.newInstance().createXMLStreamWriter( os, "UTF-8" );
+				read( in, out );
+				in.close();
+				out.flush();
+				out.close();
+			}
+			catch ( final IOException | XMLStreamException e )
+			{
+				// The file is unreadable or malformed: do not return a partial model.
+				model = null;
+				errors.add( "Problem reading the MaMuT file " + file + ":\n" + e.getMessage() + '\n' );
+			}
+		}
+
+		private void read( final XMLStreamReader in, final XMLStreamWriter out ) throws XMLStreamException
+		{
+			// Root element.
+			in.nextTag();
+			out.writeStartDocument( "UTF-8", "1.0" );
+			out.writeStartElement( in.getLocalName() );
+			for ( int i = 0; i < in.getAttributeCount(); i++ )
+				out.writeAttribute( in.getAttributeLocalName( i ), in.getAttributeValue( i ) );
+
+			while ( in.nextTag() == XMLStreamConstants.START_ELEMENT )
+			{
+				if ( MODEL_ELEMENT_KEY.equals( in.getLocalName() ) )
+					model = readModel( in );
+				else
+					copy( in, out );
+			}
+
+			out.writeEndElement();
+			out.writeEndDocument();
+		}
+
+		private Model readModel( final XMLStreamReader in ) throws XMLStreamException
+		{
+			final Model lModel = new Model();
+			lModel.setPhysicalUnits(
+					in.getAttributeValue( null, SPATIAL_UNITS_ATTRIBUTE_NAME ),
+					in.getAttributeValue( null, TIME_UNITS_ATTRIBUTE_NAME ) );
+
+			Map< Integer, Spot > spotIDs = new HashMap<>();
+			final SimpleWeightedGraph< Spot, DefaultWeightedEdge > graph = new SimpleWeightedGraph<>( DefaultWeightedEdge.class );
+			final Map< Integer, Set< Spot > > trackSpots = new HashMap<>();
+			final Map< Integer, Set< DefaultWeightedEdge > > trackEdges = new HashMap<>();
+			final Map< Integer, String > trackNames = new HashMap<>();
+			final Map< Integer, Map< String, Double > > trackFeatures = new HashMap<>();
+			final Map< Integer, Boolean > trackVisibility = new HashMap<>();
+
+			while ( in.nextTag() == XMLStreamConstants.START_ELEMENT )
+			{
+				final String name = in.getLocalName();
+				if ( FEATURE_DECLARATIONS_ELEMENT_KEY.equals( name ) )
+				{
+					readFeatureDeclarations( in, lModel.getFeatureModel() );
+				}
+				else if ( SPOT_COLLECTION_ELEMENT_KEY.equals( name ) )
+				{
+					final SpotCollection spots = readSpots( in );
+					spotIDs = new HashMap<>( 2 * spots.getNSpots( false ) );
+					for ( final Spot spot : spots.iterable( false ) )
+					{
+						spotIDs.put( Integer.valueOf( spot.ID() ), spot );
+						graph.addVertex( spot );
+					}
+					lModel.setSpots( spots, false );
+				}
+				else if ( TRACK_COLLECTION_ELEMENT_KEY.equals( name ) )
+				{
+					readTracks( in, lModel.getFeatureModel(), spotIDs, graph, trackSpots, trackEdges, trackNames, trackFeatures );
+				}
+				else if ( FILTERED_TRACK_ELEMENT_KEY.equals( name ) )
+				{
+					while ( in.nextTag() == XMLStreamConstants.START_ELEMENT )
+					{
+						if ( TRACK_ID_ELEMENT_KEY.equals( in.getLocalName() ) )
+						{
+							final Integer trackID = parseInt( in.getAttributeValue( null, TRACK_ID_ATTRIBUTE_NAME ), TRACK_ID_ELEMENT_KEY );
+							if ( null != trackID )
+								trackVisibility.put( trackID, Boolean.TRUE );
+						}
+						skip( in );
+					}
+				}
+				else
+				{
+					skip( in );
+				}
+			}
+
+			for ( final Integer trackID : trackSpots.keySet() )
+				trackVisibility.putIfAbsent( trackID, Boolean.FALSE );
+			lModel.getTrackModel().from( graph, trackSpots, trackEdges, trackVisibility, trackNames );
+
+			final FeatureModel fm = lModel.getFeatureModel();
+			for ( final Map.Entry< Integer, Map< String, Double > > entry : trackFeatures.entrySet() )
+				for ( final Map.Entry< String, Double > feature : entry.getValue().entrySet() )
+					fm.putTrackFeature( entry.getKey(), feature.getKey(), feature.getValue() );
+
+			return lModel;
+		}
+
+		private void readFeatureDeclarations( final XMLStreamReader in, final FeatureModel fm ) throws XMLStreamException
+		{
+			while ( in.nextTag() == XMLStreamConstants.START_ELEMENT )
+			{
+				final String target = in.getLocalName();
+				final List< String > features = new ArrayList<>();
+				final Map< String, String > names = new HashMap<>();
+				final Map< String, String > shortNames = new HashMap<>();
+				final Map< String, Dimension > dimensions = new HashMap<>();
+				final Map< String, Boolean > isInts = new HashMap<>();
+				while ( in.nextTag() == XMLStreamConstants.START_ELEMENT )
+				{
+					if ( FEATURE_ELEMENT.equals( in.getLocalName() ) )
+					{
+						final String feature = key( in.getAttributeValue( null, FEATURE_ATTRIBUTE ) );
+						final String dimension = in.getAttributeValue( null, FEATURE_DIMENSION_ATTRIBUTE );
+						try
+						{
+							dimensions.put( feature, Dimension.valueOf( dimension ) );
+							features.add( feature );
+							names.put( feature, in.getAttributeValue( null, FEATURE_NAME_ATTRIBUTE ) );
+							shortNames.put( feature, in.getAttributeValue( null, FEATURE_SHORT_NAME_ATTRIBUTE ) );
+							isInts.put( feature, Boolean.valueOf( in.getAttributeValue( null, FEATURE_ISINT_ATTRIBUTE ) ) );
+						}
+						catch ( final IllegalArgumentException | NullPointerException e )
+						{
+							errors.add( "Unknown dimension " + dimension + " for feature " + feature + ".\n" );
+						}
+					}
+					skip( in );
+				}
+
+				if ( SPOT_FEATURES_ELEMENT.equals( target ) )
+					fm.declareSpotFeatures( features, names, shortNames, dimensions, isInts );
+				else if ( EDGE_FEATURES_ELEMENT.equals( target ) )
+					fm.declareEdgeFeatures( features, names, shortNames, dimensions, isInts );
+				else if ( TRACK_FEATURES_ELEMENT.equals( target ) )
+					fm.declareTrackFeatures( features, names, shortNames, dimensions, isInts );
+			}
+		}
+
+		/**
+		 * Parses the spot collection frame by frame. The attributes of each
+		 * frame are handed over to a worker thread for conversion, while the
+		 * next frame is being parsed.
+		 */
+		private SpotCollection readSpots( final XMLStreamReader in ) throws XMLStreamException
+		{
+			final ExecutorService executor = Executors.newFixedThreadPool( numThreads );
+			final Semaphore pending = new Semaphore( PENDING_FRAMES_PER_THREAD * numThreads );
+			final AtomicInteger badValues = new AtomicInteger();
+			final List< Future< List< Spot > > > futures = new ArrayList<>();
+			final List< Integer > frames = new ArrayList<>();
+			try
+			{
+				while ( in.nextTag() == XMLStreamConstants.START_ELEMENT )
+				{
+					if ( !SPOT_FRAME_COLLECTION_ELEMENT_KEY.equals( in.getLocalName() ) )
+					{
+						skip( in );
+						continue;
+					}
+					final Integer frame = parseInt( in.getAttributeValue( null, FRAME_ATTRIBUTE_NAME ), SPOT_FRAME_COLLECTION_ELEMENT_KEY );
+					final RawFrame raw = readFrame( in );
+					if ( null == frame )
+						continue;
+
+					pending.acquireUninterruptibly();
+					frames.add( frame );
+					futures.add( executor.submit( () -> {
+						try
+						{
+							return raw.toSpots( badValues );
+						}
+						finally
+						{
+							pending.release();
+						}
+					} ) );
+				}
+
+				final SpotCollection spots = new SpotCollection();
+				for ( int i = 0; i < futures.size(); i++ )
+				{
+					final Integer frame = frames.get( i );
+					for ( final Spot spot : futures.get( i ).get() )
+						spots.add( spot, frame );
+				}
+				if ( badValues.get() > 0 )
+					errors.add( "Could not parse " + badValues.get() + " spot feature values.\n" );
+				return spots;
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new XMLStreamException( "Interrupted while reading spots.", e );
+			}
+			catch ( final ExecutionException e )
+			{
+				throw new XMLStreamException( "Could not convert spots.", e.getCause() );
+			}
+			finally
+			{
+				executor.shutdownNow();
+			}
+		}
+
+		private RawFrame readFrame( final XMLStreamReader in ) throws XMLStreamException
+		{
+			final RawFrame raw = new RawFrame();
+			while ( in.nextTag() == XMLStreamConstants.START_ELEMENT )
+			{
+				if ( SPOT_ELEMENT_KEY.equals( in.getLocalName() ) )
+				{
+					Integer id = null;
+					String name = null;
+					final int n = in.getAttributeCount();
+					final String[] features = new String[ 2 * n ];
+					int k = 0;
+					for ( int i = 0; i < n; i++ )
+					{
+						final String att = in.getAttributeLocalName( i );
+						if ( SPOT_ID_ATTRIBUTE_NAME.equals( att ) )
+						{
+							id = parseInt( in.getAttributeValue( i ), SPOT_ELEMENT_KEY );
+						}
+						else if ( SPOT_NAME_ATTRIBUTE_NAME.equals( att ) )
+						{
+							name = in.getAttributeValue( i );
+						}
+						else
+						{
+							features[ k++ ] = key( att );
+							features[ k++ ] = in.getAttributeValue( i );
+						}
+					}
+					if ( null != id )
+						raw.add( id.intValue(), name, k == features.length ? features : Arrays.copyOf( features, k ) );
+				}
+				skip( in );
+			}
+			return raw;
+		}
+
+		/**
+		 * Final pass: builds the track graph from the edges, with all the
+		 * spots already known.
+		 */
+		private void readTracks(
+				final XMLStreamReader in,
+				final FeatureModel fm,
+				final Map< Integer, Spot > spotIDs,
+				final SimpleWeightedGraph< Spot, DefaultWeightedEdge > graph,
+				final Map< Integer, Set< Spot > > trackSpots,
+				final Map< Integer, Set< DefaultWeightedEdge > > trackEdges,
+				final Map< Integer, String > trackNames,
+				final Map< Integer, Map< String, Double > > trackFeatures ) throws XMLStreamException
+		{
+			int missingSpots = 0;
+			while ( in.nextTag() == XMLStreamConstants.START_ELEMENT )
+			{
+				if ( !TRACK_ELEMENT_KEY.equals( in.getLocalName() ) )
+				{
+					skip( in );
+					continue;
+				}
+
+				final Integer trackID = parseInt( in.getAttributeValue( null, TRACK_ID_ATTRIBUTE_NAME ), TRACK_ELEMENT_KEY );
+				if ( null == trackID )
+				{
+					skip( in );
+					continue;
+				}
+				final Map< String, Double > features = new HashMap<>();
+				for ( int i = 0; i < in.getAttributeCount(); i++ )
+				{
+					final String att = in.getAttributeLocalName( i );
+					if ( TRACK_NAME_ATTRIBUTE_NAME.equals( att ) )
+						trackNames.put( trackID, in.getAttributeValue( i ) );
+					else
+						putDouble( features, key( att ), in.getAttributeValue( i ) );
+				}
+				trackFeatures.put( trackID, features );
+
+				final Set< Spot > spots = new HashSet<>();
+				final Set< DefaultWeightedEdge > edges = new HashSet<>();
+				while ( in.nextTag() == XMLStreamConstants.START_ELEMENT )
+				{
+					if ( TRACK_EDGE_ELEMENT_KEY.equals( in.getLocalName() ) )
+					{
+						final Map< String, Double > edgeFeatures = new HashMap<>();
+						for ( int i = 0; i < in.getAttributeCount(); i++ )
+							putDouble( edgeFeatures, key( in.getAttributeLocalName( i ) ), in.getAttributeValue( i ) );
+
+						final Double sourceID = edgeFeatures.get( EdgeTargetAnalyzer.SPOT_SOURCE_ID );
+						final Double targetID = edgeFeatures.get( EdgeTargetAnalyzer.SPOT_TARGET_ID );
+						final Spot source = null == sourceID ? null : spotIDs.get( Integer.valueOf( sourceID.intValue() ) );
+						final Spot target = null == targetID ? null : spotIDs.get( Integer.valueOf( targetID.intValue() ) );
+						final DefaultWeightedEdge edge = ( null == source || null == target ) ? null : graph.addEdge( source, target );
+						if ( null == edge )
+						{
+							missingSpots++;
+						}
+						else
+						{
+							final Double cost = edgeFeatures.get( EdgeTargetAnalyzer.EDGE_COST );
+							if ( null != cost )
+								graph.setEdgeWeight( edge, cost.doubleValue() );
+							for ( final Map.Entry< String, Double > feature : edgeFeatures.entrySet() )
+								fm.putEdgeFeature( edge, feature.getKey(), feature.getValue() );
+							spots.add( source );
+							spots.add( target );
+							edges.add( edge );
+						}
+					}
+					skip( in );
+				}
+				trackSpots.put( trackID, spots );
+				trackEdges.put( trackID, edges );
+			}
+			if ( missingSpots > 0 )
+				errors.add( "Could not create " + missingSpots + " edges: missing or duplicate source and target spots.\n" );
+		}
+
+		private String key( final String key )
+		{
+			final String canonical = keys.putIfAbsent( key, key );
+			return null == canonical ? key : canonical;
+		}
+
+		private Integer parseInt( final String str, final String element )
+		{
+			try
+			{
+				return Integer.valueOf( str );
+			}
+			catch ( final NumberFormatException e )
+			{
+				errors.add( "Could not read integer value " + str + " in element " + element + ".\n" );
+				return null;
+			}
+		}
+
+		private void putDouble( final Map< String, Double > map, final String key, final String str )
+		{
+			try
+			{
+				map.put( key, Double.valueOf( str ) );
+			}
+			catch ( final NumberFormatException e )
+			{
+				errors.add( "Could not read value " + str + " for feature " + key + ".\n" );
+			}
+		}
+
+		/**
+		 * Copies the current element and its content to the specified writer.
+		 */
+		private static void copy( final XMLStreamReader in, final XMLStreamWriter out ) throws XMLStreamException
+		{
+			int depth = 0;
+			do
+			{
+				switch ( in.getEventType() )
+				{
+				case XMLStreamConstants.START_ELEMENT:
+					out.writeStartElement( in.getLocalName() );
+					for ( int i = 0; i < in.getAttributeCount(); i++ )
+						out.writeAttribute( in.getAttributeLocalName( i ), in.getAttributeValue( i ) );
+					depth++;
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					out.writeEndElement();
+					depth--;
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					out.writeCharacters( in.getText() );
+					break;
+				default:
+					break;
+				}
+				if ( depth > 0 )
+					in.next();
+			}
+			while ( depth > 0 );
+		}
+
+		/**
+		 * Advances the reader to the end of the current element.
+		 */
+		private static void skip( final XMLStreamReader in ) throws XMLStreamException
+		{
+			int depth = 1;
+			while ( depth > 0 )
+			{
+				final int event = in.next();
+				if ( event == XMLStreamConstants.START_ELEMENT )
+					depth++;
+				else if ( event == XMLStreamConstants.END_ELEMENT )
+					depth--;
+			}
+		}
+	}
+
+	/**
+	 * The attributes of the spots of one frame, as parsed. Converted to spots
+	 * off the parsing thread.
+	 */
+	private static final class RawFrame
+	{
+
+		private final List< Integer > ids = new ArrayList<>();
+
+		private final List< String > names = new ArrayList<>();
+
+		private final List< String[] > features = new ArrayList<>();
+
+		private void add( final int id, final String name, final String[] keyValues )
+		{
+			ids.add( Integer.valueOf( id ) );
+			names.add( name );
+			features.add( keyValues );
+		}
+
+		private List< Spot > toSpots( final AtomicInteger badValues )
+		{
+			final List< Spot > spots = new ArrayList<>( ids.size() );
+			for ( int i = 0; i < ids.size(); i++ )
+			{
+				final Spot spot = new Spot( ids.get( i ).intValue() );
+				final String name = names.get( i );
+				if ( null != name )
+					spot.setName( name );
+				final String[] keyValues = features.get( i );
+				for ( int k = 0; k < keyValues.length; k += 2 )
+				{
+					try
+					{
+						spot.putFeature( keyValues[ k ], Double.valueOf( keyValues[ k + 1 ] ) );
+					}
+					catch ( final NumberFormatException e )
+					{
+						badValues.incrementAndGet();
+					}
+				}
+				spots.add( spot );
+			}
+			return spots;
+		}
+	}
+}
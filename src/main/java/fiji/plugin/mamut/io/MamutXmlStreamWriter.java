@@ -0,0 +1,350 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.io;
+
+import static fiji.plugin.trackmate.io.TmXmlKeys.EDGE_FEATURES_ELEMENT;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_DECLARATIONS_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_DIMENSION_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_ELEMENT;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_ISINT_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_NAME_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_SHORT_NAME_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FILTERED_TRACK_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FRAME_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.LOG_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.MODEL_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPATIAL_UNITS_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_COLLECTION_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_COLLECTION_NSPOTS_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_FEATURES_ELEMENT;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_FRAME_COLLECTION_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_ID_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_NAME_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TIME_UNITS_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_COLLECTION_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_EDGE_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_FEATURES_ELEMENT;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_ID_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_ID_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_NAME_ATTRIBUTE_NAME;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.jdom2.Attribute;
+import org.jdom2.Element;
+import org.jdom2.output.Format;
+import org.jdom2.output.StAXStreamOutputter;
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.TrackModel;
+import fiji.plugin.trackmate.features.edges.EdgeTargetAnalyzer;
+
+/**
+ * A {@link MamutXmlWriter} that streams the model to the file instead of
+ * building it as a JDOM tree first.
+ * <p>
+ * The model is written straight from the {@link Model} to a buffered output
+ * stream with StAX, frame by frame and track by track, when
+ * {@link #writeToFile()} is called. The memory overhead of saving therefore
+ * does not depend on the model size. The settings, GUI state and display
+ * settings are small, and are still built as JDOM elements by the parent
+ * class, then streamed after the model. The output follows the same schema
+ * as {@link MamutXmlWriter}, and is read by {@link MamutXmlReader}.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class MamutXmlStreamWriter extends MamutXmlWriter
+{
+
+	private final File file;
+
+	private Model model;
+
+	private boolean modelInDocument = false;
+
+	public MamutXmlStreamWriter( final File file, final Logger logger )
+	{
+		super( file, logger );
+		this.file = file;
+	}
+
+	/**
+	 * Registers the model to write. It is only read when
+	 * {@link #writeToFile()} is called.
+	 */
+	@Override
+	public void appendModel( final Model model )
+	{
+		this.model = model;
+	}
+
+	@Override
+	public void writeToFile() throws FileNotFoundException, IOException
+	{
+		logger.log( "  Writing to file.\n" );
+		try (OutputStream os = new BufferedOutputStream( new FileOutputStream( file ), 1 << 16 ))
+		{
+			final XMLStreamWriter out = XMLOutputFactory.newInstance().createXMLStreamWriter( os, "UTF-8" );
+			out.writeStartDocument( "UTF-8", "1.0" );
+			newLine( out, 0 );
+			out.writeStartElement( root.getName() );
+			for ( final Attribute attribute : root.getAttributes() )
+				out.writeAttribute( attribute.getName(), attribute.getValue() );
+
+			// Same order as the JDOM writer: log, model, then the rest.
+			final StAXStreamOutputter outputter = new StAXStreamOutputter( Format.getPrettyFormat() );
+			final Element log = root.getChild( LOG_ELEMENT_KEY );
+			if ( null != log )
+			{
+				newLine( out, 1 );
+				outputter.output( log, out );
+			}
+			if ( null != model )
+				writeModel( out );
+			for ( final Element child : root.getChildren() )
+			{
+				if ( child == log || MODEL_ELEMENT_KEY.equals( child.getName() ) )
+					continue;
+				newLine( out, 1 );
+				outputter.output( child, out );
+			}
+
+			newLine( out, 0 );
+			out.writeEndElement();
+			out.writeEndDocument();
+			out.flush();
+			out.close();
+		}
+		catch ( final XMLStreamException e )
+		{
+			throw new IOException( e );
+		}
+	}
+
+	/**
+	 * Returns the document as a string. The model is only built as a JDOM
+	 * element when this is called, so that the save-file dump shown after a
+	 * failed save still contains the annotations.
+	 */
+	@Override
+	public String toString()
+	{
+		if ( null != model && !modelInDocument )
+		{
+			modelInDocument = true;
+			super.appendModel( model );
+		}
+		return super.toString();
+	}
+
+	private void writeModel( final XMLStreamWriter out ) throws XMLStreamException
+	{
+		newLine( out, 1 );
+		out.writeStartElement( MODEL_ELEMENT_KEY );
+		out.writeAttribute( SPATIAL_UNITS_ATTRIBUTE_NAME, model.getSpaceUnits() );
+		out.writeAttribute( TIME_UNITS_ATTRIBUTE_NAME, model.getTimeUnits() );
+		writeFeatureDeclarations( out );
+		writeSpots( out );
+		writeTracks( out );
+		writeFilteredTracks( out );
+		newLine( out, 1 );
+		out.writeEndElement();
+	}
+
+	private void writeFeatureDeclarations( final XMLStreamWriter out ) throws XMLStreamException
+	{
+		final FeatureModel fm = model.getFeatureModel();
+		newLine( out, 2 );
+		out.writeStartElement( FEATURE_DECLARATIONS_ELEMENT_KEY );
+		writeFeatures( out, SPOT_FEATURES_ELEMENT, fm.getSpotFeatures(), fm.getSpotFeatureNames(),
+				fm.getSpotFeatureShortNames(), fm.getSpotFeatureDimensions(), fm.getSpotFeatureIsInt() );
+		writeFeatures( out, EDGE_FEATURES_ELEMENT, fm.getEdgeFeatures(), fm.getEdgeFeatureNames(),
+				fm.getEdgeFeatureShortNames(), fm.getEdgeFeatureDimensions(), fm.getEdgeFeatureIsInt() );
+		writeFeatures( out, TRACK_FEATURES_ELEMENT, fm.getTrackFeatures(), fm.getTrackFeatureNames(),
+				fm.getTrackFeatureShortNames(), fm.getTrackFeatureDimensions(), fm.getTrackFeatureIsInt() );
+		newLine( out, 2 );
+		out.writeEndElement();
+	}
+
+	private static void writeFeatures( final XMLStreamWriter out, final String elementName, final Collection< String > features,
+			final Map< String, String > names, final Map< String, String > shortNames, final Map< String, Dimension > dimensions,
+			final Map< String, Boolean > isInts ) throws XMLStreamException
+	{
+		newLine( out, 3 );
+		out.writeStartElement( elementName );
+		for ( final String feature : features )
+		{
+			newLine( out, 4 );
+			out.writeEmptyElement( FEATURE_ELEMENT );
+			out.writeAttribute( FEATURE_ATTRIBUTE, feature );
+			out.writeAttribute( FEATURE_NAME_ATTRIBUTE, names.get( feature ) );
+			out.writeAttribute( FEATURE_SHORT_NAME_ATTRIBUTE, shortNames.get( feature ) );
+			out.writeAttribute( FEATURE_DIMENSION_ATTRIBUTE, dimensions.get( feature ).name() );
+			out.writeAttribute( FEATURE_ISINT_ATTRIBUTE, Boolean.toString( isInt( isInts, feature ) ) );
+		}
+		newLine( out, 3 );
+		out.writeEndElement();
+	}
+
+	private void writeSpots( final XMLStreamWriter out ) throws XMLStreamException
+	{
+		final SpotCollection spots = model.getSpots();
+		final Map< String, Boolean > isInts = model.getFeatureModel().getSpotFeatureIsInt();
+		newLine( out, 2 );
+		out.writeStartElement( SPOT_COLLECTION_ELEMENT_KEY );
+		out.writeAttribute( SPOT_COLLECTION_NSPOTS_ATTRIBUTE_NAME, Integer.toString( spots.getNSpots( false ) ) );
+		for ( final Integer frame : spots.keySet() )
+		{
+			newLine( out, 3 );
+			out.writeStartElement( SPOT_FRAME_COLLECTION_ELEMENT_KEY );
+			out.writeAttribute( FRAME_ATTRIBUTE_NAME, frame.toString() );
+			for ( final Spot spot : spots.iterable( frame, false ) )
+			{
+				newLine( out, 4 );
+				out.writeEmptyElement( SPOT_ELEMENT_KEY );
+				out.writeAttribute( SPOT_ID_ATTRIBUTE_NAME, Integer.toString( spot.ID() ) );
+				out.writeAttribute( SPOT_NAME_ATTRIBUTE_NAME, spot.getName() );
+				for ( final Map.Entry< String, Double > entry : spot.getFeatures().entrySet() )
+				{
+					if ( null == entry.getValue() )
+						continue;
+					out.writeAttribute( entry.getKey(), format( entry.getValue(), isInt( isInts, entry.getKey() ) ) );
+				}
+			}
+			newLine( out, 3 );
+			out.writeEndElement();
+		}
+		newLine( out, 2 );
+		out.writeEndElement();
+		logger.log( "  Added " + spots.getNSpots( false ) + " spots.\n" );
+	}
+
+	private void writeTracks( final XMLStreamWriter out ) throws XMLStreamException
+	{
+		final TrackModel trackModel = model.getTrackModel();
+		final FeatureModel fm = model.getFeatureModel();
+		final List< String > trackFeatures = fm.getTrackFeatures();
+		final List< String > edgeFeatures = fm.getEdgeFeatures();
+		final Map< String, Boolean > trackIsInts = fm.getTrackFeatureIsInt();
+		final Map< String, Boolean > edgeIsInts = fm.getEdgeFeatureIsInt();
+
+		newLine( out, 2 );
+		out.writeStartElement( TRACK_COLLECTION_ELEMENT_KEY );
+		for ( final Integer trackID : trackModel.trackIDs( false ) )
+		{
+			newLine( out, 3 );
+			out.writeStartElement( TRACK_ELEMENT_KEY );
+			out.writeAttribute( TRACK_NAME_ATTRIBUTE_NAME, trackModel.name( trackID ) );
+			out.writeAttribute( TRACK_ID_ATTRIBUTE_NAME, trackID.toString() );
+			for ( final String feature : trackFeatures )
+			{
+				if ( TRACK_ID_ATTRIBUTE_NAME.equals( feature ) )
+					continue;
+				final Double val = fm.getTrackFeature( trackID, feature );
+				if ( null != val )
+					out.writeAttribute( feature, format( val, isInt( trackIsInts, feature ) ) );
+			}
+
+			final Set< DefaultWeightedEdge > edges = trackModel.trackEdges( trackID );
+			for ( final DefaultWeightedEdge edge : edges )
+			{
+				newLine( out, 4 );
+				out.writeEmptyElement( TRACK_EDGE_ELEMENT_KEY );
+				out.writeAttribute( EdgeTargetAnalyzer.SPOT_SOURCE_ID, Integer.toString( trackModel.getEdgeSource( edge ).ID() ) );
+				out.writeAttribute( EdgeTargetAnalyzer.SPOT_TARGET_ID, Integer.toString( trackModel.getEdgeTarget( edge ).ID() ) );
+				// The weight is read back from the cost, whether or not the cost feature was computed.
+				out.writeAttribute( EdgeTargetAnalyzer.EDGE_COST, Double.toString( trackModel.getEdgeWeight( edge ) ) );
+				for ( final String feature : edgeFeatures )
+				{
+					if ( EdgeTargetAnalyzer.SPOT_SOURCE_ID.equals( feature )
+							|| EdgeTargetAnalyzer.SPOT_TARGET_ID.equals( feature )
+							|| EdgeTargetAnalyzer.EDGE_COST.equals( feature ) )
+						continue;
+					final Double val = fm.getEdgeFeature( edge, feature );
+					if ( null != val )
+						out.writeAttribute( feature, format( val, isInt( edgeIsInts, feature ) ) );
+				}
+			}
+			newLine( out, 3 );
+			out.writeEndElement();
+		}
+		newLine( out, 2 );
+		out.writeEndElement();
+		logger.log( "  Added tracks.\n" );
+	}
+
+	private void writeFilteredTracks( final XMLStreamWriter out ) throws XMLStreamException
+	{
+		newLine( out, 2 );
+		out.writeStartElement( FILTERED_TRACK_ELEMENT_KEY );
+		for ( final Integer trackID : model.getTrackModel().trackIDs( true ) )
+		{
+			newLine( out, 3 );
+			out.writeEmptyElement( TRACK_ID_ELEMENT_KEY );
+			out.writeAttribute( TRACK_ID_ATTRIBUTE_NAME, trackID.toString() );
+		}
+		newLine( out, 2 );
+		out.writeEndElement();
+	}
+
+	private static boolean isInt( final Map< String, Boolean > isInts, final String feature )
+	{
+		final Boolean isInt = isInts.get( feature );
+		return null != isInt && isInt.booleanValue();
+	}
+
+	private static String format( final Double val, final boolean isInt )
+	{
+		return isInt ? Integer.toString( val.intValue() ) : Double.toString( val.doubleValue() );
+	}
+
+	private static void newLine( final XMLStreamWriter out, final int depth ) throws XMLStreamException
+	{
+		final StringBuilder str = new StringBuilder( depth + 1 );
+		str.append( '\n' );
+		for ( int i = 0; i < depth; i++ )
+			str.append( "  " );
+		out.writeCharacters( str.toString() );
+	}
+}
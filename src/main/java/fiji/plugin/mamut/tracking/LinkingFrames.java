@@ -0,0 +1,93 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.tracking;
+
+import java.util.Collection;
+import java.util.Map;
+
+import fiji.plugin.trackmate.Spot;
+
+/**
+ * The spots a {@link SlidingWindowLinker} links, delivered one frame at a
+ * time, and the place where the links it creates are stored.
+ * <p>
+ * The linker only keeps references to the spots of its window. An
+ * implementation that loads or generates the spots of each frame when asked,
+ * and stores the links without keeping the spots, links arbitrarily long
+ * sequences in a memory bounded by the window size.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public interface LinkingFrames
+{
+
+	/**
+	 * Returns the first frame to link.
+	 */
+	public int getFirstFrame();
+
+	/**
+	 * Returns the last frame to link, inclusive.
+	 */
+	public int getLastFrame();
+
+	/**
+	 * Returns the spots of the specified frame. Called once for each frame,
+	 * in increasing order.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @return the spots of this frame. Can be empty.
+	 */
+	public Collection< Spot > getSpots( int frame );
+
+	/**
+	 * Returns <code>true</code> if the specified spot can be linked to a spot
+	 * of an earlier frame.
+	 */
+	public default boolean acceptsPredecessor( final Spot spot )
+	{
+		return true;
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified spot can be linked to a spot
+	 * of a later frame.
+	 */
+	public default boolean acceptsSuccessor( final Spot spot )
+	{
+		return true;
+	}
+
+	/**
+	 * Stores the links created when processing the specified frame. The
+	 * targets of the links are all in this frame.
+	 *
+	 * @param frame
+	 *            the frame of the link targets.
+	 * @param links
+	 *            the links, from source to target.
+	 * @param costs
+	 *            the cost of each link, by source.
+	 */
+	public void addLinks( int frame, Map< Spot, Spot > links, Map< Spot, Double > costs );
+}
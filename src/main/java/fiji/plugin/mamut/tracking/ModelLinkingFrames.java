@@ -0,0 +1,130 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.tracking;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.TrackModel;
+
+/**
+ * {@link LinkingFrames} over the spots of a {@link Model}. The links of each
+ * frame are added to the model in one update.
+ * <p>
+ * Spots that already have a successor are not linked further, and spots that
+ * already have a predecessor do not receive a new one, so that a partially
+ * curated model can be completed.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class ModelLinkingFrames implements LinkingFrames
+{
+
+	private final Model model;
+
+	public ModelLinkingFrames( final Model model )
+	{
+		this.model = model;
+	}
+
+	@Override
+	public int getFirstFrame()
+	{
+		final SpotCollection spots = model.getSpots();
+		return spots.keySet().isEmpty() ? 0 : spots.keySet().first().intValue();
+	}
+
+	@Override
+	public int getLastFrame()
+	{
+		final SpotCollection spots = model.getSpots();
+		return spots.keySet().isEmpty() ? -1 : spots.keySet().last().intValue();
+	}
+
+	@Override
+	public Collection< Spot > getSpots( final int frame )
+	{
+		final SpotCollection spots = model.getSpots();
+		if ( spots.getNSpots( frame, false ) == 0 )
+			return Collections.emptyList();
+		final List< Spot > list = new ArrayList<>( spots.getNSpots( frame, false ) );
+		for ( final Spot spot : spots.iterable( frame, false ) )
+			list.add( spot );
+		return list;
+	}
+
+	@Override
+	public boolean acceptsPredecessor( final Spot spot )
+	{
+		return !hasLink( spot, -1 );
+	}
+
+	@Override
+	public boolean acceptsSuccessor( final Spot spot )
+	{
+		return !hasLink( spot, 1 );
+	}
+
+	@Override
+	public void addLinks( final int frame, final Map< Spot, Spot > links, final Map< Spot, Double > costs )
+	{
+		model.beginUpdate();
+		try
+		{
+			for ( final Map.Entry< Spot, Spot > link : links.entrySet() )
+				model.addEdge( link.getKey(), link.getValue(), costs.get( link.getKey() ).doubleValue() );
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified spot is linked to a spot in
+	 * a later frame (direction 1) or in an earlier frame (direction -1).
+	 */
+	private boolean hasLink( final Spot spot, final int direction )
+	{
+		final TrackModel trackModel = model.getTrackModel();
+		if ( !trackModel.vertexSet().contains( spot ) )
+			return false;
+		final int frame = spot.getFeature( Spot.FRAME ).intValue();
+		for ( final DefaultWeightedEdge edge : trackModel.edgesOf( spot ) )
+		{
+			Spot other = trackModel.getEdgeSource( edge );
+			if ( other == spot )
+				other = trackModel.getEdgeTarget( edge );
+			if ( ( other.getFeature( Spot.FRAME ).intValue() - frame ) * direction > 0 )
+				return true;
+		}
+		return false;
+	}
+}
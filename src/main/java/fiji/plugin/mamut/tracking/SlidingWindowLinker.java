@@ -0,0 +1,339 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.tracking;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.scijava.Cancelable;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.tracking.jaqaman.JaqamanLinker;
+import fiji.plugin.trackmate.tracking.jaqaman.costmatrix.DefaultCostMatrixCreator;
+import net.imglib2.algorithm.Algorithm;
+import net.imglib2.algorithm.Benchmark;
+
+/**
+ * Links spots frame by frame, keeping only a sliding window of frames in the
+ * working set.
+ * <p>
+ * The linker asks its {@link LinkingFrames} for the spots of each frame in
+ * order. The track ends of the last {@code maxFrameGap} frames are kept open.
+ * When a frame arrives, its spots are indexed in a uniform grid whose cell
+ * size is the largest linking distance, so that the candidate links of each
+ * open end are found by looking at the neighboring cells only. The candidate
+ * links form a sparse cost matrix, with the squared distance as cost, that
+ * is solved by TrackMate's {@link JaqamanLinker}, as in the LAP trackers. The
+ * links of the frame are then handed to the {@link LinkingFrames}, and the
+ * ends older than the window are dropped.
+ * <p>
+ * The linker only holds the spots of the window, and the cost matrices are
+ * proportional to the number of plausible links, not to the product of the
+ * spot numbers. This linker does not detect splitting nor merging events.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class SlidingWindowLinker implements Algorithm, Benchmark, Cancelable
+{
+
+	private static final String BASE_ERROR_MSG = "[SlidingWindowLinker] ";
+
+	/**
+	 * The default factor applied to the largest cost of a frame to get the
+	 * cost of not linking, as in the LAP trackers.
+	 */
+	public static final double DEFAULT_ALTERNATIVE_LINKING_COST_FACTOR = 1.05;
+
+	private final LinkingFrames frames;
+
+	private final Logger logger;
+
+	private double linkingMaxDistance = 15.;
+
+	private double gapClosingMaxDistance = 15.;
+
+	private int maxFrameGap = 2;
+
+	private double alternativeLinkingCostFactor = DEFAULT_ALTERNATIVE_LINKING_COST_FACTOR;
+
+	private String errorMessage;
+
+	private long processingTime;
+
+	private volatile String cancelReason;
+
+	private int nLinks;
+
+	/**
+	 * Creates a linker for the spots of a model.
+	 */
+	public SlidingWindowLinker( final Model model, final Logger logger )
+	{
+		this( null == model ? null : new ModelLinkingFrames( model ), logger );
+	}
+
+	/**
+	 * Creates a linker for the spots delivered frame by frame by the
+	 * specified {@link LinkingFrames}.
+	 */
+	public SlidingWindowLinker( final LinkingFrames frames, final Logger logger )
+	{
+		this.frames = frames;
+		this.logger = logger;
+	}
+
+	/**
+	 * Sets the linking parameters.
+	 *
+	 * @param linkingMaxDistance
+	 *            the largest distance between two spots in consecutive frames
+	 *            to link them.
+	 * @param gapClosingMaxDistance
+	 *            the largest distance between two spots separated by more than
+	 *            one frame to link them.
+	 * @param maxFrameGap
+	 *            the largest number of frames between two linked spots. This is
+	 *            the size of the sliding window. 1 means no gap closing.
+	 */
+	public void setParameters( final double linkingMaxDistance, final double gapClosingMaxDistance, final int maxFrameGap )
+	{
+		this.linkingMaxDistance = linkingMaxDistance;
+		this.gapClosingMaxDistance = gapClosingMaxDistance;
+		this.maxFrameGap = maxFrameGap;
+	}
+
+	/**
+	 * Sets the factor applied to the largest cost of a frame to get the cost
+	 * of not linking a spot.
+	 */
+	public void setAlternativeLinkingCostFactor( final double alternativeLinkingCostFactor )
+	{
+		this.alternativeLinkingCostFactor = alternativeLinkingCostFactor;
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( null == frames )
+		{
+			errorMessage = BASE_ERROR_MSG + "The spots to link are null.\n";
+			return false;
+		}
+		if ( linkingMaxDistance <= 0 || gapClosingMaxDistance <= 0 )
+		{
+			errorMessage = BASE_ERROR_MSG + "The linking distances must be strictly positive.\n";
+			return false;
+		}
+		if ( maxFrameGap < 1 )
+		{
+			errorMessage = BASE_ERROR_MSG + "The maximal frame gap must be at least 1.\n";
+			return false;
+		}
+		if ( alternativeLinkingCostFactor <= 0 )
+		{
+			errorMessage = BASE_ERROR_MSG + "The alternative linking cost factor must be strictly positive.\n";
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean process()
+	{
+		final long start = System.currentTimeMillis();
+		cancelReason = null;
+		nLinks = 0;
+		final int firstFrame = frames.getFirstFrame();
+		final int lastFrame = frames.getLastFrame();
+		if ( lastFrame < firstFrame )
+		{
+			processingTime = 0;
+			return true;
+		}
+
+		final double cellSize = maxFrameGap > 1
+				? Math.max( linkingMaxDistance, gapClosingMaxDistance )
+				: linkingMaxDistance;
+
+		// The spots of the window that can still get a successor, and their frame.
+		final Map< Spot, Integer > openEnds = new LinkedHashMap<>();
+		logger.setStatus( "Linking" );
+		for ( int frame = firstFrame; frame <= lastFrame; frame++ )
+		{
+			if ( isCanceled() )
+			{
+				logger.log( "Canceled before frame " + frame + ": " + cancelReason + "\n" );
+				break;
+			}
+
+			// Drop the ends leaving the window.
+			for ( final Iterator< Integer > it = openEnds.values().iterator(); it.hasNext(); )
+				if ( frame - it.next().intValue() > maxFrameGap )
+					it.remove();
+
+			final Collection< Spot > spots = frames.getSpots( frame );
+			final List< Spot > targets = new ArrayList<>( spots.size() );
+			final List< Spot > newEnds = new ArrayList<>();
+			for ( final Spot spot : spots )
+			{
+				if ( frames.acceptsPredecessor( spot ) )
+					targets.add( spot );
+				if ( frames.acceptsSuccessor( spot ) )
+					newEnds.add( spot );
+			}
+
+			if ( !openEnds.isEmpty() && !targets.isEmpty() )
+			{
+				final Map< Spot, Spot > links = link( openEnds, targets, frame, cellSize );
+				if ( null == links )
+					return false;
+				openEnds.keySet().removeAll( links.keySet() );
+				nLinks += links.size();
+			}
+
+			final Integer iframe = Integer.valueOf( frame );
+			for ( final Spot spot : newEnds )
+				openEnds.put( spot, iframe );
+			logger.setProgress( ( double ) ( frame - firstFrame + 1 ) / ( lastFrame - firstFrame + 1 ) );
+		}
+		logger.setProgress( 0. );
+		logger.setStatus( "" );
+		processingTime = System.currentTimeMillis() - start;
+		logger.log( String.format( "Created %d links in %.1f s.\n", nLinks, processingTime / 1000. ) );
+		return true;
+	}
+
+	/**
+	 * Builds the sparse costs of linking the open ends to the spots of the
+	 * specified frame, solves them, and hands the links to the
+	 * {@link LinkingFrames}.
+	 *
+	 * @return the links created, or <code>null</code> if the linking failed.
+	 */
+	private Map< Spot, Spot > link( final Map< Spot, Integer > openEnds, final List< Spot > targets, final int frame, final double cellSize )
+	{
+		final SpatialGrid grid = new SpatialGrid( targets, cellSize );
+		final List< Spot > rows = new ArrayList<>();
+		final List< Spot > cols = new ArrayList<>();
+		final CostList costs = new CostList();
+		for ( final Map.Entry< Spot, Integer > entry : openEnds.entrySet() )
+		{
+			final Spot end = entry.getKey();
+			final double maxDistance = ( frame - entry.getValue().intValue() == 1 )
+					? linkingMaxDistance
+					: gapClosingMaxDistance;
+			final double maxD2 = maxDistance * maxDistance;
+			grid.forEachNeighbor( end, j -> {
+				final Spot target = targets.get( j );
+				final double d2 = end.squareDistanceTo( target );
+				if ( d2 <= maxD2 )
+				{
+					rows.add( end );
+					cols.add( target );
+					costs.add( d2 );
+				}
+			} );
+		}
+		if ( rows.isEmpty() )
+			return new LinkedHashMap<>();
+
+		final DefaultCostMatrixCreator< Spot, Spot > creator = new DefaultCostMatrixCreator<>(
+				rows, cols, costs.toArray(), alternativeLinkingCostFactor, 1. );
+		final JaqamanLinker< Spot, Spot > linker = new JaqamanLinker<>( creator );
+		if ( !linker.checkInput() || !linker.process() )
+		{
+			errorMessage = BASE_ERROR_MSG + "Linking frame " + frame + " failed: " + linker.getErrorMessage();
+			return null;
+		}
+		final Map< Spot, Spot > links = linker.getResult();
+		frames.addLinks( frame, links, linker.getAssignmentCosts() );
+		return links;
+	}
+
+	/**
+	 * Returns the number of links created by the last run.
+	 */
+	public int getNLinks()
+	{
+		return nLinks;
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	@Override
+	public long getProcessingTime()
+	{
+		return processingTime;
+	}
+
+	@Override
+	public boolean isCanceled()
+	{
+		return null != cancelReason;
+	}
+
+	@Override
+	public void cancel( final String reason )
+	{
+		this.cancelReason = reason;
+	}
+
+	@Override
+	public String getCancelReason()
+	{
+		return cancelReason;
+	}
+
+	/**
+	 * A growable list of costs, without boxing.
+	 */
+	private static final class CostList
+	{
+
+		private double[] costs = new double[ 64 ];
+
+		private int size = 0;
+
+		private void add( final double cost )
+		{
+			if ( size == costs.length )
+				costs = Arrays.copyOf( costs, 2 * size );
+			costs[ size++ ] = cost;
+		}
+
+		private double[] toArray()
+		{
+			return Arrays.copyOf( costs, size );
+		}
+	}
+}
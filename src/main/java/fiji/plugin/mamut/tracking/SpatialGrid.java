@@ -0,0 +1,129 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.tracking;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+import fiji.plugin.trackmate.Spot;
+
+/**
+ * A uniform grid over the spots of one frame, to find the spots near a
+ * location without scanning the whole frame.
+ *
+ * @author Jean-Yves Tinevez
+ */
+class SpatialGrid
+{
+
+	private final double cellSize;
+
+	/** The indices of the spots in each non-empty cell. */
+	private final Map< CellKey, int[] > cells = new HashMap<>();
+
+	/**
+	 * Indexes the specified spots.
+	 *
+	 * @param spots
+	 *            the spots, referred to by their index in this list.
+	 * @param cellSize
+	 *            the size of the grid cells. Queries find all the spots
+	 *            closer than this size.
+	 */
+	SpatialGrid( final List< Spot > spots, final double cellSize )
+	{
+		this.cellSize = cellSize;
+
+		// Count the spots of each cell, then fill the cells.
+		final CellKey[] keys = new CellKey[ spots.size() ];
+		final Map< CellKey, int[] > counts = new HashMap<>();
+		for ( int i = 0; i < keys.length; i++ )
+		{
+			final Spot spot = spots.get( i );
+			keys[ i ] = new CellKey( cell( spot.getDoublePosition( 0 ) ), cell( spot.getDoublePosition( 1 ) ), cell( spot.getDoublePosition( 2 ) ) );
+			counts.computeIfAbsent( keys[ i ], k -> new int[ 1 ] )[ 0 ]++;
+		}
+		for ( final Map.Entry< CellKey, int[] > entry : counts.entrySet() )
+			cells.put( entry.getKey(), new int[ entry.getValue()[ 0 ] ] );
+		for ( int i = 0; i < keys.length; i++ )
+			cells.get( keys[ i ] )[ --counts.get( keys[ i ] )[ 0 ] ] = i;
+	}
+
+	/**
+	 * Passes the index of each spot in the cell of the specified spot and in
+	 * the 26 cells around it to the specified consumer.
+	 */
+	void forEachNeighbor( final Spot spot, final IntConsumer consumer )
+	{
+		final long cx = cell( spot.getDoublePosition( 0 ) );
+		final long cy = cell( spot.getDoublePosition( 1 ) );
+		final long cz = cell( spot.getDoublePosition( 2 ) );
+		for ( long z = cz - 1; z <= cz + 1; z++ )
+			for ( long y = cy - 1; y <= cy + 1; y++ )
+				for ( long x = cx - 1; x <= cx + 1; x++ )
+				{
+					final int[] indices = cells.get( new CellKey( x, y, z ) );
+					if ( null != indices )
+						for ( final int i : indices )
+							consumer.accept( i );
+				}
+	}
+
+	private long cell( final double position )
+	{
+		return ( long ) Math.floor( position / cellSize );
+	}
+
+	private static final class CellKey
+	{
+
+		private final long x;
+
+		private final long y;
+
+		private final long z;
+
+		private CellKey( final long x, final long y, final long z )
+		{
+			this.x = x;
+			this.y = y;
+			this.z = z;
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( !( obj instanceof CellKey ) )
+				return false;
+			final CellKey o = ( CellKey ) obj;
+			return x == o.x && y == o.y && z == o.z;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Long.hashCode( x ) + 31 * ( Long.hashCode( y ) + 31 * Long.hashCode( z ) );
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.util;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.ModelChangeEvent;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.TrackModel;
+
+/**
+ * Returns the source and target spots of the edges of a model, including
+ * edges that were removed from it.
+ * <p>
+ * A {@link ModelChangeEvent} reporting a removed edge is fired after the edge
+ * left the graph. {@link DefaultWeightedEdge} is an intrusive JGraphT edge: it
+ * stores its source and target itself, and the graph reads them from the edge
+ * without requiring it to still be part of the graph. The ends of a removed
+ * edge can therefore be queried from the {@link TrackModel} as long as the
+ * edge object is at hand, and nothing is indexed per edge.
+ */
+public class EdgeEnds
+{
+
+	private final TrackModel trackModel;
+
+	public EdgeEnds( final Model model )
+	{
+		this.trackModel = model.getTrackModel();
+	}
+
+	/**
+	 * Returns the source spot of the specified edge, even if it was removed
+	 * from the model.
+	 *
+	 * @return the source spot, or <code>null</code> if it cannot be
+	 *         determined.
+	 */
+	public Spot getSource( final DefaultWeightedEdge edge )
+	{
+		try
+		{
+			return trackModel.getEdgeSource( edge );
+		}
+		catch ( final IllegalArgumentException e )
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the target spot of the specified edge, even if it was removed
+	 * from the model.
+	 *
+	 * @return the target spot, or <code>null</code> if it cannot be
+	 *         determined.
+	 */
+	public Spot getTarget( final DefaultWeightedEdge edge )
+	{
+		try
+		{
+			return trackModel.getEdgeTarget( edge );
+		}
+		catch ( final IllegalArgumentException e )
+		{
+			return null;
+		}
+	}
+}
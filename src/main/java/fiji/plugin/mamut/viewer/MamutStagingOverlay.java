@@ -0,0 +1,108 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.viewer;
+
+import java.awt.BasicStroke;
+import java.awt.Graphics2D;
+import java.awt.Stroke;
+
+import bdv.viewer.ViewerState;
+import fiji.plugin.mamut.detection.StagedDetections;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.gui.displaysettings.DisplaySettings;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Paints a light-weight preview of the detections staged by a semi-automated
+ * tracking run, before they are added to the model. Staged spots of the
+ * current frame are drawn as dashed circles, linked to the spot they were
+ * found from.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class MamutStagingOverlay
+{
+
+	private final StagedDetections staging;
+
+	private final DisplaySettings ds;
+
+	private final AffineTransform3D transform = new AffineTransform3D();
+
+	private ViewerState state;
+
+	public MamutStagingOverlay( final StagedDetections staging, final DisplaySettings ds )
+	{
+		this.staging = staging;
+		this.ds = ds;
+	}
+
+	public void paint( final Graphics2D g )
+	{
+		if ( staging.isEmpty() )
+			return;
+
+		state.getViewerTransform( transform );
+		final double vx = transform.get( 0, 0 );
+		final double vy = transform.get( 1, 0 );
+		final double vz = transform.get( 2, 0 );
+		final double transformScale = Math.sqrt( vx * vx + vy * vy + vz * vz );
+
+		final float thickness = ( float ) ds.getLineThickness();
+		final Stroke stroke = new BasicStroke( thickness, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10f, new float[] { 4f * thickness, 4f * thickness }, 0f );
+		g.setStroke( stroke );
+		g.setColor( ds.getHighlightColor() );
+
+		final double[] coords = new double[ 3 ];
+		final double[] viewerCoords = new double[ 3 ];
+		final double[] fromCoords = new double[ 3 ];
+		for ( final Spot spot : staging.getSpots( state.getCurrentTimepoint() ) )
+		{
+			spot.localize( coords );
+			transform.apply( coords, viewerCoords );
+
+			final double rad = spot.getFeature( Spot.RADIUS ) * transformScale * ds.getSpotDisplayRadius();
+			final double zv = viewerCoords[ 2 ];
+			if ( zv * zv < rad * rad )
+			{
+				final double arad = Math.sqrt( rad * rad - zv * zv );
+				g.drawOval( ( int ) ( viewerCoords[ 0 ] - arad ), ( int ) ( viewerCoords[ 1 ] - arad ), ( int ) ( 2 * arad ), ( int ) ( 2 * arad ) );
+			}
+			else
+			{
+				g.fillOval( ( int ) viewerCoords[ 0 ] - 2, ( int ) viewerCoords[ 1 ] - 2, 4, 4 );
+			}
+
+			final Spot from = staging.getLinkedFrom( spot );
+			if ( null == from )
+				continue;
+			from.localize( coords );
+			transform.apply( coords, fromCoords );
+			g.drawLine( ( int ) fromCoords[ 0 ], ( int ) fromCoords[ 1 ], ( int ) viewerCoords[ 0 ], ( int ) viewerCoords[ 1 ] );
+		}
+	}
+
+	public void setViewerState( final ViewerState state )
+	{
+		this.state = state;
+	}
+}
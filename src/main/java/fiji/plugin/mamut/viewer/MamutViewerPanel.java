@@ -44,6 +44,12 @@ public class MamutViewerPanel extends ViewerPanel
 	 */
 	MamutOverlay overlay;
 
+	/**
+	 * The overlay on which the detections of semi-automated tracking runs are
+	 * previewed. Can be <code>null</code>.
+	 */
+	private MamutStagingOverlay stagingOverlay;
+
 	public MamutViewerPanel( final List< SourceAndConverter< ? >> sources, final int numTimePoints, final CacheControl cache )
 	{
 		this( sources, numTimePoints, cache, ViewerOptions.options() );
@@ -64,6 +70,17 @@ public class MamutViewerPanel extends ViewerPanel
 			overlay.setViewerState( state() );
 			overlay.paint( ( Graphics2D ) g );
 		}
+
+		if ( null != stagingOverlay )
+		{
+			stagingOverlay.setViewerState( state() );
+			stagingOverlay.paint( ( Graphics2D ) g );
+		}
+	}
+
+	public void setStagingOverlay( final MamutStagingOverlay stagingOverlay )
+	{
+		this.stagingOverlay = stagingOverlay;
 	}
 
 	public void centerViewOn( final Spot spot )
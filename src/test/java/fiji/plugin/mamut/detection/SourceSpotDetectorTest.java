@@ -0,0 +1,115 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.detection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import bdv.viewer.SourceAndConverter;
+import fiji.plugin.mamut.viewer.ImgPlusSource;
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+public class SourceSpotDetectorTest
+{
+
+	private static final double RADIUS = 4.;
+
+	private static final int BLOCK_SIZE = 32;
+
+	/** On the corner of four blocks, and inside a fifth one along Z. */
+	private static final double[] CENTER = new double[] { BLOCK_SIZE, BLOCK_SIZE, 20. };
+
+	/**
+	 * A spot centered on the border between blocks is in the halo of its
+	 * neighbor blocks. It must be detected exactly once, at the position found
+	 * on the whole volume, up to the effect of the block borders on the
+	 * filtering.
+	 */
+	@Test
+	public void testSpotOnBlockBorderIsDetectedOnce()
+	{
+		final List< SourceAndConverter< FloatType > > sources = createSources();
+
+		final Spot blocks = detectSingleSpot( sources, BLOCK_SIZE );
+		final Spot whole = detectSingleSpot( sources, 2 * BLOCK_SIZE );
+		for ( int d = 0; d < 3; d++ )
+		{
+			assertEquals( CENTER[ d ], blocks.getDoublePosition( d ), 0.5 );
+			assertEquals( whole.getDoublePosition( d ), blocks.getDoublePosition( d ), 0.05 );
+		}
+		final double quality = whole.getFeature( Spot.QUALITY ).doubleValue();
+		assertEquals( quality, blocks.getFeature( Spot.QUALITY ).doubleValue(), 0.01 * quality );
+	}
+
+	private static Spot detectSingleSpot( final List< SourceAndConverter< FloatType > > sources, final int blockSize )
+	{
+		final Model model = new Model();
+		final SourceSpotDetector< FloatType > detector = new SourceSpotDetector<>( model, sources, 1, Logger.VOID_LOGGER );
+		detector.setDetectorParameters( RADIUS, 1., false, true, false );
+		detector.setLevel( 0 );
+		detector.setBlockSize( blockSize );
+		detector.setNumThreads( 2 );
+		assertTrue( detector.getErrorMessage(), detector.checkInput() && detector.process() );
+
+		assertEquals( 1, detector.getNSpotsFound() );
+		assertEquals( 1, model.getSpots().getNSpots( 0, false ) );
+		return model.getSpots().iterable( 0, false ).iterator().next();
+	}
+
+	/**
+	 * A single frame of 64x64x48 pixels with a Gaussian blob. The detector
+	 * only reads the source, so it has no converter.
+	 */
+	private static List< SourceAndConverter< FloatType > > createSources()
+	{
+		final Img< FloatType > img = ArrayImgs.floats( 2 * BLOCK_SIZE, 2 * BLOCK_SIZE, 48, 1 );
+		final double sigma = RADIUS / Math.sqrt( 3. );
+		final Cursor< FloatType > cursor = img.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			double r2 = 0.;
+			for ( int d = 0; d < 3; d++ )
+			{
+				final double dx = cursor.getDoublePosition( d ) - CENTER[ d ];
+				r2 += dx * dx;
+			}
+			cursor.get().setReal( 100. * Math.exp( -r2 / ( 2. * sigma * sigma ) ) );
+		}
+		final ImgPlus< FloatType > imgPlus = new ImgPlus<>( img, "blob", new AxisType[] { Axes.X, Axes.Y, Axes.Z, Axes.TIME } );
+		return Collections.singletonList( new SourceAndConverter<>( new ImgPlusSource<>( imgPlus ), null ) );
+	}
+}
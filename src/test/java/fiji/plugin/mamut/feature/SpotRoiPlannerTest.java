@@ -0,0 +1,158 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.feature;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import fiji.plugin.mamut.feature.SpotRoiPlanner.Region;
+import fiji.plugin.mamut.feature.spot.SpotIntensityStatisticsAnalyzerFactory;
+import fiji.plugin.trackmate.Spot;
+import net.imagej.ImgPlus;
+import net.imglib2.Interval;
+import net.imglib2.img.Img;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.Translation3D;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+public class SpotRoiPlannerTest
+{
+
+	private static final int[] SIZE = new int[] { 90, 70, 30 };
+
+	private static final int CELL_SIZE = 16;
+
+	private static final int N_SPOTS = 60;
+
+	/**
+	 * Features computed on the regions planned for a set of spots must be
+	 * the same as the features computed on the whole image, including the
+	 * ones that read the shell around the spots. The regions then hold all
+	 * the data the analyzers read, and prefetching them is enough.
+	 */
+	@Test
+	public void testCroppedFeaturesMatchWholeImage()
+	{
+		final Img< FloatType > img = new CellImgFactory<>( new FloatType(), CELL_SIZE ).create( SIZE[ 0 ], SIZE[ 1 ], SIZE[ 2 ] );
+		final Random ran = new Random( 1l );
+		for ( final FloatType pixel : img )
+			pixel.set( 100f * ran.nextFloat() );
+
+		// Anisotropic source, like most light-sheet data.
+		final AffineTransform3D sourceToGlobal = new AffineTransform3D();
+		sourceToGlobal.set(
+				0.5, 0., 0., 3.,
+				0., 0.5, 0., -2.,
+				0., 0., 1.5, 1. );
+		final double[] cal = new double[] { 1., 1., 3. };
+
+		// Same spots twice: one set for each computation.
+		final List< Spot > reference = new ArrayList<>( N_SPOTS );
+		final List< Spot > cropped = new ArrayList<>( N_SPOTS );
+		final double[] pix = new double[ 3 ];
+		final double[] global = new double[ 3 ];
+		for ( int i = 0; i < N_SPOTS; i++ )
+		{
+			// Some spots straddle the image border.
+			for ( int d = 0; d < 3; d++ )
+				pix[ d ] = -2. + ( SIZE[ d ] + 4. ) * ran.nextDouble();
+			sourceToGlobal.apply( pix, global );
+			final double radius = 1. + 3. * ran.nextDouble();
+			reference.add( new Spot( global[ 0 ], global[ 1 ], global[ 2 ], radius, 0. ) );
+			cropped.add( new Spot( global[ 0 ], global[ 1 ], global[ 2 ], radius, 0. ) );
+		}
+
+		// On the whole image.
+		final ImgPlus< ? > whole = MamutSpotFeatureCalculator.wrap( img, "whole", cal );
+		final List< Spot > transformed = new ArrayList<>();
+		for ( final Spot spot : reference )
+			transformed.add( TransformedSpot.wrap( spot, sourceToGlobal, cal ) );
+		analyze( whole, transformed );
+
+		// On the planned regions.
+		final List< Region > regions = SpotRoiPlanner.plan( cropped, sourceToGlobal, img, 1. );
+		assertTrue( "Spots should be spread over several regions.", regions.size() > 1 );
+		for ( final Region region : regions )
+		{
+			final ImgPlus< ? > crop = crop( img, region.getInterval(), cal );
+			final AffineTransform3D cropToGlobal = sourceToGlobal.copy();
+			cropToGlobal.concatenate( new Translation3D( Intervals.minAsDoubleArray( region.getInterval() ) ) );
+			final List< Spot > inRegion = new ArrayList<>();
+			for ( final Spot spot : region.getSpots() )
+				inRegion.add( TransformedSpot.wrap( spot, cropToGlobal, cal ) );
+			analyze( crop, inRegion );
+		}
+
+		for ( int i = 0; i < N_SPOTS; i++ )
+		{
+			final Spot expected = reference.get( i );
+			final Spot actual = cropped.get( i );
+			for ( final String feature : new SpotIntensityStatisticsAnalyzerFactory<>().getFeatures() )
+				assertEquals( "Feature " + feature + " of spot " + i,
+						expected.getFeature( feature ).doubleValue(),
+						actual.getFeature( feature ).doubleValue(),
+						1e-9 );
+		}
+	}
+
+	@Test
+	public void testRegionsCoverTwiceTheRadius()
+	{
+		final Img< FloatType > img = new CellImgFactory<>( new FloatType(), CELL_SIZE ).create( SIZE[ 0 ], SIZE[ 1 ], SIZE[ 2 ] );
+		final AffineTransform3D identity = new AffineTransform3D();
+		final Spot spot = new Spot( 40., 30., 15., 4., 0. );
+		final List< Spot > spots = new ArrayList<>();
+		spots.add( spot );
+
+		final List< Region > regions = SpotRoiPlanner.plan( spots, identity, img, 0. );
+		assertEquals( 1, regions.size() );
+		for ( int d = 0; d < 3; d++ )
+		{
+			assertTrue( regions.get( 0 ).getInterval().min( d ) <= spot.getDoublePosition( d ) - 8. );
+			assertTrue( regions.get( 0 ).getInterval().max( d ) >= spot.getDoublePosition( d ) + 8. );
+		}
+	}
+
+	/**
+	 * Returns a view on the specified region of the image, with its origin at
+	 * the region min.
+	 */
+	private static ImgPlus< ? > crop( final Img< FloatType > img, final Interval interval, final double[] cal )
+	{
+		return MamutSpotFeatureCalculator.wrap( Views.interval( img, interval ), "crop", cal );
+	}
+
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	private static void analyze( final ImgPlus img, final List< Spot > spots )
+	{
+		new SpotIntensityStatisticsAnalyzerFactory().getAnalyzer( img, 0, 0 ).process( spots );
+	}
+}
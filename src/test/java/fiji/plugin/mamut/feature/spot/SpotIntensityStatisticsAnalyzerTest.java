@@ -0,0 +1,145 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.feature.spot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.features.spot.SpotAnalyzerFactoryBase;
+import fiji.plugin.trackmate.features.spot.SpotContrastAndSNRAnalyzerFactory;
+import fiji.plugin.trackmate.features.spot.SpotIntensityMultiCAnalyzerFactory;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+public class SpotIntensityStatisticsAnalyzerTest
+{
+
+	private static final int N_SPOTS = 50;
+
+	/**
+	 * The MaMuT analyzer must yield the same values as the TrackMate
+	 * intensity, contrast and SNR analyzers it replaces.
+	 */
+	@Test
+	public void testSameValuesAsTrackMate()
+	{
+		final long[] size = new long[] { 64, 48, 20 };
+		final double[] cal = new double[] { 0.4, 0.4, 1.1 };
+		final ImgPlus< FloatType > img = createSource( size, cal );
+
+		final Random ran = new Random( 3l );
+		final List< Spot > mamutSpots = new ArrayList<>( N_SPOTS );
+		final List< Spot > trackmateSpots = new ArrayList<>( N_SPOTS );
+		for ( int i = 0; i < N_SPOTS; i++ )
+		{
+			// Some spots straddle the image border.
+			final double x = ( -2. + ( size[ 0 ] + 4. ) * ran.nextDouble() ) * cal[ 0 ];
+			final double y = ( -2. + ( size[ 1 ] + 4. ) * ran.nextDouble() ) * cal[ 1 ];
+			final double z = ( -2. + ( size[ 2 ] + 4. ) * ran.nextDouble() ) * cal[ 2 ];
+			final double radius = 1. + 2. * ran.nextDouble();
+			mamutSpots.add( new Spot( x, y, z, radius, 0. ) );
+			trackmateSpots.add( new Spot( x, y, z, radius, 0. ) );
+		}
+
+		final SpotIntensityStatisticsAnalyzerFactory< FloatType > mamutFactory = new SpotIntensityStatisticsAnalyzerFactory<>();
+		// Analyzers are created often: they must not consume spot IDs.
+		final int nextID = Spot.IDcounter.get();
+		mamutFactory.getAnalyzer( img, 0, 0 ).process( mamutSpots );
+		assertEquals( nextID, Spot.IDcounter.get() );
+
+		// Contrast and SNR need the intensity features.
+		final SpotIntensityMultiCAnalyzerFactory< FloatType > intensityFactory = new SpotIntensityMultiCAnalyzerFactory<>();
+		final SpotContrastAndSNRAnalyzerFactory< FloatType > contrastFactory = new SpotContrastAndSNRAnalyzerFactory<>();
+		final List< SpotAnalyzerFactoryBase< FloatType > > trackmateFactories = new ArrayList<>();
+		trackmateFactories.add( intensityFactory );
+		trackmateFactories.add( contrastFactory );
+		for ( final SpotAnalyzerFactoryBase< FloatType > factory : trackmateFactories )
+		{
+			factory.setNChannels( 1 );
+			factory.getAnalyzer( img, 0, 0 ).process( trackmateSpots );
+		}
+
+		for ( final SpotAnalyzerFactoryBase< FloatType > factory : trackmateFactories )
+		{
+			assertFalse( factory.getFeatures().isEmpty() );
+			for ( final String feature : factory.getFeatures() )
+			{
+				for ( int i = 0; i < N_SPOTS; i++ )
+				{
+					final Double expected = trackmateSpots.get( i ).getFeature( feature );
+					final Double actual = mamutSpots.get( i ).getFeature( feature );
+					assertNotNull( "Missing feature " + feature + " for spot " + i, actual );
+					if ( expected == null )
+						continue;
+					assertEquals( "Feature " + feature + " of spot " + i,
+							expected.doubleValue(), actual.doubleValue(),
+							1e-6 * Math.max( 1., Math.abs( expected.doubleValue() ) ) );
+				}
+			}
+		}
+	}
+
+	/**
+	 * A calibrated source with a few bright blobs over a noisy background.
+	 */
+	private static ImgPlus< FloatType > createSource( final long[] size, final double[] cal )
+	{
+		final Img< FloatType > img = ArrayImgs.floats( size );
+		final Random ran = new Random( 2l );
+		final double[][] blobs = new double[ 10 ][ 3 ];
+		for ( final double[] blob : blobs )
+			for ( int d = 0; d < 3; d++ )
+				blob[ d ] = size[ d ] * cal[ d ] * ran.nextDouble();
+
+		final Cursor< FloatType > cursor = img.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			double val = 10. * ran.nextDouble();
+			for ( final double[] blob : blobs )
+			{
+				double dist2 = 0.;
+				for ( int d = 0; d < 3; d++ )
+				{
+					final double dx = cursor.getDoublePosition( d ) * cal[ d ] - blob[ d ];
+					dist2 += dx * dx;
+				}
+				val += 200. * Math.exp( -dist2 / 2. );
+			}
+			cursor.get().setReal( val );
+		}
+		return new ImgPlus<>( img, "source", new AxisType[] { Axes.X, Axes.Y, Axes.Z }, cal );
+	}
+}
@@ -0,0 +1,196 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.feature.track;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.junit.Test;
+
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.features.track.TrackAnalyzer;
+import fiji.plugin.trackmate.features.track.TrackBranchingAnalyzer;
+import fiji.plugin.trackmate.features.track.TrackDurationAnalyzer;
+
+public class IncrementalTrackAnalyzersTest
+{
+
+	private static final int N_STEPS = 200;
+
+	/**
+	 * Grows a single track edge by edge, with gaps, splits and merges. After
+	 * each step, the incrementally updated features must be the ones a full
+	 * computation gives on the same track.
+	 */
+	@Test
+	public void testIncrementalUpdatesMatchFullComputation()
+	{
+		final Random ran = new Random( 1l );
+		final IncrementalTrackBranchingAnalyzer branching = new IncrementalTrackBranchingAnalyzer();
+		final IncrementalTrackDurationAnalyzer duration = new IncrementalTrackDurationAnalyzer();
+		final IncrementalTrackAnalyzer[] incrementals = new IncrementalTrackAnalyzer[] { branching, duration };
+		final TrackAnalyzer[] references = new TrackAnalyzer[] { new TrackBranchingAnalyzer(), new TrackDurationAnalyzer() };
+
+		final Model model = new Model();
+		final List< Spot > spots = new ArrayList<>();
+		final Spot root = createSpot( 0, ran );
+		final Spot first = createSpot( 1, ran );
+		DefaultWeightedEdge edge;
+		model.beginUpdate();
+		try
+		{
+			model.addSpotTo( root, Integer.valueOf( 0 ) );
+			model.addSpotTo( first, Integer.valueOf( 1 ) );
+			edge = model.addEdge( root, first, 1. );
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+		spots.add( root );
+		spots.add( first );
+
+		Integer trackID = model.getTrackModel().trackIDOf( edge );
+		final List< Integer > trackIDs = Collections.singletonList( trackID );
+		for ( final IncrementalTrackAnalyzer analyzer : incrementals )
+			analyzer.process( trackIDs, model );
+
+		for ( int step = 0; step < N_STEPS; step++ )
+		{
+			final Collection< Spot > newSpots = new ArrayList<>();
+			final Spot source = spots.get( ran.nextInt( spots.size() ) );
+			final int sourceFrame = source.getFeature( Spot.FRAME ).intValue();
+			model.beginUpdate();
+			try
+			{
+				if ( step % 10 == 9 )
+				{
+					// Link two spots of the track, possibly making a merge.
+					final Spot target = spots.get( ran.nextInt( spots.size() ) );
+					final int targetFrame = target.getFeature( Spot.FRAME ).intValue();
+					if ( targetFrame <= sourceFrame || model.getTrackModel().containsEdge( source, target ) )
+						continue;
+					edge = model.addEdge( source, target, 1. );
+				}
+				else
+				{
+					// Grow a new spot, sometimes after a gap, sometimes before.
+					final int gap = 1 + ran.nextInt( 3 );
+					final int dt = ( ran.nextInt( 5 ) == 0 && sourceFrame >= gap ) ? -gap : gap;
+					final Spot target = createSpot( sourceFrame + dt, ran );
+					model.addSpotTo( target, Integer.valueOf( sourceFrame + dt ) );
+					edge = dt > 0 ? model.addEdge( source, target, 1. ) : model.addEdge( target, source, 1. );
+					newSpots.add( target );
+					spots.add( target );
+				}
+			}
+			finally
+			{
+				model.endUpdate();
+			}
+
+			trackID = model.getTrackModel().trackIDOf( edge );
+			for ( final IncrementalTrackAnalyzer analyzer : incrementals )
+				assertTrue( "Step " + step, analyzer.update( trackID, newSpots, Collections.singletonList( edge ), model ) );
+			final Map< String, Double > incremental = getTrackFeatures( trackID, model, references );
+
+			for ( final TrackAnalyzer analyzer : references )
+				analyzer.process( Collections.singletonList( trackID ), model );
+			final Map< String, Double > full = getTrackFeatures( trackID, model, references );
+
+			/*
+			 * When several spots share the first or last frame, which of them
+			 * the displacement is measured from is arbitrary.
+			 */
+			if ( !hasUniqueExtremities( spots ) )
+				full.remove( TrackDurationAnalyzer.TRACK_DISPLACEMENT );
+
+			for ( final String feature : full.keySet() )
+				assertEquals( "Feature " + feature + " at step " + step,
+						full.get( feature ).doubleValue(),
+						incremental.get( feature ).doubleValue(),
+						1e-9 );
+		}
+	}
+
+	private static Map< String, Double > getTrackFeatures( final Integer trackID, final Model model, final TrackAnalyzer[] analyzers )
+	{
+		final FeatureModel fm = model.getFeatureModel();
+		final Map< String, Double > features = new HashMap<>();
+		for ( final TrackAnalyzer analyzer : analyzers )
+		{
+			for ( final String feature : analyzer.getFeatures() )
+			{
+				final Double value = fm.getTrackFeature( trackID, feature );
+				assertNotNull( "Feature " + feature, value );
+				features.put( feature, value );
+			}
+		}
+		return features;
+	}
+
+	private static boolean hasUniqueExtremities( final List< Spot > spots )
+	{
+		int min = Integer.MAX_VALUE;
+		int max = Integer.MIN_VALUE;
+		int nMin = 0;
+		int nMax = 0;
+		for ( final Spot spot : spots )
+		{
+			final int frame = spot.getFeature( Spot.FRAME ).intValue();
+			if ( frame < min )
+			{
+				min = frame;
+				nMin = 0;
+			}
+			if ( frame > max )
+			{
+				max = frame;
+				nMax = 0;
+			}
+			if ( frame == min )
+				nMin++;
+			if ( frame == max )
+				nMax++;
+		}
+		return nMin == 1 && nMax == 1;
+	}
+
+	private static Spot createSpot( final int frame, final Random ran )
+	{
+		final Spot spot = new Spot( 100. * ran.nextDouble(), 100. * ran.nextDouble(), 10. * ran.nextDouble(), 2., 0. );
+		spot.putFeature( Spot.POSITION_T, Double.valueOf( 2. * frame ) );
+		return spot;
+	}
+}
@@ -0,0 +1,228 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.TrackModel;
+
+public class MamutFormatRoundTripTest
+{
+
+	private static final String SPOT_FEATURE = "SPOT_TEST";
+
+	private static final String EDGE_FEATURE = "EDGE_TEST";
+
+	private static final String TRACK_FEATURE = "TRACK_TEST";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * The same model written to XML and to the binary format must read back
+	 * to the same spots, edges, features, track names and visibility. NaN
+	 * values and missing values must be kept apart.
+	 */
+	@Test
+	public void testXmlAndBinaryReadBackTheSameModel() throws Exception
+	{
+		final Model model = createModel();
+		final File xmlFile = folder.newFile( "model.xml" );
+		final Model fromXml = roundTrip( model, new MamutXmlStreamWriter( xmlFile, Logger.VOID_LOGGER ), xmlFile );
+		final File binaryFile = folder.newFile( "model" + MamutBinaryFormat.EXTENSION );
+		final Model fromBinary = roundTrip( model, new MamutBinaryWriter( binaryFile, Logger.VOID_LOGGER ), binaryFile );
+
+		assertEquals( describeSpots( model ), describeSpots( fromXml ) );
+		assertEquals( describeSpots( model ), describeSpots( fromBinary ) );
+		assertEquals( describeEdges( model ), describeEdges( fromXml ) );
+		assertEquals( describeEdges( model ), describeEdges( fromBinary ) );
+		assertEquals( describeTracks( model ), describeTracks( fromXml ) );
+		assertEquals( describeTracks( model ), describeTracks( fromBinary ) );
+		assertEquals( model.getSpaceUnits(), fromBinary.getSpaceUnits() );
+		assertEquals( model.getTimeUnits(), fromBinary.getTimeUnits() );
+	}
+
+	private static Model roundTrip( final Model model, final MamutXmlWriter writer, final File file ) throws Exception
+	{
+		writer.appendModel( model );
+		writer.writeToFile();
+
+		final MamutXmlReader reader = MamutBinaryFormat.isBinaryFile( file )
+				? new MamutBinaryReader( file )
+				: new MamutXmlStreamReader( file );
+		final Model read = reader.getModel();
+		assertTrue( reader.getErrorMessage(), reader.isReadingOk() );
+		assertNotNull( read );
+		return read;
+	}
+
+	/**
+	 * Three tracks over five frames, one of them branching, one hidden, and a
+	 * lone spot. The test features have regular values, NaN values and
+	 * missing values.
+	 */
+	private static Model createModel()
+	{
+		final Model model = new Model();
+		model.setPhysicalUnits( "µm", "min" );
+		final FeatureModel fm = model.getFeatureModel();
+		fm.declareSpotFeatures( Collections.singleton( SPOT_FEATURE ),
+				Collections.singletonMap( SPOT_FEATURE, "Spot test" ),
+				Collections.singletonMap( SPOT_FEATURE, "Spot test" ),
+				Collections.singletonMap( SPOT_FEATURE, Dimension.NONE ),
+				Collections.singletonMap( SPOT_FEATURE, Boolean.FALSE ) );
+		fm.declareEdgeFeatures( Collections.singleton( EDGE_FEATURE ),
+				Collections.singletonMap( EDGE_FEATURE, "Edge test" ),
+				Collections.singletonMap( EDGE_FEATURE, "Edge test" ),
+				Collections.singletonMap( EDGE_FEATURE, Dimension.NONE ),
+				Collections.singletonMap( EDGE_FEATURE, Boolean.FALSE ) );
+		fm.declareTrackFeatures( Collections.singleton( TRACK_FEATURE ),
+				Collections.singletonMap( TRACK_FEATURE, "Track test" ),
+				Collections.singletonMap( TRACK_FEATURE, "Track test" ),
+				Collections.singletonMap( TRACK_FEATURE, Dimension.NONE ),
+				Collections.singletonMap( TRACK_FEATURE, Boolean.FALSE ) );
+
+		model.beginUpdate();
+		try
+		{
+			int n = 0;
+			for ( int t = 0; t < 3; t++ )
+			{
+				Spot previous = null;
+				for ( int frame = 0; frame < 5; frame++ )
+				{
+					final Spot spot = new Spot( 10. * t + frame, 2. * frame, 1.5 * t, 2. + 0.1 * n, 100. - n );
+					spot.setName( "T" + t + "F" + frame );
+					if ( n % 4 == 1 )
+						spot.putFeature( SPOT_FEATURE, Double.valueOf( Double.NaN ) );
+					else if ( n % 4 != 3 )
+						spot.putFeature( SPOT_FEATURE, Double.valueOf( 0.25 * n ) );
+					model.addSpotTo( spot, Integer.valueOf( frame ) );
+					if ( null != previous )
+					{
+						final DefaultWeightedEdge edge = model.addEdge( previous, spot, 0.5 * n );
+						if ( n % 3 == 1 )
+							fm.putEdgeFeature( edge, EDGE_FEATURE, Double.valueOf( Double.NaN ) );
+						else if ( n % 3 == 2 )
+							fm.putEdgeFeature( edge, EDGE_FEATURE, Double.valueOf( -1. * n ) );
+					}
+					previous = spot;
+					n++;
+				}
+			}
+
+			// A branch.
+			final Spot branch = new Spot( 25., 8., 3., 2., 1. );
+			branch.setName( "Branch" );
+			model.addSpotTo( branch, Integer.valueOf( 4 ) );
+			model.addEdge( model.getSpots().iterable( 3, false ).iterator().next(), branch, 7. );
+
+			// A lone spot.
+			model.addSpotTo( new Spot( 50., 50., 0., 1., 0. ), Integer.valueOf( 2 ) );
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+
+		final TrackModel tm = model.getTrackModel();
+		int t = 0;
+		for ( final Integer trackID : new TreeSet<>( tm.trackIDs( false ) ) )
+		{
+			tm.setName( trackID, "Track " + ( char ) ( 'A' + t ) );
+			if ( t == 0 )
+				fm.putTrackFeature( trackID, TRACK_FEATURE, Double.valueOf( Double.NaN ) );
+			else if ( t == 1 )
+				fm.putTrackFeature( trackID, TRACK_FEATURE, Double.valueOf( 42. ) );
+			if ( t == 2 )
+				model.setTrackVisibility( trackID, false );
+			t++;
+		}
+		return model;
+	}
+
+	/**
+	 * Spot ID to frame, name and features.
+	 */
+	private static Map< Integer, String > describeSpots( final Model model )
+	{
+		final Map< Integer, String > spots = new TreeMap<>();
+		for ( final Integer frame : model.getSpots().keySet() )
+			for ( final Spot spot : model.getSpots().iterable( frame, false ) )
+				spots.put( Integer.valueOf( spot.ID() ), frame + " " + spot.getName() + " " + new TreeMap<>( spot.getFeatures() ) );
+		return spots;
+	}
+
+	/**
+	 * Source and target IDs to weight, test feature and track name. Only the
+	 * test feature is compared: the XML format also stores the source and
+	 * target IDs as features.
+	 */
+	private static Map< String, String > describeEdges( final Model model )
+	{
+		final TrackModel tm = model.getTrackModel();
+		final FeatureModel fm = model.getFeatureModel();
+		final Map< String, String > edges = new TreeMap<>();
+		for ( final DefaultWeightedEdge edge : tm.edgeSet() )
+			edges.put( tm.getEdgeSource( edge ).ID() + "->" + tm.getEdgeTarget( edge ).ID(),
+					tm.getEdgeWeight( edge ) + " " + fm.getEdgeFeature( edge, EDGE_FEATURE ) + " " + tm.name( tm.trackIDOf( edge ) ) );
+		return edges;
+	}
+
+	/**
+	 * Track name to visibility, spot IDs and test feature.
+	 */
+	private static Map< String, String > describeTracks( final Model model )
+	{
+		final TrackModel tm = model.getTrackModel();
+		final FeatureModel fm = model.getFeatureModel();
+		final Map< String, String > tracks = new HashMap<>();
+		for ( final Integer trackID : tm.trackIDs( false ) )
+		{
+			final Set< Integer > spotIDs = new TreeSet<>();
+			for ( final Spot spot : tm.trackSpots( trackID ) )
+				spotIDs.add( Integer.valueOf( spot.ID() ) );
+			tracks.put( tm.name( trackID ), tm.isVisible( trackID ) + " " + spotIDs + " " + fm.getTrackFeature( trackID, TRACK_FEATURE ) );
+		}
+		return tracks;
+	}
+}
@@ -0,0 +1,163 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.tracking;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.TrackModel;
+
+public class SlidingWindowLinkerTest
+{
+
+	private static final int N_FRAMES = 10;
+
+	private static final int N_TRACKS = 4;
+
+	/** The frame where the spot of track 1 is missing. */
+	private static final int GAP_FRAME = 5;
+
+	/**
+	 * Parallel tracks moving along X, closer to each other than the linking
+	 * distance, with a missing detection on one of them. Each track must be
+	 * linked on its own, and the missing detection bridged by gap closing.
+	 */
+	@Test
+	public void testLinkParallelTracks()
+	{
+		final Model model = new Model();
+		model.beginUpdate();
+		try
+		{
+			for ( int frame = 0; frame < N_FRAMES; frame++ )
+				for ( final Spot spot : createSpots( frame ) )
+					model.addSpotTo( spot, Integer.valueOf( frame ) );
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+
+		final SlidingWindowLinker linker = new SlidingWindowLinker( model, Logger.VOID_LOGGER );
+		linker.setParameters( 6., 8., 2 );
+		assertTrue( linker.getErrorMessage(), linker.checkInput() && linker.process() );
+
+		final TrackModel tm = model.getTrackModel();
+		assertEquals( N_TRACKS * ( N_FRAMES - 1 ) - 1, tm.edgeSet().size() );
+		assertEquals( N_TRACKS, tm.nTracks( false ) );
+		for ( final DefaultWeightedEdge edge : tm.edgeSet() )
+		{
+			final Spot source = tm.getEdgeSource( edge );
+			final Spot target = tm.getEdgeTarget( edge );
+			assertEquals( source.getName(), target.getName() );
+			final int gap = target.getFeature( Spot.FRAME ).intValue() - source.getFeature( Spot.FRAME ).intValue();
+			assertEquals( source.getName().equals( "1" ) && target.getFeature( Spot.FRAME ).intValue() == GAP_FRAME + 1 ? 2 : 1, gap );
+		}
+	}
+
+	/**
+	 * Spots delivered frame by frame, as a file reader or a detector would.
+	 * The linker must ask for each frame once, in order, and produce the same
+	 * links as on a model.
+	 */
+	@Test
+	public void testLinkStreamedFrames()
+	{
+		final List< Integer > requested = new ArrayList<>();
+		final Map< String, Integer > linksPerTrack = new HashMap<>();
+		final LinkingFrames frames = new LinkingFrames()
+		{
+
+			@Override
+			public int getFirstFrame()
+			{
+				return 0;
+			}
+
+			@Override
+			public int getLastFrame()
+			{
+				return N_FRAMES - 1;
+			}
+
+			@Override
+			public Collection< Spot > getSpots( final int frame )
+			{
+				requested.add( Integer.valueOf( frame ) );
+				return createSpots( frame );
+			}
+
+			@Override
+			public void addLinks( final int frame, final Map< Spot, Spot > links, final Map< Spot, Double > costs )
+			{
+				for ( final Map.Entry< Spot, Spot > link : links.entrySet() )
+				{
+					assertEquals( link.getKey().getName(), link.getValue().getName() );
+					linksPerTrack.merge( link.getKey().getName(), Integer.valueOf( 1 ), ( a, b ) -> Integer.valueOf( a.intValue() + b.intValue() ) );
+				}
+			}
+		};
+
+		final SlidingWindowLinker linker = new SlidingWindowLinker( frames, Logger.VOID_LOGGER );
+		linker.setParameters( 6., 8., 2 );
+		assertTrue( linker.getErrorMessage(), linker.checkInput() && linker.process() );
+
+		for ( int frame = 0; frame < N_FRAMES; frame++ )
+			assertEquals( Integer.valueOf( frame ), requested.get( frame ) );
+		assertEquals( N_FRAMES, requested.size() );
+		for ( int t = 0; t < N_TRACKS; t++ )
+			assertEquals( Integer.valueOf( t == 1 ? N_FRAMES - 2 : N_FRAMES - 1 ), linksPerTrack.get( Integer.toString( t ) ) );
+		assertEquals( N_TRACKS * ( N_FRAMES - 1 ) - 1, linker.getNLinks() );
+	}
+
+	/**
+	 * The spots of one frame, named after their track. Tracks are 5 apart
+	 * and move by 2 per frame, with a small wobble.
+	 */
+	private static List< Spot > createSpots( final int frame )
+	{
+		final List< Spot > spots = new ArrayList<>( N_TRACKS );
+		for ( int t = 0; t < N_TRACKS; t++ )
+		{
+			if ( t == 1 && frame == GAP_FRAME )
+				continue;
+			final double wobble = 0.5 * Math.sin( frame + t );
+			final Spot spot = new Spot( 2. * frame, 5. * t + wobble, 0., 1., 1. );
+			spot.setName( Integer.toString( t ) );
+			spot.putFeature( Spot.FRAME, Double.valueOf( frame ) );
+			spots.add( spot );
+		}
+		return spots;
+	}
+}
@@ -0,0 +1,101 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2026 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.ModelChangeEvent;
+import fiji.plugin.trackmate.Spot;
+
+public class EdgeEndsTest
+{
+
+	/**
+	 * The ends of a removed edge must still be found when the model change
+	 * event reporting its removal is fired, also when the edge was removed
+	 * with one of its spots.
+	 */
+	@Test
+	public void testEndsOfRemovedEdges()
+	{
+		final Model model = new Model();
+		final Spot a = new Spot( 0., 0., 0., 1., -1. );
+		final Spot b = new Spot( 1., 0., 0., 1., -1. );
+		final Spot c = new Spot( 2., 0., 0., 1., -1. );
+		final DefaultWeightedEdge ab;
+		final DefaultWeightedEdge bc;
+		model.beginUpdate();
+		try
+		{
+			model.addSpotTo( a, 0 );
+			model.addSpotTo( b, 1 );
+			model.addSpotTo( c, 2 );
+			ab = model.addEdge( a, b, 1. );
+			bc = model.addEdge( b, c, 1. );
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+
+		final EdgeEnds edgeEnds = new EdgeEnds( model );
+		final int[] checked = new int[ 1 ];
+		model.addModelChangeListener( event -> {
+			for ( final DefaultWeightedEdge edge : event.getEdges() )
+			{
+				if ( event.getEdgeFlag( edge ) != ModelChangeEvent.FLAG_EDGE_REMOVED )
+					continue;
+				assertFalse( model.getTrackModel().edgeSet().contains( edge ) );
+				if ( edge == ab )
+				{
+					assertSame( a, edgeEnds.getSource( edge ) );
+					assertSame( b, edgeEnds.getTarget( edge ) );
+				}
+				else
+				{
+					assertSame( b, edgeEnds.getSource( edge ) );
+					assertSame( c, edgeEnds.getTarget( edge ) );
+				}
+				checked[ 0 ]++;
+			}
+		} );
+
+		model.beginUpdate();
+		try
+		{
+			model.removeEdge( ab );
+			model.removeSpot( c );
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+		assertEquals( 2, checked[ 0 ] );
+		assertFalse( model.getTrackModel().edgeSet().contains( bc ) );
+	}
+}